@@ -0,0 +1,140 @@
+package edu.ausas.cse330.bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU cost and compression ratio of {@code Step4_Compression.Codec}.
+ *
+ * <p>Each operation fills one MTU-sized datagram with small messages and
+ * flushes it ({@code encode}), or unpacks one such datagram ({@code decode}).
+ * The score is the time per datagram. The bytes produced compared with the
+ * message bytes put in are printed at the end of each trial:</p>
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar CompressionBenchmark
+ * </pre>
+ * <p>{@code level} 0 means packing only, with compression not negotiated; the
+ * difference to the other levels is the price of DEFLATE. {@code random}
+ * messages do not compress, so they show the cost of trying and giving up.</p>
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+
+  /** Size of the datagrams produced */
+  static final int MTU = 1472;
+
+  /** Distinct messages cycled through */
+  static final int MESSAGES = 4096;
+
+  /** DEFLATE level, or 0 for packing without compression */
+  @Param({"0", "1", "6", "9"})
+  int level;
+
+  /** {@code quotes} for repetitive text, {@code random} for incompressible bytes */
+  @Param({"quotes", "random"})
+  String data;
+
+  private Object codec;
+  private Method add;
+  private Method flush;
+  private Method decode;
+  private Method rawBytes;
+  private Method wireBytes;
+  private Method close;
+
+  private ByteBuffer[] messages;
+  private int next;
+  private ByteBuffer out;
+  private ByteBuffer encoded;
+  private final Consumer<ByteBuffer> discard = message -> { };
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    String codecClass = "Step4_Compression$Codec";
+    int packed = 2;
+    int deflate = 1;
+    Constructor<?> constructor =
+        Examples.constructor(codecClass, int.class, int.class, int.class, int.class);
+    codec = Examples.create(constructor, level == 0 ? packed : packed | deflate, 256, MTU,
+        Math.max(level, 1));
+    add = Examples.method(codecClass, "add", ByteBuffer.class);
+    flush = Examples.method(codecClass, "flush", ByteBuffer.class);
+    decode = Examples.method(codecClass, "decode", ByteBuffer.class, Consumer.class);
+    rawBytes = Examples.method(codecClass, "rawBytes");
+    wireBytes = Examples.method(codecClass, "wireBytes");
+    close = Examples.method(codecClass, "close");
+
+    Random random = new Random(42);
+    messages = new ByteBuffer[MESSAGES];
+    for (int i = 0; i < MESSAGES; i++) {
+      byte[] bytes;
+      if (data.equals("random")) {
+        bytes = new byte[40];
+        random.nextBytes(bytes);
+      } else {
+        bytes = String.format(Locale.ROOT, "QUOTE EURUSD seq=%d bid=1.%04d ask=1.%04d",
+            i, 842 + random.nextInt(20), 844 + random.nextInt(20)).getBytes(StandardCharsets.US_ASCII);
+      }
+      messages[i] = ByteBuffer.wrap(bytes);
+    }
+    out = ByteBuffer.allocateDirect(MTU);
+    encoded = ByteBuffer.allocateDirect(MTU);
+    encoded.put(encodeOne()).flip();
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() throws Exception {
+    long raw = (long) Examples.invoke(rawBytes, codec);
+    long wire = (long) Examples.invoke(wireBytes, codec);
+    System.out.printf(Locale.ROOT, "%n%s level %d: %d message bytes -> %d datagram bytes (%.1f%%)%n",
+        data, level, raw, wire, 100.0 * wire / raw);
+    Examples.invoke(close, codec);
+  }
+
+  @Benchmark
+  public ByteBuffer encode() throws Exception {
+    return encodeOne();
+  }
+
+  @Benchmark
+  public Object decode() throws Exception {
+    return Examples.invoke(decode, codec, encoded.rewind(), discard);
+  }
+
+  /**
+   * Adds messages until the datagram is full, then flushes it.
+   */
+  private ByteBuffer encodeOne() throws Exception {
+    while ((boolean) Examples.invoke(add, codec, messages[next])) {
+      next = (next + 1) % MESSAGES;
+    }
+    ByteBuffer datagram = (ByteBuffer) Examples.invoke(flush, codec, out);
+    Examples.invoke(add, codec, messages[next]);
+    next = (next + 1) % MESSAGES;
+    return datagram;
+  }
+}
@@ -0,0 +1,160 @@
+package edu.ausas.cse330.bench;
+
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback benchmarks for {@code Step4_UDP_Echo_Server} in its continuous modes,
+ * driven by {@code Step4_UDP_Pipelined_Client}.
+ *
+ * <ul>
+ *   <li>{@link #roundTrip(Client)} - one request at a time; run in sample mode so
+ *       JMH reports latency percentiles (p50, p99, p99.9, ...)</li>
+ *   <li>{@link #pipelined(Client)} - {@value #BATCH} requests in flight at once;
+ *       the score is datagrams per second</li>
+ * </ul>
+ *
+ * <p>Each benchmark thread has its own client socket, so running with
+ * {@code -t N} shows how the {@code multicore} server scales with more clients:</p>
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar EchoServerBenchmark.pipelined -t 8
+ * </pre>
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EchoServerBenchmark {
+
+  /** Requests sent per invocation of {@link #pipelined(Client)} */
+  static final int BATCH = 256;
+
+  /** The echo server, shared by all benchmark threads */
+  @State(Scope.Benchmark)
+  public static class Server {
+
+    /** {@code loop} for the single-threaded selector loop, {@code multicore} for one worker per core */
+    @Param({"loop", "multicore"})
+    String mode;
+
+    int port;
+    private Thread serverThread;
+    private Object multicore;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+      port = freePort();
+
+      if (mode.equals("multicore")) {
+        multicore = Examples.create(
+            Examples.constructor("Step4_UDP_Multicore_Server", int.class, int.class),
+            port, Runtime.getRuntime().availableProcessors());
+        Examples.invoke(Examples.method("Step4_UDP_Multicore_Server", "start"), multicore);
+        return;
+      }
+
+      Method serve = Examples.method("Step4_UDP_Echo_Server", "serve", int.class);
+      serverThread = new Thread(() -> {
+        try {
+          Examples.invoke(serve, null, port);
+        } catch (Exception e) {
+          // interrupted by stop()
+        }
+      }, "echo-server");
+      serverThread.setDaemon(true);
+      serverThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+      if (multicore != null) {
+        Examples.invoke(Examples.method("Step4_UDP_Multicore_Server", "close"), multicore);
+      } else {
+        serverThread.interrupt();
+        serverThread.join(1000);
+      }
+    }
+  }
+
+  /** One pipelined client per benchmark thread */
+  @State(Scope.Thread)
+  public static class Client {
+
+    /** Payload size in bytes, excluding the client's sequence header */
+    @Param({"16", "1024"})
+    int payloadSize;
+
+    private Object client;
+    private Method send;
+    private Method close;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void open(Server server) throws Exception {
+      client = Examples.create(
+          Examples.constructor("Step4_UDP_Pipelined_Client",
+              SocketAddress.class, int.class, long.class, int.class),
+          new InetSocketAddress("127.0.0.1", server.port), BATCH, 1000L, 3);
+      send = Examples.method("Step4_UDP_Pipelined_Client", "send", byte[].class);
+      close = Examples.method("Step4_UDP_Pipelined_Client", "close");
+      payload = new byte[payloadSize];
+
+      // The server may still be binding: the client retransmits until the first echo comes back
+      send().get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+      Examples.invoke(close, client);
+    }
+
+    CompletableFuture<?> send() throws Exception {
+      return (CompletableFuture<?>) Examples.invoke(send, client, payload);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Object roundTrip(Client client) throws Exception {
+    return client.send().get();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(BATCH)
+  public void pipelined(Client client) throws Exception {
+    CompletableFuture<?>[] replies = new CompletableFuture<?>[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      replies[i] = client.send();
+    }
+    CompletableFuture.allOf(replies).get();
+  }
+
+  /**
+   * Picks an unused UDP port so the benchmark does not clash with a running example.
+   */
+  static int freePort() throws Exception {
+    try (DatagramSocket probe = new DatagramSocket(0)) {
+      return probe.getLocalPort();
+    }
+  }
+}
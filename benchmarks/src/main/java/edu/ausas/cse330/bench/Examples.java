@@ -0,0 +1,103 @@
+package edu.ausas.cse330.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the example classes from the benchmarks.
+ *
+ * <p>The examples live in the unnamed (default) package, which cannot be imported
+ * from a named package, and JMH refuses to generate benchmarks in the default
+ * package. The benchmarks therefore look the example members up by name once,
+ * during setup, and call them through reflection. The reflective call costs tens
+ * of nanoseconds, far below the socket round trips being measured.</p>
+ *
+ * <p>{@link Method#invoke} also allocates its argument array and boxes
+ * primitives, which shows up in {@code gc.alloc.rate.norm}. Benchmarks that
+ * measure allocation call through a {@link #handle} instead.</p>
+ */
+final class Examples {
+
+  private Examples() {
+  }
+
+  /**
+   * Finds a (possibly package-private) method of an example class.
+   */
+  static Method method(String className, String name, Class<?>... parameterTypes) {
+    try {
+      Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+      method.setAccessible(true);
+      return method;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("example member not found: " + className + "." + name, e);
+    }
+  }
+
+  /**
+   * Finds a (possibly package-private) method of an example class as a method handle.
+   *
+   * <p>Every parameter and the return type are erased to {@code Object} (the
+   * receiver, for an instance method, is the first parameter), so the handle can
+   * be called with {@link MethodHandle#invokeExact} without naming the example
+   * class. Held in a {@code static final} field, the call is inlined and
+   * allocates nothing.</p>
+   */
+  static MethodHandle handle(String className, String name, Class<?>... parameterTypes) {
+    try {
+      MethodHandle handle = MethodHandles.lookup().unreflect(method(className, name, parameterTypes));
+      return handle.asType(handle.type().generic());
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("example member not accessible: " + className + "." + name, e);
+    }
+  }
+
+  /**
+   * Finds a (possibly package-private) constructor of an example class.
+   */
+  static Constructor<?> constructor(String className, Class<?>... parameterTypes) {
+    try {
+      Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+      constructor.setAccessible(true);
+      return constructor;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("example constructor not found: " + className, e);
+    }
+  }
+
+  /**
+   * Invokes a method, unwrapping the exception thrown by the example itself.
+   */
+  static Object invoke(Method method, Object target, Object... args) throws Exception {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Invokes a constructor, unwrapping the exception thrown by the example itself.
+   */
+  static Object create(Constructor<?> constructor, Object... args) throws Exception {
+    try {
+      return constructor.newInstance(args);
+    } catch (InvocationTargetException e) {
+      throw unwrap(e);
+    }
+  }
+
+  private static Exception unwrap(InvocationTargetException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof Exception exception) {
+      return exception;
+    }
+    if (cause instanceof Error error) {
+      throw error;
+    }
+    return e;
+  }
+}
@@ -0,0 +1,101 @@
+package edu.ausas.cse330.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receive-path cost of {@code Step4_UDP_Receiver.receive()}.
+ *
+ * <p>Each invocation sends one datagram to the receiver's port and receives it
+ * on the same thread, so the score is dominated by the receive path itself.
+ * Run with the GC profiler to see the allocation rate per received packet:</p>
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar ReceiverBenchmark -prof gc
+ * </pre>
+ * <p>and compare {@code gc.alloc.rate.norm} (bytes allocated per operation).
+ * {@code receive()} is called through a method handle rather than
+ * {@link Method#invoke}, so the figure holds only what the receiver allocates.</p>
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReceiverBenchmark {
+
+  /** Payload size in bytes */
+  @Param({"16", "1400"})
+  int payloadSize;
+
+  /** {@code String receive()}, erased to {@code (Object) Object} */
+  private static final MethodHandle RECEIVE = Examples.handle("Step4_UDP_Receiver", "receive");
+
+  private Object receiver;
+  private Method close;
+  private DatagramChannel sender;
+  private ByteBuffer datagram;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    int port = EchoServerBenchmark.freePort();
+    receiver = Examples.create(Examples.constructor("Step4_UDP_Receiver", int.class), port);
+    close = Examples.method("Step4_UDP_Receiver", "close");
+
+    sender = DatagramChannel.open();
+    sender.connect(new InetSocketAddress("127.0.0.1", port));
+    datagram = ByteBuffer.allocateDirect(payloadSize);
+    for (int i = 0; i < payloadSize; i++) {
+      datagram.put((byte) ('a' + i % 26));
+    }
+    datagram.flip();
+
+    // The first receive() binds the socket; send until it gets through
+    Thread binder = new Thread(() -> {
+      try {
+        Object ignored = (Object) RECEIVE.invokeExact(receiver);
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    binder.start();
+    while (binder.isAlive()) {
+      try {
+        sender.write(datagram.rewind());
+      } catch (PortUnreachableException e) {
+        // not bound yet
+      }
+      binder.join(50);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() throws Exception {
+    sender.close();
+    Examples.invoke(close, receiver);
+  }
+
+  @Benchmark
+  public Object sendAndReceive() throws Throwable {
+    sender.write(datagram.rewind());
+    return (Object) RECEIVE.invokeExact(receiver);
+  }
+}
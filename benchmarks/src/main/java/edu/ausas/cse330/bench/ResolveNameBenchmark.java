@@ -0,0 +1,123 @@
+package edu.ausas.cse330.bench;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups per second for the two ways {@code Step3_ResolveName} resolves a name.
+ *
+ * <ul>
+ *   <li>{@link #system(SystemResolver)} - {@code Step3_ResolveName.resolve}, the
+ *       per-line lookup through the system resolver. The JVM's own address cache is
+ *       disabled in the forked JVM so every call goes to the system resolver, as it
+ *       would for a batch of distinct names. The default name is answered from the
+ *       hosts file; pass {@code -p host=...} to measure a real DNS server. An IP
+ *       literal would only be parsed, never looked up.</li>
+ *   <li>{@link #stub(StubResolver)} - one query at a time through
+ *       {@code Step3_DNS_Stub_Resolver}, as in stub mode but without the cache,
+ *       answered by a {@code Step3_DNS_Local_Server} on loopback</li>
+ * </ul>
+ */
+@Fork(value = 1, jvmArgsAppend = {"-Dsun.net.inetaddr.ttl=0", "-Dsun.net.inetaddr.negative.ttl=0"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResolveNameBenchmark {
+
+  /** Name served by the loopback DNS server */
+  static final String STUB_NAME = "www.example.test";
+
+  /** DNS record type A ({@code Step3_DNS_Message.TYPE_A}) */
+  static final int TYPE_A = 1;
+
+  /** The example's system-resolver lookup */
+  @State(Scope.Benchmark)
+  public static class SystemResolver {
+
+    /** Host name to resolve */
+    @Param({"localhost"})
+    String host;
+
+    private Method resolve;
+
+    @Setup(Level.Trial)
+    public void find() {
+      resolve = Examples.method("Step3_ResolveName", "resolve", String.class);
+    }
+  }
+
+  /** A stub resolver talking to a DNS server in this JVM */
+  @State(Scope.Benchmark)
+  public static class StubResolver {
+
+    private DatagramChannel channel;
+    private Thread serverThread;
+    private Object stub;
+    private Method query;
+    private Method close;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+      Object record = Examples.invoke(
+          Examples.method("Step3_DNS_Message$Record", "address", String.class, int.class, InetAddress.class),
+          null, STUB_NAME, 300, InetAddress.getByName("192.0.2.10"));
+      Object server = Examples.create(Examples.constructor("Step3_DNS_Local_Server"));
+      Examples.invoke(Examples.method("Step3_DNS_Local_Server", "add", record.getClass()), server, record);
+
+      channel = DatagramChannel.open();
+      channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      Method serve = Examples.method("Step3_DNS_Local_Server", "serve", DatagramChannel.class);
+      serverThread = new Thread(() -> {
+        try {
+          Examples.invoke(serve, server, channel);
+        } catch (Exception e) {
+          // channel closed by stop()
+        }
+      }, "dns-server");
+      serverThread.setDaemon(true);
+      serverThread.start();
+
+      stub = Examples.create(
+          Examples.constructor("Step3_DNS_Stub_Resolver", SocketAddress.class, long.class, int.class),
+          channel.getLocalAddress(), 1000L, 3);
+      query = Examples.method("Step3_DNS_Stub_Resolver", "query", String.class, int.class);
+      close = Examples.method("Step3_DNS_Stub_Resolver", "close");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+      Examples.invoke(close, stub);
+      channel.close();
+      serverThread.join(1000);
+    }
+  }
+
+  @Benchmark
+  public Object system(SystemResolver resolver) throws Exception {
+    return Examples.invoke(resolver.resolve, null, resolver.host);
+  }
+
+  @Benchmark
+  public Object stub(StubResolver resolver) throws Exception {
+    return ((CompletableFuture<?>) Examples.invoke(resolver.query, resolver.stub, STUB_NAME, TYPE_A)).get();
+  }
+}
@@ -0,0 +1,154 @@
+package edu.ausas.cse330.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the two engines of {@code Step1_TCP_Server} running the same echo
+ * protocol: the selector reactor ({@code nio}) and one virtual thread per
+ * connection ({@code virtual}).
+ *
+ * <p>Each benchmark thread keeps one active connection and measures request
+ * round trips on it. The {@code idleConnections} parameter holds extra
+ * connections open that never send anything, to show what a large idle
+ * population costs each engine. The heap in use after those connections are
+ * opened is printed during setup.</p>
+ * <pre>
+ * ulimit -n 131072      # two descriptors per idle connection: client and server side
+ * java -jar benchmarks/target/benchmarks.jar TcpServerBenchmark -t 8
+ * </pre>
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TcpServerBenchmark {
+
+  /** Bytes sent and echoed per request */
+  static final int MESSAGE_SIZE = 64;
+
+  /** Idle connections opened from each loopback source address */
+  static final int IDLE_PER_SOURCE = 20_000;
+
+  /** The server and its idle connections, shared by all benchmark threads */
+  @State(Scope.Benchmark)
+  public static class Server {
+
+    /** {@code nio} for the reactor, {@code virtual} for a virtual thread per connection */
+    @Param({"nio", "virtual"})
+    String engine;
+
+    /** Connections opened before measuring that stay silent */
+    @Param({"0", "10000", "50000"})
+    int idleConnections;
+
+    int port;
+    private Object server;
+    private Method close;
+    private final List<Socket> idle = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+      server = Examples.invoke(Examples.method("Step1_TCP_Server", "engine", String.class), null, engine);
+      Object protocol = Examples.invoke(
+          Examples.method("Step1_TCP_Server", "protocol", String.class), null, "echo");
+      port = (Integer) Examples.invoke(
+          Examples.method("Step1_TCP_Server$Engine", "start", int.class, Supplier.class),
+          server, 0, protocol);
+      close = Examples.method("Step1_TCP_Server$Engine", "close");
+
+      // One loopback source address has about 28,000 ephemeral ports on Linux, so
+      // large populations connect from 127.0.0.2, 127.0.0.3, ... as well
+      for (int i = 0; i < idleConnections; i++) {
+        Socket socket = new Socket();
+        socket.bind(new InetSocketAddress("127.0.0." + (1 + i / IDLE_PER_SOURCE), 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        idle.add(socket);
+      }
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      System.out.printf("%n%s engine with %d idle connections: %d MB heap in use, %d live threads%n",
+          engine, idleConnections, (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+          Thread.activeCount());
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+      for (Socket socket : idle) {
+        socket.close();
+      }
+      Examples.invoke(close, server);
+    }
+  }
+
+  /** One active connection per benchmark thread */
+  @State(Scope.Thread)
+  public static class Client {
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final byte[] request = new byte[MESSAGE_SIZE];
+    private final byte[] reply = new byte[MESSAGE_SIZE];
+
+    @Setup(Level.Trial)
+    public void open(Server server) throws Exception {
+      socket = new Socket();
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress("127.0.0.1", server.port));
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+      socket.close();
+    }
+
+    byte[] roundTrip() throws Exception {
+      out.write(request);
+      int read = 0;
+      while (read < reply.length) {
+        int n = in.read(reply, read, reply.length - read);
+        if (n < 0) {
+          throw new IllegalStateException("server closed the connection");
+        }
+        read += n;
+      }
+      return reply;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public byte[] throughput(Client client) throws Exception {
+    return client.roundTrip();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[] latency(Client client) throws Exception {
+    return client.roundTrip();
+  }
+}
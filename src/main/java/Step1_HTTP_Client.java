@@ -0,0 +1,559 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Step 1B: HTTP/1.1 Client with Persistent Connections
+ *
+ * {@link Step1_SocketToGoogle} opens a new TCP connection for every request and
+ * can only tell that the response has ended when the server closes the socket.
+ * This class parses the response properly, so the same connection can carry
+ * request after request without paying for a new TCP handshake each time.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Keep-Alive</b> - HTTP/1.1 connections stay open after a response unless either side says "Connection: close"</li>
+ *   <li><b>Connection Pooling</b> - Idle connections are kept per host and port and reused for the next request</li>
+ *   <li><b>Message Framing</b> - The body length comes from Content-Length, or from chunked transfer encoding</li>
+ *   <li><b>Pipelining</b> - Several requests are written back-to-back before the first response is read</li>
+ *   <li><b>Timeouts</b> - Connecting and every read are bounded, so a silent server cannot hang the client</li>
+ * </ul>
+ *
+ * <h2>How It Works:</h2>
+ * <ol>
+ *   <li>{@link #get(String, int, String)} takes an idle connection from the pool, or opens one</li>
+ *   <li>The request is written and the status line and headers are parsed</li>
+ *   <li>The body is returned as a stream that stops exactly at the end of the response</li>
+ *   <li>Once the body has been read to the end, the connection goes back to the pool</li>
+ * </ol>
+ *
+ * @see Step1_SocketToGoogle
+ */
+class Step1_HTTP_Client implements AutoCloseable {
+
+  /**
+   * A parsed response. The body must be read to the end (or closed) before the
+   * connection it arrived on can be reused.
+   *
+   * @param status the status code, e.g. 200
+   * @param reason the reason phrase, e.g. "OK"
+   * @param headers header values by lower-case name
+   * @param body the response body, framed by length or chunks
+   */
+  record Response(int status, String reason, Map<String, List<String>> headers, InputStream body) {
+
+    /** @return the first value of a header, or null */
+    String header(String name) {
+      List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+      return values == null ? null : values.get(0);
+    }
+
+    /** @return the whole body; the connection is released afterwards */
+    byte[] readBody() throws IOException {
+      try (InputStream in = body) {
+        return in.readAllBytes();
+      }
+    }
+  }
+
+  /** One open TCP connection */
+  private static final class Connection {
+    final String key;
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+    boolean reused;
+    boolean keepAlive;
+
+    Connection(String key, Socket socket) throws IOException {
+      this.key = key;
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already broken
+      }
+    }
+  }
+
+  /** Idle connections by "host:port", most recently used last */
+  private final Map<String, ArrayDeque<Connection>> idle = new HashMap<>();
+
+  /** Maximum idle connections kept per host */
+  private final int maxIdlePerHost;
+
+  /** Connect timeout in milliseconds */
+  private final int connectTimeoutMillis;
+
+  /** Read timeout in milliseconds, applied to every blocking read */
+  private final int readTimeoutMillis;
+
+  /** Number of TCP connections opened so far */
+  private long connectionsOpened;
+
+  /**
+   * Creates a client.
+   *
+   * @param maxIdlePerHost maximum idle connections kept per host and port
+   * @param connectTimeoutMillis how long to wait for a TCP connection
+   * @param readTimeoutMillis how long any single read may block
+   */
+  Step1_HTTP_Client(int maxIdlePerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.maxIdlePerHost = maxIdlePerHost;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * Sends a GET request and returns the response with a streaming body.
+   *
+   * <p>If a pooled connection turns out to have been closed by the server, the
+   * request is retried once on a new connection (GET is safe to repeat).</p>
+   *
+   * @param host the server name
+   * @param port the server port
+   * @param path the request target, e.g. "/"
+   * @return the response; read its body to the end to release the connection
+   * @throws IOException if the request fails or times out
+   */
+  Response get(String host, int port, String path) throws IOException {
+    Connection connection = acquire(host, port);
+    try {
+      writeRequest(connection, host, path);
+      connection.out.flush();
+      return readResponse(connection);
+    } catch (SocketTimeoutException e) {
+      // The server is slow, not gone: retrying would only double the wait
+      connection.close();
+      throw e;
+    } catch (IOException e) {
+      connection.close();
+      if (!connection.reused) {
+        throw e;
+      }
+      // A stale pooled connection: start again on a fresh one
+      connection = open(host, port);
+      try {
+        writeRequest(connection, host, path);
+        connection.out.flush();
+        return readResponse(connection);
+      } catch (IOException retryFailure) {
+        connection.close();
+        throw retryFailure;
+      }
+    }
+  }
+
+  /**
+   * Sends several GET requests on one connection without waiting for responses
+   * in between, then reads the responses, which arrive in request order.
+   *
+   * @param host the server name
+   * @param port the server port
+   * @param paths the request targets
+   * @return the response bodies, in request order
+   * @throws IOException if any request fails or times out
+   */
+  List<byte[]> pipeline(String host, int port, List<String> paths) throws IOException {
+    Connection connection = acquire(host, port);
+    try {
+      for (String path : paths) {
+        writeRequest(connection, host, path);
+      }
+      connection.out.flush();
+
+      List<byte[]> bodies = new ArrayList<>(paths.size());
+      for (int i = 0; i < paths.size(); i++) {
+        Response response = readResponse(connection, false);
+        bodies.add(response.body().readAllBytes());
+        if (!connection.keepAlive && i + 1 < paths.size()) {
+          throw new EOFException("server closed the connection after " + (i + 1) + " responses");
+        }
+      }
+      release(connection, connection.keepAlive);
+      return bodies;
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of TCP connections opened since this client was created
+   */
+  synchronized long connectionsOpened() {
+    return connectionsOpened;
+  }
+
+  /**
+   * Closes every idle connection.
+   */
+  @Override
+  public synchronized void close() {
+    idle.values().forEach(connections -> connections.forEach(Connection::close));
+    idle.clear();
+  }
+
+  /**
+   * Takes an idle connection for {@code host:port} or opens a new one.
+   */
+  private Connection acquire(String host, int port) throws IOException {
+    synchronized (this) {
+      ArrayDeque<Connection> connections = idle.get(host + ":" + port);
+      Connection connection = connections == null ? null : connections.pollLast();
+      if (connection != null) {
+        connection.reused = true;
+        return connection;
+      }
+    }
+    return open(host, port);
+  }
+
+  /**
+   * Opens a new TCP connection with the configured timeouts.
+   */
+  private Connection open(String host, int port) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+      socket.setSoTimeout(readTimeoutMillis);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    synchronized (this) {
+      connectionsOpened++;
+    }
+    return new Connection(host + ":" + port, socket);
+  }
+
+  /**
+   * Returns a connection to the pool, or closes it if it cannot be reused.
+   */
+  private synchronized void release(Connection connection, boolean reusable) {
+    ArrayDeque<Connection> connections = idle.computeIfAbsent(connection.key, k -> new ArrayDeque<>());
+    if (reusable && connections.size() < maxIdlePerHost) {
+      connections.addLast(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  /**
+   * Writes one GET request (without flushing).
+   */
+  private static void writeRequest(Connection connection, String host, String path) throws IOException {
+    connection.out.write(("GET " + path + " HTTP/1.1\r\n"
+        + "Host: " + host + "\r\n"
+        + "\r\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * Reads a response whose body releases the connection when finished.
+   */
+  private Response readResponse(Connection connection) throws IOException {
+    return readResponse(connection, true);
+  }
+
+  /**
+   * Parses the status line and headers and wraps the body in the right framing.
+   *
+   * @param releaseOnEnd whether reaching the end of the body returns the connection to the pool
+   */
+  private Response readResponse(Connection connection, boolean releaseOnEnd) throws IOException {
+    String statusLine;
+    do {
+      statusLine = readLine(connection.in);
+    } while (statusLine.isEmpty());
+
+    // e.g. "HTTP/1.1 200 OK"
+    String[] parts = statusLine.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new ProtocolException("bad status line: " + statusLine);
+    }
+    int status;
+    try {
+      status = Integer.parseInt(parts[1]);
+    } catch (NumberFormatException e) {
+      throw new ProtocolException("bad status code: " + statusLine);
+    }
+    String reason = parts.length > 2 ? parts[2] : "";
+
+    Map<String, List<String>> headers = new LinkedHashMap<>();
+    for (String line = readLine(connection.in); !line.isEmpty(); line = readLine(connection.in)) {
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw new ProtocolException("bad header line: " + line);
+      }
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+      headers.computeIfAbsent(name, n -> new ArrayList<>()).add(line.substring(colon + 1).trim());
+    }
+
+    // Interim 1xx responses have no body and are followed by the real response
+    if (status >= 100 && status < 200) {
+      return readResponse(connection, releaseOnEnd);
+    }
+
+    connection.keepAlive = parts[0].equals("HTTP/1.1") && !hasToken(headers, "connection", "close");
+    String transferEncoding = first(headers, "transfer-encoding");
+    long contentLength = contentLength(headers);
+
+    InputStream body;
+    if (status == 204 || status == 304) {
+      body = new FixedLengthBody(connection, 0, releaseOnEnd);
+    } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).endsWith("chunked")) {
+      body = new ChunkedBody(connection, releaseOnEnd);
+    } else if (contentLength >= 0) {
+      body = new FixedLengthBody(connection, contentLength, releaseOnEnd);
+    } else {
+      // No framing: the body ends when the server closes, so the connection cannot be reused
+      connection.keepAlive = false;
+      body = new UntilCloseBody(connection);
+    }
+    return new Response(status, reason, headers, body);
+  }
+
+  /**
+   * Reads one CRLF-terminated line as ISO-8859-1 (the header character set).
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        throw new EOFException("connection closed by server");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  /**
+   * Reads the Content-Length header. Repeated headers (or a comma-separated list)
+   * are allowed only if every value is the same, since otherwise it is unclear
+   * where the body ends.
+   *
+   * @return the body length, or -1 if there is no Content-Length
+   * @throws ProtocolException if a value is not a non-negative number or the values differ
+   */
+  private static long contentLength(Map<String, List<String>> headers) throws ProtocolException {
+    List<String> values = headers.get("content-length");
+    if (values == null) {
+      return -1;
+    }
+    long length = -1;
+    for (String value : values) {
+      for (String part : value.split(",")) {
+        long parsed;
+        try {
+          parsed = Long.parseLong(part.trim());
+        } catch (NumberFormatException e) {
+          throw new ProtocolException("bad Content-Length: " + value);
+        }
+        if (parsed < 0 || (length >= 0 && parsed != length)) {
+          throw new ProtocolException("bad Content-Length: " + String.join(", ", values));
+        }
+        length = parsed;
+      }
+    }
+    return length;
+  }
+
+  private static String first(Map<String, List<String>> headers, String name) {
+    List<String> values = headers.get(name);
+    return values == null ? null : values.get(0);
+  }
+
+  private static boolean hasToken(Map<String, List<String>> headers, String name, String token) {
+    List<String> values = headers.get(name);
+    if (values == null) {
+      return false;
+    }
+    for (String value : values) {
+      for (String part : value.split(",")) {
+        if (part.trim().equalsIgnoreCase(token)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Common part of the framed bodies: hands the connection back once the body ends.
+   */
+  private abstract class FramedBody extends InputStream {
+    final Connection connection;
+    private final boolean releaseOnEnd;
+    private final byte[] one = new byte[1];
+    private boolean done;
+
+    FramedBody(Connection connection, boolean releaseOnEnd) {
+      this.connection = connection;
+      this.releaseOnEnd = releaseOnEnd;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    /**
+     * Called once, when the body ends or is closed.
+     *
+     * @param complete true if every body byte was read, so the next response starts on the wire
+     */
+    void finish(boolean complete) {
+      if (done) {
+        return;
+      }
+      done = true;
+      if (releaseOnEnd) {
+        release(connection, connection.keepAlive && complete);
+      } else if (!complete) {
+        connection.close();
+      }
+    }
+  }
+
+  /**
+   * Body of exactly {@code length} bytes.
+   */
+  private final class FixedLengthBody extends FramedBody {
+    private long remaining;
+
+    FixedLengthBody(Connection connection, long length, boolean releaseOnEnd) {
+      super(connection, releaseOnEnd);
+      this.remaining = length;
+      if (length == 0) {
+        finish(true);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int n = connection.in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0) {
+        finish(false);
+        throw new EOFException("connection closed with " + remaining + " body bytes missing");
+      }
+      remaining -= n;
+      if (remaining == 0) {
+        finish(true);
+      }
+      return n;
+    }
+
+    @Override
+    public void close() {
+      // Closing early leaves unread bytes on the wire, so the connection cannot be reused
+      finish(remaining == 0);
+    }
+  }
+
+  /**
+   * Body sent with chunked transfer encoding: hex size line, data, CRLF, ..., 0, trailers.
+   */
+  private final class ChunkedBody extends FramedBody {
+    private long chunkRemaining;
+    private boolean finished;
+
+    ChunkedBody(Connection connection, boolean releaseOnEnd) {
+      super(connection, releaseOnEnd);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (finished) {
+        return -1;
+      }
+      if (chunkRemaining == 0) {
+        String sizeLine = readLine(connection.in);
+        int semicolon = sizeLine.indexOf(';');   // chunk extensions are ignored
+        try {
+          chunkRemaining = Long.parseLong(
+              (semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+        } catch (NumberFormatException e) {
+          finish(false);
+          throw new ProtocolException("bad chunk size: " + sizeLine);
+        }
+        if (chunkRemaining == 0) {
+          // Last chunk: skip any trailer headers up to the blank line
+          while (!readLine(connection.in).isEmpty()) {
+            // trailer ignored
+          }
+          finished = true;
+          finish(true);
+          return -1;
+        }
+      }
+      int n = connection.in.read(b, off, (int) Math.min(len, chunkRemaining));
+      if (n < 0) {
+        finish(false);
+        throw new EOFException("connection closed inside a chunk");
+      }
+      chunkRemaining -= n;
+      if (chunkRemaining == 0 && !readLine(connection.in).isEmpty()) {
+        finish(false);
+        throw new ProtocolException("missing CRLF after chunk");
+      }
+      return n;
+    }
+
+    @Override
+    public void close() {
+      finish(finished);
+    }
+  }
+
+  /**
+   * Body without framing, which ends when the server closes the connection.
+   */
+  private static final class UntilCloseBody extends InputStream {
+    private final Connection connection;
+
+    UntilCloseBody(Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return connection.in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return connection.in.read(b, off, len);
+    }
+
+    @Override
+    public void close() {
+      connection.close();
+    }
+  }
+}
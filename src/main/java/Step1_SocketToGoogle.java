@@ -26,6 +26,12 @@ import java.net.Socket;
  *   <li>Reads and prints the HTTP response line by line</li>
  * </ol>
  *
+ * <h2>Keep-Alive Mode:</h2>
+ * <p>Run with {@code keepalive [host] [port] [path]} to fetch the same page several
+ * times through {@link Step1_HTTP_Client}. The client reads each response by its
+ * Content-Length or chunked framing instead of waiting for the server to close,
+ * so every request after the first reuses the same TCP connection.</p>
+ *
  * <h2>Learning Objectives:</h2>
  * <ul>
  *   <li>Understand how to create a TCP socket connection in Java</li>
@@ -33,22 +39,34 @@ import java.net.Socket;
  *   <li>See the structure of an HTTP request and response</li>
  * </ul>
  *
+ * @see Step1_HTTP_Client
  * @see java.net.Socket
  * @see java.io.OutputStream
  * @see java.io.BufferedReader
  */
 public class Step1_SocketToGoogle {
 
+  /** Number of requests sent in keep-alive mode */
+  private static final int KEEPALIVE_REQUESTS = 5;
+
   /**
    * Main entry point that demonstrates a basic TCP socket connection.
    *
    * Creates a socket to Google's web server, sends an HTTP GET request,
    * and prints the response to the console.
    *
-   * @param args command line arguments (not used)
+   * @param args {@code keepalive [host] [port] [path]} for keep-alive mode, otherwise not used
    */
   public static void main(String[] args) {
 
+    if (args.length > 0 && args[0].equals("keepalive")) {
+      String host = args.length > 1 ? args[1] : "www.google.com";
+      int port = args.length > 2 ? Integer.parseInt(args[2]) : 80;
+      String path = args.length > 3 ? args[3] : "/";
+      fetchWithKeepAlive(host, port, path);
+      return;
+    }
+
     try {
       // Create a TCP socket connection to Google's web server on port 80 (HTTP)
       // This performs DNS resolution and establishes a TCP three-way handshake
@@ -72,4 +90,29 @@ public class Step1_SocketToGoogle {
       e.printStackTrace();
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Fetches the same page several times over pooled connections and reports
+   * how many TCP connections were needed.
+   *
+   * @param host the web server
+   * @param port the web server's port
+   * @param path the page to fetch
+   */
+  static void fetchWithKeepAlive(String host, int port, String path) {
+
+    try (Step1_HTTP_Client client = new Step1_HTTP_Client(4, 5000, 10000)) {
+      for (int i = 1; i <= KEEPALIVE_REQUESTS; i++) {
+        long start = System.nanoTime();
+        Step1_HTTP_Client.Response response = client.get(host, port, path);
+        byte[] body = response.readBody();
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(i + ". " + response.status() + " " + response.reason() + ", "
+            + body.length + " body bytes, " + micros + " us, connections opened so far: "
+            + client.connectionsOpened());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
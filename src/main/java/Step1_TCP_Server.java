@@ -0,0 +1,528 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Step 1C: TCP Server with Two Interchangeable Engines
+ *
+ * {@link Step1_SocketToGoogle} is a TCP client; this class is the other end of
+ * the connection. It serves a simple protocol (echo, or a minimal HTTP
+ * responder) using either of two very different ways of handling many
+ * connections, so the two can be compared on the same workload.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>ServerSocket / accept()</b> - A listening socket produces one new socket per client connection</li>
+ *   <li><b>Reactor Pattern</b> - One thread and a {@link Selector} watch every connection and only act on
+ *       the ones that are ready</li>
+ *   <li><b>Thread per Connection</b> - Each connection gets a (virtual) thread that simply blocks on reads</li>
+ *   <li><b>Protocol / Engine Separation</b> - The same {@link Session} code runs on both engines</li>
+ *   <li><b>Idle Connection Cost</b> - The reactor keeps no buffers for idle connections; a thread
+ *       per connection always holds its stack and buffers</li>
+ *   <li><b>Idle Reaping</b> - Connections silent for {@code -Dtcp.idleMillis} (default 60 s, 0 = never)
+ *       are closed: the reactor uses a {@link Step4_Timer_Wheel}, the threads a read timeout</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <pre>
+ * java Step1_TCP_Server nio http 8080         # reactor engine, HTTP responder
+ * java Step1_TCP_Server virtual echo 8080     # virtual-thread engine, echo
+ * java Step1_SocketToGoogle keepalive 127.0.0.1 8080 /
+ * </pre>
+ *
+ * @see Step1_SocketToGoogle
+ * @see Step1_HTTP_Client
+ */
+public class Step1_TCP_Server {
+
+  /** Default listening port */
+  static final int DEFAULT_PORT = 8080;
+
+  /** Size of the read and write buffers */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Connections that send nothing for this long are closed; 0 keeps them forever */
+  static final long IDLE_TIMEOUT_MS = Long.getLong("tcp.idleMillis", 60_000);
+
+  /**
+   * Protocol state for one connection. Both engines call it the same way.
+   */
+  interface Session {
+
+    /**
+     * Consumes as much complete input as possible and appends replies.
+     *
+     * @param in received bytes; unconsumed bytes (a partial message) are kept for the next call
+     * @param out buffer to write replies into
+     * @return false if the connection should be closed once {@code out} has been sent
+     */
+    boolean process(ByteBuffer in, ByteBuffer out);
+  }
+
+  /**
+   * A way of running the server. Engines are started with a protocol and stopped with {@link #close()}.
+   */
+  interface Engine extends AutoCloseable {
+
+    /**
+     * Binds {@code port} and starts serving in background threads.
+     *
+     * @param port the TCP port to listen on; 0 picks a free port
+     * @param protocol creates the session for each new connection
+     * @return the port actually bound
+     * @throws IOException if the port cannot be bound
+     */
+    int start(int port, Supplier<Session> protocol) throws IOException;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  /**
+   * Echo protocol: every byte received is sent straight back.
+   */
+  static Session echo() {
+    return (in, out) -> {
+      int n = Math.min(in.remaining(), out.remaining());
+      out.put(out.position(), in, in.position(), n);
+      out.position(out.position() + n);
+      in.position(in.position() + n);
+      return true;
+    };
+  }
+
+  /**
+   * Minimal HTTP/1.1 responder: answers every request with a fixed page,
+   * keeping the connection open unless the client sends "Connection: close".
+   * Request bodies are not supported.
+   */
+  static Session http() {
+    byte[] body = "Hello from Step1_TCP_Server\n".getBytes(StandardCharsets.US_ASCII);
+    byte[] keepAlive = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+        + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] close = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nConnection: close\r\n"
+        + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    return (in, out) -> {
+      // Answer every complete request (headers end with an empty line) in the buffer
+      while (true) {
+        int end = headerEnd(in);
+        if (end < 0) {
+          return true;
+        }
+        if (out.remaining() < close.length + body.length) {
+          return true;   // no room for the reply yet; the request stays in 'in'
+        }
+        boolean wantsClose = containsIgnoreCase(in, end, "connection: close");
+        in.position(end);
+        out.put(wantsClose ? close : keepAlive).put(body);
+        if (wantsClose) {
+          return false;
+        }
+      }
+    };
+  }
+
+  /**
+   * Reactor engine: a single thread multiplexes every connection with a {@link Selector}.
+   *
+   * <p>Reads go into one shared buffer. A connection only gets buffers of its
+   * own while it has a partial request or an unsent reply, so a connection that
+   * is idle costs little more than its socket.</p>
+   *
+   * <p>Each connection has one idle timer in a {@link Step4_Timer_Wheel}. Activity
+   * only records the time; the timer is not moved. When it fires, it either
+   * closes the connection or re-arms itself for the rest of the idle period, so
+   * a busy connection costs one timer operation per idle period rather than one
+   * per request.</p>
+   */
+  static final class Reactor implements Engine {
+
+    /** Resolution of the idle timers */
+    private static final long TICK_MILLIS = 100;
+
+    /** Buckets in the timer wheel; with 100 ms ticks one turn is about 100 s */
+    private static final int WHEEL_SLOTS = 1024;
+
+    /** Per-connection state attached to its selection key */
+    private static final class Connection {
+      final Session session;
+      ByteBuffer pendingIn;
+      ByteBuffer pendingOut;
+      boolean closeAfterWrite;
+
+      /** {@link System#nanoTime()} of the last read or write */
+      long lastActive = System.nanoTime();
+
+      Connection(Session session) {
+        this.session = session;
+      }
+    }
+
+    private final long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+    private final Step4_Timer_Wheel wheel =
+        new Step4_Timer_Wheel(WHEEL_SLOTS, TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), 1024);
+    private final Step4_Timer_Wheel.Expiry onIdle = this::onIdle;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+
+    @Override
+    public int start(int port, Supplier<Session> protocol) throws IOException {
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port), 1024);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+
+      thread = new Thread(() -> run(protocol), "tcp-reactor");
+      thread.start();
+      return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+      thread.interrupt();
+      selector.wakeup();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (SelectionKey key : selector.keys()) {
+        key.channel().close();
+      }
+      selector.close();
+    }
+
+    private void run(Supplier<Session> protocol) {
+      ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          selector.select(wheel.selectTimeoutMillis(System.nanoTime()));
+          for (SelectionKey key : selector.selectedKeys()) {
+            try {
+              if (!key.isValid()) {
+                continue;
+              }
+              if (key.isAcceptable()) {
+                accept(protocol);
+              } else {
+                if (key.isWritable()) {
+                  flushPending(key, in, out);
+                }
+                if (key.isValid() && key.isReadable()) {
+                  read(key, in, out);
+                }
+              }
+            } catch (IOException e) {
+              // One broken connection must not stop the others
+              key.channel().close();
+            }
+          }
+          selector.selectedKeys().clear();
+          wheel.advance(System.nanoTime(), onIdle);
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        if (!Thread.currentThread().isInterrupted()) {
+          System.out.println("REACTOR failed: " + e);
+        }
+      }
+    }
+
+    private void accept(Supplier<Session> protocol) throws IOException {
+      SocketChannel client;
+      while ((client = server.accept()) != null) {
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = client.register(selector, SelectionKey.OP_READ, new Connection(protocol.get()));
+        if (idleNanos > 0) {
+          wheel.schedule(idleNanos, key);
+        }
+      }
+    }
+
+    /**
+     * Idle timer of a connection fired: close it if it really has been idle,
+     * otherwise wait for the rest of the period since its last activity.
+     */
+    private void onIdle(Object attachment) {
+      SelectionKey key = (SelectionKey) attachment;
+      if (!key.isValid()) {
+        return;   // already closed
+      }
+      long idle = System.nanoTime() - ((Connection) key.attachment()).lastActive;
+      if (idle < idleNanos) {
+        wheel.schedule(idleNanos - idle, key);
+        return;
+      }
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+
+    private void read(SelectionKey key, ByteBuffer in, ByteBuffer out) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+
+      // Start from any partial request left over from the last read
+      restorePending(connection, in);
+      if (!in.hasRemaining()) {
+        channel.close();   // a single request larger than the buffer
+        return;
+      }
+      if (channel.read(in) < 0) {
+        channel.close();
+        return;
+      }
+      connection.lastActive = System.nanoTime();
+      in.flip();
+      drain(key, in, out);
+    }
+
+    /**
+     * Runs the session over the bytes in {@code in} and writes its replies,
+     * keeping whatever cannot be handled yet in the connection's own buffers.
+     */
+    private void drain(SelectionKey key, ByteBuffer in, ByteBuffer out) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+
+      boolean keepOpen = true;
+      while (keepOpen && in.hasRemaining() && connection.pendingOut == null) {
+        out.clear();
+        int before = in.remaining();
+        keepOpen = connection.session.process(in, out);
+        out.flip();
+        if (!out.hasRemaining() && in.remaining() == before) {
+          break;   // need more input
+        }
+        channel.write(out);
+        if (out.hasRemaining()) {
+          // Socket buffer full: keep the rest and wait until the socket is writable
+          connection.pendingOut = ByteBuffer.allocate(out.remaining()).put(out).flip();
+          key.interestOps(SelectionKey.OP_WRITE);
+        }
+      }
+
+      if (in.hasRemaining() && keepOpen) {
+        connection.pendingIn = ByteBuffer.allocate(BUFFER_SIZE).put(in);
+      }
+      if (!keepOpen) {
+        if (connection.pendingOut == null) {
+          channel.close();
+        } else {
+          connection.closeAfterWrite = true;
+        }
+      }
+    }
+
+    private void flushPending(SelectionKey key, ByteBuffer in, ByteBuffer out) throws IOException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      Connection connection = (Connection) key.attachment();
+      channel.write(connection.pendingOut);
+      connection.lastActive = System.nanoTime();
+      if (connection.pendingOut.hasRemaining()) {
+        return;
+      }
+      connection.pendingOut = null;
+      if (connection.closeAfterWrite) {
+        channel.close();
+        return;
+      }
+      key.interestOps(SelectionKey.OP_READ);
+
+      // Requests that arrived while we were blocked on writing are already buffered
+      if (connection.pendingIn != null) {
+        restorePending(connection, in);
+        in.flip();
+        drain(key, in, out);
+      }
+    }
+
+    /**
+     * Clears the shared read buffer and copies the connection's partial request into it.
+     */
+    private static void restorePending(Connection connection, ByteBuffer in) {
+      in.clear();
+      if (connection.pendingIn != null) {
+        in.put(connection.pendingIn.flip());
+        connection.pendingIn = null;
+      }
+    }
+  }
+
+  /**
+   * Thread-per-connection engine: every accepted socket is served by its own
+   * virtual thread using plain blocking streams. Idle connections are closed by
+   * a read timeout.
+   */
+  static final class VirtualThreads implements Engine {
+
+    private ServerSocket server;
+    private ExecutorService executor;
+    private Thread acceptor;
+
+    @Override
+    public int start(int port, Supplier<Session> protocol) throws IOException {
+      server = new ServerSocket();
+      server.bind(new InetSocketAddress(port), 1024);
+      executor = Executors.newVirtualThreadPerTaskExecutor();
+
+      // A platform thread, so the JVM stays up while the server runs
+      acceptor = new Thread(() -> {
+        try {
+          while (true) {
+            Socket client = server.accept();
+            executor.execute(() -> serve(client, protocol.get()));
+          }
+        } catch (IOException e) {
+          // server socket closed
+        }
+      }, "tcp-acceptor");
+      acceptor.start();
+      return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+      executor.shutdownNow();
+    }
+
+    private static void serve(Socket client, Session session) {
+      byte[] inArray = new byte[BUFFER_SIZE];
+      byte[] outArray = new byte[BUFFER_SIZE];
+      ByteBuffer in = ByteBuffer.wrap(inArray);
+      ByteBuffer out = ByteBuffer.wrap(outArray);
+
+      try (client) {
+        client.setTcpNoDelay(true);
+        client.setSoTimeout((int) IDLE_TIMEOUT_MS);
+        InputStream input = client.getInputStream();
+        OutputStream output = client.getOutputStream();
+
+        boolean keepOpen = true;
+        while (keepOpen) {
+          // 'in' is in write mode here; blocking read appends after any partial request
+          int n = input.read(inArray, in.position(), in.remaining());
+          if (n < 0) {
+            return;
+          }
+          in.position(in.position() + n).flip();
+
+          while (keepOpen && in.hasRemaining()) {
+            out.clear();
+            int before = in.remaining();
+            keepOpen = session.process(in, out);
+            if (out.position() == 0 && in.remaining() == before) {
+              break;   // need more input
+            }
+            output.write(outArray, 0, out.position());
+          }
+          in.compact();
+          if (!in.hasRemaining()) {
+            return;   // a single request larger than the buffer
+          }
+        }
+      } catch (IOException e) {
+        // client went away, idle for too long, or the server is shutting down
+      }
+    }
+  }
+
+  /**
+   * Returns the position just after the first blank line (end of HTTP headers), or -1.
+   */
+  private static int headerEnd(ByteBuffer in) {
+    for (int i = in.position(); i + 3 < in.limit(); i++) {
+      if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+        return i + 4;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Case-insensitive search for an ASCII string between {@code in.position()} and {@code end}.
+   */
+  private static boolean containsIgnoreCase(ByteBuffer in, int end, String text) {
+    outer:
+    for (int i = in.position(); i + text.length() <= end; i++) {
+      for (int j = 0; j < text.length(); j++) {
+        if (Character.toLowerCase((char) in.get(i + j)) != text.charAt(j)) {
+          continue outer;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Creates the engine with the given name.
+   *
+   * @param name {@code nio} or {@code virtual}
+   * @return a new, unstarted engine
+   */
+  static Engine engine(String name) {
+    return switch (name) {
+      case "nio" -> new Reactor();
+      case "virtual" -> new VirtualThreads();
+      default -> throw new IllegalArgumentException("unknown engine: " + name);
+    };
+  }
+
+  /**
+   * Creates the protocol with the given name.
+   *
+   * @param name {@code echo} or {@code http}
+   * @return a factory for per-connection sessions
+   */
+  static Supplier<Session> protocol(String name) {
+    return switch (name) {
+      case "echo" -> Step1_TCP_Server::echo;
+      case "http" -> Step1_TCP_Server::http;
+      default -> throw new IllegalArgumentException("unknown protocol: " + name);
+    };
+  }
+
+  /**
+   * Runs the server until the process is stopped.
+   *
+   * <p>The engine defaults to {@code nio}: with many idle connections it needs a
+   * small fraction of the heap the virtual-thread engine does, at the same
+   * throughput (see the TCP server engine results in the README).</p>
+   *
+   * @param args {@code [nio|virtual] [echo|http] [port]}
+   * @throws IOException if the port cannot be bound
+   */
+  public static void main(String[] args) throws IOException {
+    String engineName = args.length > 0 ? args[0] : "nio";
+    String protocolName = args.length > 1 ? args[1] : "http";
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+
+    Engine engine = engine(engineName);
+    int bound = engine.start(port, protocol(protocolName));
+    System.out.println("TCP SERVER (" + engineName + ", " + protocolName + ") listening on port " + bound);
+  }
+}
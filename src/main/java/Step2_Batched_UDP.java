@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Step 2D: Batched Datagram Sending and Receiving
+ *
+ * {@link Step2_SendPacket_UDP} creates a new socket and a new packet object for
+ * the one message it sends. At high packet rates that per-datagram set-up, not
+ * the network, becomes the bottleneck. This class moves many datagrams per
+ * call instead, over one channel and one block of memory that are reused for
+ * the whole run.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Batching</b> - Messages are queued and sent together, so the cost of waking up and
+ *       switching into the kernel is shared by the whole batch</li>
+ *   <li><b>Flush Deadline</b> - A batch that is not full is still sent once its first message has
+ *       waited long enough, which bounds the extra latency batching adds. The sending loop checks
+ *       the deadline itself, so no timer thread or task is involved per batch</li>
+ *   <li><b>Drain on Readiness</b> - The receiver waits once, then takes every datagram that is
+ *       already queued in the socket buffer before waiting again</li>
+ *   <li><b>Preallocated Slots</b> - Each batch slot is a fixed slice of one direct buffer, so no
+ *       object is created per datagram</li>
+ * </ul>
+ *
+ * <p>Java has no equivalent of Linux {@code sendmmsg}/{@code recvmmsg}, and a
+ * gathering write on a {@link DatagramChannel} joins its buffers into a single
+ * datagram. A batch is therefore sent with one {@code send} per datagram, but
+ * back to back from memory that is already in place.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <ol>
+ *   <li>{@code java Step2_Batched_UDP receive [port]}</li>
+ *   <li>{@code java Step2_Batched_UDP send [count] [size] [host] [port]}</li>
+ * </ol>
+ *
+ * @see Step2_SendPacket_UDP
+ * @see Step2_ReceivePacket_UDP
+ */
+public class Step2_Batched_UDP {
+
+  /** Largest UDP payload that fits a 1500-byte Ethernet frame (1500 - 20 IPv4 - 8 UDP) */
+  static final int MAX_MESSAGE = 1472;
+
+  /** Default number of datagrams per batch */
+  static final int DEFAULT_BATCH = 64;
+
+  /** Default flush deadline, in microseconds */
+  static final long DEFAULT_DEADLINE_MICROS = 200;
+
+  /** Port used by the example */
+  static final int PORT = 1024;
+
+  /**
+   * Queues outgoing datagrams and sends them in batches.
+   *
+   * <p>A batch is sent as soon as it holds {@code batchSize} datagrams, when a
+   * datagram is queued after the first one has waited for the flush deadline, or
+   * when {@link #flush()} is called. A loop that may go quiet with datagrams
+   * still queued bounds its wait with {@link #nanosUntilDeadline(long)} and then
+   * calls {@link #flushIfDue(long)}.</p>
+   *
+   * <p>Not thread-safe: a sender belongs to the one loop that sends on it.</p>
+   */
+  static final class Sender implements AutoCloseable {
+
+    private final DatagramChannel channel;
+    private final long deadlineNanos;
+    private final ByteBuffer[] slots;
+    private final SocketAddress[] targets;
+
+    /** Datagrams queued in the current batch */
+    private int count;
+
+    /** When the first datagram of the current batch was queued */
+    private long firstQueuedNanos;
+
+    private long datagramsSent;
+    private long bytesSent;
+    private long datagramsDropped;
+    private long flushes;
+
+    /**
+     * Creates a sender. The channel is not closed by {@link #close()}.
+     *
+     * @param channel the channel to send on, reused for every datagram
+     * @param batchSize datagrams per batch
+     * @param deadlineMicros longest time a queued datagram waits before its batch is sent
+     */
+    Sender(DatagramChannel channel, int batchSize, long deadlineMicros) {
+      this.channel = channel;
+      this.deadlineNanos = TimeUnit.MICROSECONDS.toNanos(deadlineMicros);
+      this.slots = slices(batchSize, MAX_MESSAGE);
+      this.targets = new SocketAddress[batchSize];
+    }
+
+    /**
+     * Copies a datagram into the current batch, sending the batch if it is now full.
+     *
+     * @param data the payload, from position to limit (at most {@value #MAX_MESSAGE} bytes);
+     *             its position is moved to the limit
+     * @param target where to send it
+     * @throws IOException if sending a batch failed
+     */
+    void queue(ByteBuffer data, SocketAddress target) throws IOException {
+      if (data.remaining() > MAX_MESSAGE) {
+        throw new IllegalArgumentException("datagram larger than " + MAX_MESSAGE + " bytes");
+      }
+      long now = System.nanoTime();
+      if (count == 0) {
+        firstQueuedNanos = now;
+      }
+      slots[count].clear();
+      slots[count].put(data).flip();
+      targets[count] = target;
+      count++;
+
+      if (count == slots.length || now - firstQueuedNanos >= deadlineNanos) {
+        flush();
+      }
+    }
+
+    /**
+     * Sends every queued datagram now.
+     *
+     * @throws IOException if sending failed
+     */
+    void flush() throws IOException {
+      if (count == 0) {
+        return;
+      }
+      int queued = count;
+      count = 0;
+      flushes++;
+      for (int i = 0; i < queued; i++) {
+        int length = slots[i].remaining();
+        if (channel.send(slots[i], targets[i]) == 0) {
+          datagramsDropped++;
+        } else {
+          datagramsSent++;
+          bytesSent += length;
+        }
+        targets[i] = null;
+      }
+    }
+
+    /**
+     * Sends the queued datagrams if the first of them has waited for the flush deadline.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return true if a batch was sent
+     * @throws IOException if sending failed
+     */
+    boolean flushIfDue(long nowNanos) throws IOException {
+      if (count == 0 || nowNanos - firstQueuedNanos < deadlineNanos) {
+        return false;
+      }
+      flush();
+      return true;
+    }
+
+    /**
+     * How long the owning loop may wait before {@link #flushIfDue(long)} has work to do.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return nanoseconds until the flush deadline (0 if already due), or -1 if nothing is queued
+     */
+    long nanosUntilDeadline(long nowNanos) {
+      if (count == 0) {
+        return -1;
+      }
+      return Math.max(0, firstQueuedNanos + deadlineNanos - nowNanos);
+    }
+
+    /** @return datagrams handed to the operating system so far */
+    long datagramsSent() {
+      return datagramsSent;
+    }
+
+    /** @return payload bytes handed to the operating system so far */
+    long bytesSent() {
+      return bytesSent;
+    }
+
+    /** @return datagrams a non-blocking channel had no room for */
+    long datagramsDropped() {
+      return datagramsDropped;
+    }
+
+    /** @return batches sent so far */
+    long flushes() {
+      return flushes;
+    }
+
+    /**
+     * Sends anything still queued.
+     */
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Receives datagrams in batches: waits until the channel is readable, then
+   * takes up to {@code batchSize} datagrams without waiting again.
+   *
+   * <p>Slots hold {@value #MAX_MESSAGE} bytes. A receive that does not fit is cut
+   * short by the operating system without any error, so each slot has one spare
+   * byte: a datagram that reaches it was longer than a slot, and is counted and
+   * dropped rather than passed on incomplete.</p>
+   */
+  static final class Receiver implements AutoCloseable {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer[] slots;
+    private final SocketAddress[] sources;
+
+    /** Datagrams dropped for being longer than {@value #MAX_MESSAGE} bytes */
+    private long oversized;
+
+    /**
+     * Creates a receiver. The channel is switched to non-blocking mode; it is not
+     * closed by {@link #close()}.
+     *
+     * @param channel a bound channel
+     * @param batchSize the most datagrams taken per wake-up
+     * @throws IOException if the selector cannot be opened
+     */
+    Receiver(DatagramChannel channel, int batchSize) throws IOException {
+      this.channel = channel;
+      this.selector = Selector.open();
+      this.slots = slices(batchSize, MAX_MESSAGE + 1);
+      this.sources = new SocketAddress[batchSize];
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Waits for at least one datagram, receives as many as are ready (up to the
+     * batch size), then passes each one to the handler.
+     *
+     * <p>The buffers belong to the receiver and are overwritten by the next batch,
+     * so the handler must copy anything it wants to keep.</p>
+     *
+     * @param handler called once per datagram, in arrival order
+     * @return the number of datagrams handled; 0 if woken without data
+     * @throws IOException if receiving or the handler fails
+     */
+    int receiveBatch(Step4_UDP_Receiver.Handler handler) throws IOException {
+      selector.select();
+      selector.selectedKeys().clear();
+
+      int received = 0;
+      for (int taken = 0; taken < slots.length; taken++) {
+        SocketAddress source = channel.receive(slots[received].clear());
+        if (source == null) {
+          break;
+        }
+        if (slots[received].flip().remaining() > MAX_MESSAGE) {
+          oversized++;   // the slot is reused for the next datagram
+          continue;
+        }
+        sources[received] = source;
+        received++;
+      }
+
+      for (int i = 0; i < received; i++) {
+        handler.onDatagram(slots[i], sources[i]);
+        sources[i] = null;
+      }
+      return received;
+    }
+
+    /** @return datagrams dropped so far for being longer than {@value #MAX_MESSAGE} bytes */
+    long datagramsOversized() {
+      return oversized;
+    }
+
+    /**
+     * Receives batches until the thread is interrupted or the receiver is closed.
+     *
+     * @param handler called once per datagram
+     * @throws IOException if receiving or the handler fails
+     */
+    void receiveLoop(Step4_UDP_Receiver.Handler handler) throws IOException {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          receiveBatch(handler);
+        }
+      } catch (ClosedSelectorException | AsynchronousCloseException e) {
+        // close() was called
+      }
+    }
+
+    /**
+     * Stops a running {@link #receiveLoop(Step4_UDP_Receiver.Handler)}.
+     */
+    @Override
+    public void close() throws IOException {
+      selector.close();
+    }
+  }
+
+  /**
+   * Cuts one direct buffer into {@code count} slots of {@code size} bytes.
+   */
+  private static ByteBuffer[] slices(int count, int size) {
+    ByteBuffer block = ByteBuffer.allocateDirect(count * size);
+    ByteBuffer[] slots = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      slots[i] = block.slice(i * size, size);
+    }
+    return slots;
+  }
+
+  /**
+   * Sends or receives a stream of datagrams and reports the packet rate.
+   *
+   * @param args {@code receive [port]} or {@code send [count] [size] [host] [port]}
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length > 0 && args[0].equals("receive")) {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+      try (DatagramChannel channel = DatagramChannel.open()) {
+        channel.bind(new InetSocketAddress(port));
+        System.out.println("RECEIVING on " + channel.getLocalAddress());
+
+        long[] totals = new long[2];
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        try (Receiver receiver = new Receiver(channel, DEFAULT_BATCH)) {
+          while (true) {
+            totals[1]++;
+            totals[0] += receiver.receiveBatch((data, source) -> { });
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+              System.out.printf("RECEIVED %d datagrams in %d batches (%.0f datagrams/s)%n",
+                  totals[0], totals[1], totals[0] / ((now - start) / 1e9));
+              nextReport = now + TimeUnit.SECONDS.toNanos(1);
+            }
+          }
+        }
+      }
+    }
+
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+    int size = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    if (size < Integer.BYTES || size > MAX_MESSAGE) {
+      System.out.println("size must be between " + Integer.BYTES + " (the sequence number) and "
+          + MAX_MESSAGE + " bytes");
+      return;
+    }
+    String host = args.length > 3 ? args[3] : "localhost";
+    int port = args.length > 4 ? Integer.parseInt(args[4]) : PORT;
+    SocketAddress target = new InetSocketAddress(host, port);
+
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      ByteBuffer message = ByteBuffer.allocate(size);
+      long start = System.nanoTime();
+      Sender sender = new Sender(channel, DEFAULT_BATCH, DEFAULT_DEADLINE_MICROS);
+      try (sender) {
+        for (int i = 0; i < count; i++) {
+          message.clear().putInt(0, i);
+          sender.queue(message, target);
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("SENT %d datagrams in %d batches, %.3f s (%.0f datagrams/s)%n",
+          sender.datagramsSent(), sender.flushes(), seconds, sender.datagramsSent() / seconds);
+    }
+  }
+}
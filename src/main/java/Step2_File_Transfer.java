@@ -0,0 +1,365 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Step 2E: Zero-Copy File Transfer over TCP and UDP
+ *
+ * Copying a file through a {@code byte[]} moves every byte from the kernel into
+ * the Java heap and back out again. This class moves file contents without
+ * that detour: the bytes go from the operating system's file cache straight
+ * to the socket, so even multi-gigabyte transfers leave the heap untouched.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>FileChannel.transferTo / transferFrom</b> - Ask the kernel to copy between a file and a
+ *       socket directly ({@code sendfile} on Linux); the data never enters the JVM</li>
+ *   <li><b>MappedByteBuffer</b> - Maps the file into memory; a slice of the mapping is a datagram
+ *       payload that needs no copying before it is sent</li>
+ *   <li><b>Gathering Write</b> - A small header buffer and a slice of the file are written as one datagram</li>
+ *   <li><b>MTU-Sized Datagrams</b> - Each UDP datagram fits one Ethernet frame, so it is never fragmented</li>
+ *   <li><b>Positional Writes</b> - Each datagram carries its file offset, so the receiver can write it
+ *       in place even if datagrams arrive out of order</li>
+ * </ul>
+ *
+ * <h2>Wire Formats:</h2>
+ * <pre>
+ * TCP: | file length (8 B) | file contents |
+ * UDP: | file offset (8 B) | file length (8 B) | up to 1456 bytes of the file |
+ * </pre>
+ * <p>The UDP path does not retransmit: lost datagrams are counted and reported.
+ * {@link Step2_Reliable_UDP} adds the missing reliability.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <pre>
+ * java Step2_File_Transfer serve big.iso            # TCP server, one client after another
+ * java Step2_File_Transfer fetch copy.iso           # TCP client
+ *
+ * java Step2_File_Transfer udp-receive copy.iso
+ * java Step2_File_Transfer udp-send big.iso
+ * </pre>
+ *
+ * @see Step2_SendPacket_UDP
+ * @see Step2_Reliable_UDP
+ */
+public class Step2_File_Transfer {
+
+  /** Port used by the example, for both TCP and UDP */
+  static final int PORT = 1024;
+
+  /** UDP header: file offset and file length */
+  static final int UDP_HEADER = 16;
+
+  /** File bytes per datagram, so header + payload fit a 1472-byte UDP payload */
+  static final int UDP_PAYLOAD = Step2_Batched_UDP.MAX_MESSAGE - UDP_HEADER;
+
+  /** Largest region mapped at once (a MappedByteBuffer is indexed by int); a whole number of datagrams */
+  private static final long MAP_WINDOW = (1L << 30) / UDP_PAYLOAD * UDP_PAYLOAD;
+
+  /** Largest file the UDP receiver accepts: one bit per datagram in a BitSet indexed by int */
+  private static final long MAX_UDP_FILE = (long) Integer.MAX_VALUE * UDP_PAYLOAD;
+
+  /** How long the UDP receiver waits for more datagrams before reporting what is missing */
+  private static final long UDP_IDLE_MS = 2000;
+
+  /**
+   * TCP: sends the file to every client that connects, one virtual thread per client.
+   *
+   * @param file the file to serve
+   * @param port the TCP port to listen on
+   * @throws IOException if the port cannot be bound
+   */
+  static void serve(Path file, int port) throws IOException {
+    try (ServerSocketChannel server = ServerSocketChannel.open();
+         ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+      server.bind(new InetSocketAddress(port));
+      System.out.println("SERVING " + file + " on " + server.getLocalAddress());
+
+      while (true) {
+        SocketChannel client = server.accept();
+        clients.execute(() -> {
+          try (client; FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sent = sendFile(in, client);
+            System.out.println("SENT " + sent + " bytes to " + client.getRemoteAddress());
+          } catch (IOException e) {
+            System.out.println("CLIENT failed: " + e);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * TCP: writes the length header, then lets the kernel copy the file to the socket.
+   *
+   * @return the number of file bytes sent
+   */
+  static long sendFile(FileChannel in, SocketChannel out) throws IOException {
+    long size = in.size();
+    ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, size);
+    while (header.hasRemaining()) {
+      out.write(header);
+    }
+
+    // transferTo may move fewer bytes than asked (e.g. at most 2 GB per call on Linux)
+    long position = 0;
+    while (position < size) {
+      position += in.transferTo(position, size - position, out);
+    }
+    return size;
+  }
+
+  /**
+   * TCP: reads the length header, then lets the kernel copy the socket into the file.
+   *
+   * @return the number of file bytes received
+   * @throws EOFException if the server closes the connection early
+   */
+  static long receiveFile(SocketChannel in, FileChannel out) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+    while (header.hasRemaining()) {
+      if (in.read(header) < 0) {
+        throw new EOFException("connection closed before the length header");
+      }
+    }
+    long size = header.getLong(0);
+
+    long position = 0;
+    while (position < size) {
+      long n = out.transferFrom(in, position, size - position);
+      if (n == 0) {
+        throw new EOFException("connection closed after " + position + " of " + size + " bytes");
+      }
+      position += n;
+    }
+    return size;
+  }
+
+  /**
+   * UDP: maps the file and sends it as MTU-sized slices of the mapping.
+   *
+   * @param in the file to send
+   * @param channel a connected channel
+   * @return the number of datagrams sent
+   */
+  static long sendDatagrams(FileChannel in, DatagramChannel channel) throws IOException {
+    long size = in.size();
+    ByteBuffer header = ByteBuffer.allocateDirect(UDP_HEADER);
+    ByteBuffer[] datagram = {header, null};
+    long datagrams = 0;
+
+    // An empty file is still announced with one header-only datagram
+    if (size == 0) {
+      header.clear().putLong(0).putLong(0).flip();
+      channel.write(header);
+      return 1;
+    }
+
+    for (long window = 0; window < size; window += MAP_WINDOW) {
+      MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, window,
+          Math.min(MAP_WINDOW, size - window));
+      int end = mapped.limit();
+      datagram[1] = mapped;
+
+      // Moving the mapping's position and limit selects the next slice without creating an object
+      for (int offset = 0; offset < end; offset += UDP_PAYLOAD) {
+        header.clear().putLong(window + offset).putLong(size).flip();
+        mapped.limit(Math.min(offset + UDP_PAYLOAD, end)).position(offset);
+        try {
+          channel.write(datagram);
+        } catch (PortUnreachableException e) {
+          // nobody listening yet; the datagram is lost like any other
+        }
+        datagrams++;
+      }
+    }
+    return datagrams;
+  }
+
+  /**
+   * UDP: writes each datagram's payload at its offset in the file, until the
+   * whole file has arrived or the sender has been silent for {@value #UDP_IDLE_MS} ms.
+   *
+   * <p>Offsets and lengths come from the network, so a datagram is only written
+   * if it is exactly one of the slices {@link #sendDatagrams} produces for the
+   * file length announced by the first datagram. Anything else is counted as
+   * malformed and dropped, so it can neither write outside the file nor make a
+   * transfer with missing bytes look complete. The sender of the first valid
+   * datagram owns the transfer; datagrams from any other address are counted
+   * and dropped, so a second sender cannot write into the file.</p>
+   *
+   * @param channel a bound channel
+   * @param out the file to write
+   * @return the number of file bytes received; less than the file length if datagrams were lost
+   */
+  static long receiveDatagrams(DatagramChannel channel, FileChannel out) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(Step2_Batched_UDP.MAX_MESSAGE);
+    long size = -1;
+    long received = 0;
+    long duplicates = 0;
+    long malformed = 0;
+    long foreign = 0;
+    SocketAddress sender = null;
+    BitSet seen = new BitSet();
+
+    channel.configureBlocking(false);
+    try (Selector selector = Selector.open()) {
+      channel.register(selector, SelectionKey.OP_READ);
+
+      while (size < 0 || received < size) {
+        if (selector.select(size < 0 ? 0 : UDP_IDLE_MS) == 0) {
+          break;   // sender finished or gave up; report what is missing
+        }
+        selector.selectedKeys().clear();
+
+        SocketAddress source;
+        while ((source = channel.receive(buffer.clear())) != null) {
+          buffer.flip();
+          if (sender != null && !sender.equals(source)) {
+            foreign++;
+            continue;
+          }
+          if (buffer.remaining() < UDP_HEADER) {
+            continue;
+          }
+          long offset = buffer.getLong();
+          long announced = buffer.getLong();
+          if ((size >= 0 && announced != size) || !isSlice(offset, buffer.remaining(), announced)) {
+            malformed++;
+            continue;
+          }
+          size = announced;
+          sender = source;
+          int index = (int) (offset / UDP_PAYLOAD);
+          if (seen.get(index)) {
+            duplicates++;
+            continue;
+          }
+          seen.set(index);
+          received += buffer.remaining();
+          while (buffer.hasRemaining()) {
+            out.write(buffer, offset + buffer.position() - UDP_HEADER);
+          }
+        }
+      }
+    }
+
+    if (size > received) {
+      System.out.println("LOST " + (size - received) + " of " + size + " bytes");
+    }
+    if (duplicates > 0) {
+      System.out.println("DUPLICATES: " + duplicates);
+    }
+    if (malformed > 0) {
+      System.out.println("MALFORMED: " + malformed);
+    }
+    if (foreign > 0) {
+      System.out.println("FROM OTHER SENDERS: " + foreign);
+    }
+    return received;
+  }
+
+  /**
+   * Checks that a datagram is one slice of a file of {@code size} bytes as sent by
+   * {@link #sendDatagrams}: aligned to {@value #UDP_PAYLOAD} bytes, inside the file,
+   * and full length unless it is the last slice. An empty file is one empty slice.
+   */
+  private static boolean isSlice(long offset, int length, long size) {
+    if (size == 0) {
+      return offset == 0 && length == 0;
+    }
+    return size > 0 && size <= MAX_UDP_FILE
+        && offset >= 0 && offset < size && offset % UDP_PAYLOAD == 0
+        && length == Math.min(UDP_PAYLOAD, size - offset);
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args {@code serve <file> [port]}, {@code fetch <file> [host] [port]},
+   *             {@code udp-send <file> [host] [port]} or {@code udp-receive <file> [port]}
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.out.println("usage: serve <file> [port] | fetch <file> [host] [port]"
+          + " | udp-send <file> [host] [port] | udp-receive <file> [port]");
+      return;
+    }
+    Path file = Path.of(args[1]);
+    long heapBefore = usedHeap();
+    long start = System.nanoTime();
+    long bytes;
+
+    switch (args[0]) {
+      case "serve" -> {
+        serve(file, args.length > 2 ? Integer.parseInt(args[2]) : PORT);
+        return;
+      }
+      case "fetch" -> {
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : PORT;
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel out = create(file)) {
+          bytes = receiveFile(socket, out);
+        }
+      }
+      case "udp-send" -> {
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : PORT;
+        try (DatagramChannel channel = DatagramChannel.open();
+             FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+          channel.setOption(StandardSocketOptions.SO_SNDBUF, Step2_Reliable_UDP.SOCKET_BUFFER);
+          channel.connect(new InetSocketAddress(host, port));
+          System.out.println("DATAGRAMS: " + sendDatagrams(in, channel));
+          bytes = in.size();
+        }
+      }
+      case "udp-receive" -> {
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : PORT;
+        try (DatagramChannel channel = DatagramChannel.open();
+             FileChannel out = create(file)) {
+          channel.setOption(StandardSocketOptions.SO_RCVBUF, Step2_Reliable_UDP.SOCKET_BUFFER);
+          channel.bind(new InetSocketAddress(port));
+          System.out.println("RECEIVING on " + channel.getLocalAddress());
+          bytes = receiveDatagrams(channel, out);
+        }
+      }
+      default -> {
+        System.out.println("unknown mode: " + args[0]);
+        return;
+      }
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%d bytes in %.3f s (%.1f MB/s), heap growth %d KB%n",
+        bytes, seconds, bytes / seconds / 1e6, (usedHeap() - heapBefore) >> 10);
+  }
+
+  private static FileChannel create(Path file) throws IOException {
+    return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
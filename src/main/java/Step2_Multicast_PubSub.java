@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Step 2F: Publish/Subscribe with IP Multicast
+ *
+ * {@link Step2_SendPacket_UDP} sends to one address, so delivering the same
+ * message to N receivers takes N sends. With multicast the publisher sends
+ * once to a <i>group</i> address, and the network (or the local kernel) hands
+ * a copy to every socket that has joined the group: the sender's cost no
+ * longer grows with the number of subscribers.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Group Addresses</b> - IPv4 addresses 224.0.0.0 to 239.255.255.255 name a group, not a
+ *       host; 239.x.x.x is reserved for use inside one organisation</li>
+ *   <li><b>Join and Leave</b> - {@link DatagramChannel#join} returns a {@link MembershipKey};
+ *       dropping the key leaves the group again</li>
+ *   <li><b>TTL</b> - {@code IP_MULTICAST_TTL} limits how many routers a datagram may cross:
+ *       0 stays on this host, 1 (the default) stays on the local network</li>
+ *   <li><b>Loopback</b> - {@code IP_MULTICAST_LOOP} decides whether subscribers on the
+ *       publisher's own machine get a copy</li>
+ *   <li><b>Shared Port</b> - {@code SO_REUSEADDR} lets several subscribers on one machine bind
+ *       the same port; each one receives every datagram sent to the group</li>
+ * </ul>
+ *
+ * <p>Subscribers receive through {@link Step4_UDP_Receiver#receiveLoop(Step4_UDP_Receiver.Handler)},
+ * so every datagram lands in a pooled buffer and no object is created per message.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <ol>
+ *   <li>{@code java Step2_Multicast_PubSub subscribe [subscribers] [group] [port]}</li>
+ *   <li>{@code java Step2_Multicast_PubSub publish [count] [ttl] [group] [port]}</li>
+ * </ol>
+ * <p>Both sides use the loopback interface by default, so everything stays on this
+ * machine. Set {@code -Dmulticast.interface=eth0} to use a real network.</p>
+ *
+ * @see Step2_SendPacket_UDP
+ * @see Step4_UDP_Receiver
+ */
+public class Step2_Multicast_PubSub {
+
+  /** Group used by the example (administratively scoped, so it never leaves the site) */
+  static final String GROUP = "239.1.2.3";
+
+  /** Port used by the example */
+  static final int PORT = 1024;
+
+  /**
+   * Sends messages to a multicast group.
+   */
+  static final class Publisher implements AutoCloseable {
+
+    private final DatagramChannel channel;
+    private final SocketAddress group;
+
+    /**
+     * @param group the group address and port to publish to
+     * @param networkInterface the interface to send on
+     * @param ttl how many routers a datagram may cross (0 keeps it on this host)
+     * @param loopback whether subscribers on this machine receive a copy
+     * @throws IOException if the channel cannot be opened or configured
+     */
+    Publisher(InetSocketAddress group, NetworkInterface networkInterface, int ttl, boolean loopback)
+        throws IOException {
+      this.group = group;
+      this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+      channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, loopback);
+    }
+
+    /**
+     * Sends one message to every subscriber with a single send.
+     *
+     * @param message the payload, from position to limit
+     * @return true if the datagram was sent
+     * @throws IOException if the send fails
+     */
+    boolean publish(ByteBuffer message) throws IOException {
+      try {
+        return channel.send(message, group) > 0;
+      } catch (PortUnreachableException e) {
+        return false;   // no subscriber on this host; multicast does not care
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * Receives the messages sent to one multicast group.
+   *
+   * <p>Several subscribers may exist in one process or on one machine; each gets
+   * its own copy of every datagram.</p>
+   */
+  static final class Subscriber implements AutoCloseable {
+
+    private final DatagramChannel channel;
+    private final Step4_UDP_Receiver receiver;
+    private MembershipKey membership;
+
+    /**
+     * Binds the group's port and joins the group.
+     *
+     * @param group the group address and port to subscribe to
+     * @param networkInterface the interface to join the group on
+     * @param pool where receive buffers come from
+     * @throws IOException if the port cannot be bound or the group cannot be joined
+     */
+    Subscriber(InetSocketAddress group, NetworkInterface networkInterface, Step4_BufferPool pool)
+        throws IOException {
+      this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+      try {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(group.getPort()));
+        membership = channel.join(group.getAddress(), networkInterface);
+        receiver = new Step4_UDP_Receiver(channel, pool);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Passes each received message to {@code handler} until {@link #close()} is called.
+     *
+     * @param handler called with every message, in a pooled buffer
+     * @throws IOException if receiving fails
+     */
+    void receiveLoop(Step4_UDP_Receiver.Handler handler) throws IOException {
+      receiver.receiveLoop(handler);
+    }
+
+    /**
+     * Leaves the group; the socket stays open, so it can {@link #rejoin} later.
+     */
+    synchronized void leave() {
+      if (membership != null) {
+        membership.drop();
+        membership = null;
+      }
+    }
+
+    /**
+     * Joins the group again after {@link #leave()}.
+     *
+     * @throws IOException if the group cannot be joined
+     */
+    synchronized void rejoin(InetAddress group, NetworkInterface networkInterface) throws IOException {
+      if (membership == null) {
+        membership = channel.join(group, networkInterface);
+      }
+    }
+
+    @Override
+    public void close() {
+      leave();
+      receiver.close();
+    }
+  }
+
+  /**
+   * The interface named by {@code -Dmulticast.interface}, or the loopback interface.
+   *
+   * @throws SocketException if the interface does not exist
+   */
+  static NetworkInterface networkInterface() throws SocketException {
+    String name = System.getProperty("multicast.interface");
+    NetworkInterface networkInterface = name != null
+        ? NetworkInterface.getByName(name)
+        : NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    if (networkInterface == null) {
+      throw new SocketException("no such interface: " + name);
+    }
+    return networkInterface;
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args {@code subscribe [subscribers] [group] [port]} or
+   *             {@code publish [count] [ttl] [group] [port]}
+   * @throws IOException if a socket cannot be opened or a group cannot be joined
+   * @throws InterruptedException if interrupted while waiting for subscribers
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+
+    NetworkInterface networkInterface = networkInterface();
+
+    if (args.length > 0 && args[0].equals("subscribe")) {
+      int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+      String address = args.length > 2 ? args[2] : GROUP;
+      int port = args.length > 3 ? Integer.parseInt(args[3]) : PORT;
+      InetSocketAddress group = new InetSocketAddress(address, port);
+
+      Step4_BufferPool pool = new Step4_BufferPool(subscribers, Step2_Batched_UDP.MAX_MESSAGE, true);
+      List<Subscriber> all = new ArrayList<>();
+      CountDownLatch finished = new CountDownLatch(subscribers);
+      for (int i = 0; i < subscribers; i++) {
+        Subscriber subscriber = new Subscriber(group, networkInterface, pool);
+        all.add(subscriber);
+        int id = i;
+        AtomicLong received = new AtomicLong();
+        Thread thread = new Thread(() -> {
+          try {
+            subscriber.receiveLoop((data, source) -> {
+              long n = received.incrementAndGet();
+              if (n <= 3 || n % 1000 == 0) {
+                System.out.println("SUBSCRIBER " + id + " #" + n + ": '"
+                    + StandardCharsets.UTF_8.decode(data) + "' from " + source);
+              }
+            });
+          } catch (IOException e) {
+            System.out.println("SUBSCRIBER " + id + " failed: " + e);
+          } finally {
+            System.out.println("SUBSCRIBER " + id + " received " + received.get());
+            finished.countDown();
+          }
+        }, "subscriber-" + i);
+        thread.start();
+      }
+      System.out.println("SUBSCRIBED " + subscribers + " sockets to " + group
+          + " on " + networkInterface.getName());
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        all.forEach(Subscriber::close);
+        try {
+          finished.await();
+        } catch (InterruptedException e) {
+          // exiting anyway
+        }
+      }));
+      finished.await();
+      return;
+    }
+
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int ttl = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+    String address = args.length > 3 ? args[3] : GROUP;
+    int port = args.length > 4 ? Integer.parseInt(args[4]) : PORT;
+
+    try (Publisher publisher = new Publisher(new InetSocketAddress(address, port),
+        networkInterface, ttl, true)) {
+      ByteBuffer message = ByteBuffer.allocate(Step2_Batched_UDP.MAX_MESSAGE);
+      for (int i = 0; i < count; i++) {
+        message.clear().put(("tick " + i).getBytes(StandardCharsets.UTF_8)).flip();
+        publisher.publish(message);
+      }
+      System.out.println("PUBLISHED " + count + " messages to " + address + ":" + port
+          + ", one send per message whatever the number of subscribers");
+    }
+  }
+}
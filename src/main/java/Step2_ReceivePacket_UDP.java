@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Step 2B: Receiving UDP Packets
@@ -19,9 +20,9 @@ import java.net.DatagramSocket;
  * <h2>How It Works:</h2>
  * <ol>
  *   <li>Creates a DatagramSocket bound to port 1024</li>
- *   <li>Prepares a buffer to hold incoming data (2000 bytes max)</li>
+ *   <li>Prepares a buffer large enough for any UDP datagram (65507 bytes)</li>
  *   <li>Calls receive() which blocks until a packet arrives</li>
- *   <li>Extracts and displays the received message</li>
+ *   <li>Extracts and displays the bytes actually received</li>
  * </ol>
  *
  * <h2>How to Run:</h2>
@@ -33,8 +34,12 @@ import java.net.DatagramSocket;
  */
 public class Step2_ReceivePacket_UDP {
 
-  /** Maximum buffer size for receiving data (2000 bytes) */
-  private static final int BUF_LEN = 2000;
+  /**
+   * Maximum buffer size for receiving data: the largest UDP payload over IPv4
+   * (65535 - 8 byte UDP header - 20 byte IP header). A smaller buffer silently
+   * drops the end of any longer datagram.
+   */
+  private static final int BUF_LEN = 65507;
 
   /**
    * Main entry point that listens for and receives a UDP packet on port 1024.
@@ -58,9 +63,8 @@ public class Step2_ReceivePacket_UDP {
     // This call will not return until a packet is received
     serverSocket.receive(pkt);
 
-    // Convert the received bytes to a String
-    // Note: This includes the full buffer, which may contain trailing null bytes
-    String sentence = new String(pkt.getData());
+    // Convert only the received bytes to a String; the rest of the buffer is unused
+    String sentence = new String(pkt.getData(), 0, pkt.getLength(), StandardCharsets.UTF_8);
 
     System.out.println("RECEIVED: '" + sentence + "'");
   }
@@ -0,0 +1,590 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Step 2C: Reliable, Ordered Transfer on Top of UDP
+ *
+ * UDP may lose, duplicate or reorder packets (see {@link Step2_SendPacket_UDP}).
+ * This class adds the missing guarantees itself, the same way TCP does inside
+ * the operating system, so that a stream of bytes arrives complete, in order
+ * and exactly once.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Sequence Numbers</b> - Every segment is numbered so the receiver can put them back in order</li>
+ *   <li><b>Sliding Window</b> - Up to W segments may be unacknowledged at once, so the sender does not
+ *       wait a full round trip per segment</li>
+ *   <li><b>Cumulative + Selective ACKs</b> - An ACK says "I have everything before N" plus a bitmap of
+ *       the 64 segments after N that also arrived, so only the real gaps are resent</li>
+ *   <li><b>Retransmission Timeout</b> - Estimated from measured round-trip times (RFC 6298), doubled
+ *       after each timeout</li>
+ *   <li><b>Fast Retransmit</b> - Three duplicate ACKs resend the missing segment without waiting for the timer</li>
+ *   <li><b>Exactly-Once Delivery</b> - Duplicates are acknowledged again but never delivered twice</li>
+ * </ul>
+ *
+ * <h2>Wire Format:</h2>
+ * <pre>
+ * DATA: | type=0 (1 B) | flags (1 B) | sequence (4 B) | payload (0..MSS bytes) |
+ * ACK:  | type=1 (1 B) | 0 (1 B)     | next expected (4 B) | SACK bitmap (8 B)  |
+ * </pre>
+ * <p>The last segment is empty and carries the FIN flag, marking the end of the stream.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <ol>
+ *   <li>{@code java Step2_Reliable_UDP receive copy.bin}</li>
+ *   <li>{@code java Step2_Reliable_UDP send original.bin}</li>
+ * </ol>
+ *
+ * @see Step2_SendPacket_UDP
+ * @see Step2_ReceivePacket_UDP
+ */
+public class Step2_Reliable_UDP {
+
+  /** Payload bytes per segment; keeps datagrams below a typical 1500-byte Ethernet MTU */
+  static final int MSS = 1400;
+
+  /** Size of the DATA header */
+  static final int DATA_HEADER = 6;
+
+  /** Size of an ACK datagram */
+  static final int ACK_LEN = 14;
+
+  /** Datagram type: data segment */
+  static final byte TYPE_DATA = 0;
+
+  /** Datagram type: acknowledgement */
+  static final byte TYPE_ACK = 1;
+
+  /** Flag: last segment of the stream */
+  static final byte FLAG_FIN = 1;
+
+  /** Default window size in segments */
+  static final int DEFAULT_WINDOW = 256;
+
+  /** Port used by the example */
+  static final int PORT = 1024;
+
+  /** Number of sequence numbers after the cumulative ACK covered by the SACK bitmap */
+  private static final int SACK_BITS = 64;
+
+  /** Socket buffer size; must hold a full window, or the kernel drops segments on arrival */
+  static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+  /**
+   * Sends one stream of bytes reliably to a connected peer.
+   */
+  static final class Sender {
+
+    /** Retransmission timeout before any round trip has been measured, in nanoseconds */
+    private static final long INITIAL_RTO = 200_000_000L;
+
+    /** Lower bound for the timeout; RFC 6298 says 1 s, far too long on loopback */
+    private static final long MIN_RTO = 5_000_000L;
+
+    /** Upper bound for the timeout after repeated back-off */
+    private static final long MAX_RTO = 2_000_000_000L;
+
+    /** A segment sent this many times without being acknowledged aborts the transfer */
+    private static final int MAX_ATTEMPTS = 12;
+
+    private final DatagramChannel channel;
+    private final int window;
+
+    /** One reusable datagram buffer per window slot (sequence % window) */
+    private final ByteBuffer[] slots;
+    private final long[] sentAt;
+    private final int[] attempts;
+    private final boolean[] acked;
+
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(ACK_LEN);
+
+    /** Oldest unacknowledged sequence number */
+    private int base;
+
+    /** Next sequence number to send */
+    private int next;
+
+    /** Smoothed round-trip time and its variation, in nanoseconds; -1 until measured */
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+
+    private int duplicateAcks;
+    private long retransmissions;
+
+    /**
+     * @param channel a channel connected to the receiver
+     * @param window maximum number of unacknowledged segments
+     * @throws IOException if the socket buffer size cannot be set
+     */
+    Sender(DatagramChannel channel, int window) throws IOException {
+      this.channel = channel;
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+      this.window = window;
+      this.slots = new ByteBuffer[window];
+      this.sentAt = new long[window];
+      this.attempts = new int[window];
+      this.acked = new boolean[window];
+      for (int i = 0; i < window; i++) {
+        slots[i] = ByteBuffer.allocateDirect(DATA_HEADER + MSS);
+      }
+    }
+
+    /**
+     * Sends everything {@code source} provides, then a FIN, and returns once the
+     * receiver has acknowledged all of it.
+     *
+     * @param source the bytes to send
+     * @return the number of payload bytes sent
+     * @throws IOException if the receiver stops responding or the socket fails
+     */
+    long send(ReadableByteChannel source) throws IOException {
+      long total = 0;
+      boolean finQueued = false;
+
+      channel.configureBlocking(false);
+      try (Selector selector = Selector.open()) {
+        channel.register(selector, SelectionKey.OP_READ);
+
+        while (!finQueued || base != next) {
+
+          // Fill the window with new segments
+          while (!finQueued && next - base < window) {
+            ByteBuffer slot = slots[next % window];
+            slot.clear().position(DATA_HEADER);
+            boolean eof = fill(source, slot);
+            total += slot.position() - DATA_HEADER;
+            if (eof && slot.position() == DATA_HEADER) {
+              slot.put(0, TYPE_DATA).put(1, FLAG_FIN);
+              finQueued = true;
+            } else {
+              slot.put(0, TYPE_DATA).put(1, (byte) 0);
+            }
+            slot.putInt(2, next).flip();
+            acked[next % window] = false;
+            attempts[next % window] = 0;
+            transmit(next);
+            next++;
+          }
+
+          selector.select(Math.max(1, nextDeadline() / 1_000_000L));
+          selector.selectedKeys().clear();
+          readAcks();
+          retransmitExpired();
+        }
+      }
+      return total;
+    }
+
+    /**
+     * @return segments sent more than once during the last transfer
+     */
+    long retransmissions() {
+      return retransmissions;
+    }
+
+    /**
+     * @return the current smoothed round-trip time in microseconds, or -1 if unmeasured
+     */
+    long smoothedRttMicros() {
+      return srtt < 0 ? -1 : srtt / 1000;
+    }
+
+    /**
+     * Reads until the slot is full or the source ends.
+     *
+     * @return true if the source has no more data
+     */
+    private static boolean fill(ReadableByteChannel source, ByteBuffer slot) throws IOException {
+      while (slot.hasRemaining()) {
+        if (source.read(slot) < 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Sends the segment in sequence number {@code seq}'s slot.
+     */
+    private void transmit(int seq) throws IOException {
+      int i = seq % window;
+      attempts[i]++;
+      if (attempts[i] > MAX_ATTEMPTS) {
+        throw new IOException("receiver not responding (segment " + seq + " sent "
+            + MAX_ATTEMPTS + " times)");
+      }
+      if (attempts[i] > 1) {
+        retransmissions++;
+      }
+      sentAt[i] = System.nanoTime();
+      try {
+        // A full socket buffer drops the datagram; the retransmit timer covers it
+        channel.write(slots[i].rewind());
+      } catch (PortUnreachableException e) {
+        // Receiver not up yet; also handled by the retransmit timer
+      }
+    }
+
+    /**
+     * Processes every ACK already waiting.
+     */
+    private void readAcks() throws IOException {
+      while (true) {
+        ackBuffer.clear();
+        int n;
+        try {
+          n = channel.read(ackBuffer);
+        } catch (PortUnreachableException e) {
+          continue;
+        }
+        if (n <= 0) {
+          return;
+        }
+        if (n != ACK_LEN || ackBuffer.get(0) != TYPE_ACK) {
+          continue;
+        }
+        onAck(ackBuffer.getInt(2), ackBuffer.getLong(6));
+      }
+    }
+
+    /**
+     * Applies one ACK: advances the window, marks selectively acknowledged
+     * segments, updates the RTT estimate and resends segments the ACK shows lost.
+     */
+    private void onAck(int cumulative, long sack) throws IOException {
+      long now = System.nanoTime();
+      long sample = -1;
+      int highestAcked = -1;
+
+      if (cumulative - base > 0 && cumulative - next <= 0) {
+        for (int seq = base; seq != cumulative; seq++) {
+          int i = seq % window;
+          // Karn's algorithm: only segments sent exactly once give a valid RTT sample
+          if (!acked[i] && attempts[i] == 1) {
+            sample = now - sentAt[i];
+          }
+        }
+        base = cumulative;
+        duplicateAcks = 0;
+      } else if (cumulative == base && base != next) {
+        if (++duplicateAcks == 3) {
+          transmit(base);
+        }
+      }
+
+      for (int bit = 0; bit < SACK_BITS; bit++) {
+        if ((sack & (1L << bit)) != 0) {
+          int seq = cumulative + 1 + bit;
+          if (seq - base >= 0 && seq - next < 0) {
+            int i = seq % window;
+            if (!acked[i] && attempts[i] == 1) {
+              sample = now - sentAt[i];
+            }
+            acked[i] = true;
+            highestAcked = seq;
+          }
+        }
+      }
+
+      if (sample >= 0) {
+        sampleRtt(sample);
+      }
+
+      // A gap below a selectively acknowledged segment is presumed lost once it
+      // has been outstanding longer than a round trip (plus a quarter for reordering)
+      if (highestAcked >= 0 && srtt >= 0) {
+        long reorderWindow = srtt + srtt / 4;
+        for (int seq = base; seq != highestAcked; seq++) {
+          int i = seq % window;
+          if (!acked[i] && now - sentAt[i] > reorderWindow) {
+            transmit(seq);
+          }
+        }
+      }
+    }
+
+    /**
+     * Updates SRTT, RTTVAR and RTO from one measurement (RFC 6298 section 2).
+     */
+    private void sampleRtt(long sample) {
+      if (srtt < 0) {
+        srtt = sample;
+        rttvar = sample / 2;
+      } else {
+        rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+        srtt = (7 * srtt + sample) / 8;
+      }
+      rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + 4 * rttvar));
+    }
+
+    /**
+     * Resends every unacknowledged segment whose timer has expired, then backs off.
+     */
+    private void retransmitExpired() throws IOException {
+      long now = System.nanoTime();
+      boolean expired = false;
+      for (int seq = base; seq != next; seq++) {
+        int i = seq % window;
+        if (!acked[i] && now - sentAt[i] >= rto) {
+          transmit(seq);
+          expired = true;
+        }
+      }
+      if (expired) {
+        rto = Math.min(MAX_RTO, rto * 2);
+      }
+    }
+
+    /**
+     * @return nanoseconds until the earliest retransmission timer fires
+     */
+    private long nextDeadline() {
+      long now = System.nanoTime();
+      long earliest = rto;
+      for (int seq = base; seq != next; seq++) {
+        int i = seq % window;
+        if (!acked[i]) {
+          earliest = Math.min(earliest, sentAt[i] + rto - now);
+        }
+      }
+      return earliest;
+    }
+  }
+
+  /**
+   * Receives one stream of bytes and delivers it in order, exactly once.
+   */
+  static final class Receiver {
+
+    /** Give up if the sender is silent this long in the middle of a transfer */
+    private static final long IDLE_TIMEOUT_MS = 10_000;
+
+    /** After the FIN, keep answering retransmissions this long in case our last ACK was lost */
+    private static final long LINGER_MS = 500;
+
+    private final DatagramChannel channel;
+    private final int window;
+
+    /** Out-of-order segments waiting for the gap before them to fill (sequence % window) */
+    private final ByteBuffer[] slots;
+    private final boolean[] present;
+
+    private final ByteBuffer incoming = ByteBuffer.allocateDirect(DATA_HEADER + MSS);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(ACK_LEN);
+
+    /** Next sequence number to deliver */
+    private int expected;
+
+    /** Set once the FIN has been delivered */
+    private boolean finished;
+
+    /**
+     * @param channel a bound channel; it is connected to the first sender heard from
+     * @param window the window size used by the sender
+     * @throws IOException if the socket buffer size cannot be set
+     */
+    Receiver(DatagramChannel channel, int window) throws IOException {
+      this.channel = channel;
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+      this.window = window;
+      this.slots = new ByteBuffer[window];
+      this.present = new boolean[window];
+      for (int i = 0; i < window; i++) {
+        slots[i] = ByteBuffer.allocateDirect(DATA_HEADER + MSS);
+      }
+    }
+
+    /**
+     * Waits for a sender, writes its stream to {@code sink} in order, and returns after the FIN.
+     *
+     * @param sink where the received bytes are written
+     * @return the number of payload bytes delivered
+     * @throws IOException if the sender goes silent or the socket fails
+     */
+    long receive(WritableByteChannel sink) throws IOException {
+      long total = 0;
+
+      // Block for the first datagram, then only accept that sender
+      SocketAddress peer = channel.receive(incoming.clear());
+      channel.connect(peer);
+      incoming.flip();
+      total += onData(sink);
+
+      channel.configureBlocking(false);
+      try (Selector selector = Selector.open()) {
+        channel.register(selector, SelectionKey.OP_READ);
+
+        long lingerUntil = 0;
+        while (true) {
+          long wait = finished ? lingerUntil - System.currentTimeMillis() : IDLE_TIMEOUT_MS;
+          if (wait <= 0) {
+            return total;
+          }
+          if (selector.select(wait) == 0 && !finished) {
+            throw new IOException("sender silent for " + IDLE_TIMEOUT_MS + " ms");
+          }
+          selector.selectedKeys().clear();
+
+          while (true) {
+            try {
+              if (channel.read(incoming.clear()) <= 0) {
+                break;
+              }
+            } catch (PortUnreachableException e) {
+              // The sender has closed; only possible once it has our final ACK
+              if (finished) {
+                return total;
+              }
+              continue;
+            }
+            incoming.flip();
+            boolean wasFinished = finished;
+            total += onData(sink);
+            if (finished && !wasFinished) {
+              lingerUntil = System.currentTimeMillis() + LINGER_MS;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Handles one DATA datagram held in {@link #incoming}.
+     *
+     * @return the number of payload bytes delivered to the sink
+     */
+    private long onData(WritableByteChannel sink) throws IOException {
+      if (incoming.remaining() < DATA_HEADER || incoming.get(0) != TYPE_DATA) {
+        return 0;
+      }
+      int seq = incoming.getInt(2);
+      long delivered = 0;
+
+      if (seq == expected && !finished) {
+        // In order: deliver straight from the receive buffer, no copy
+        delivered += deliver(incoming, sink);
+        expected++;
+
+        // Then everything buffered directly behind it
+        while (!finished && present[expected % window]) {
+          int i = expected % window;
+          present[i] = false;
+          delivered += deliver(slots[i], sink);
+          expected++;
+        }
+      } else if (seq - expected > 0 && seq - expected < window && !finished) {
+        // Out of order but inside the window: keep a copy until the gap is filled
+        int i = seq % window;
+        if (!present[i]) {
+          slots[i].clear().put(incoming).flip();
+          present[i] = true;
+        }
+      }
+      // Anything older than 'expected' is a duplicate: acknowledged again, never delivered
+
+      sendAck();
+      return delivered;
+    }
+
+    /**
+     * Writes one segment's payload to the sink and notes a FIN.
+     */
+    private long deliver(ByteBuffer segment, WritableByteChannel sink) throws IOException {
+      if ((segment.get(1) & FLAG_FIN) != 0) {
+        finished = true;
+      }
+      segment.position(DATA_HEADER);
+      long n = segment.remaining();
+      while (segment.hasRemaining()) {
+        sink.write(segment);
+      }
+      return n;
+    }
+
+    /**
+     * Sends the cumulative ACK plus a bitmap of buffered segments after it.
+     */
+    private void sendAck() throws IOException {
+      long sack = 0;
+      for (int bit = 0; bit < SACK_BITS && bit + 1 < window; bit++) {
+        if (present[(expected + 1 + bit) % window]) {
+          sack |= 1L << bit;
+        }
+      }
+      ackBuffer.clear();
+      ackBuffer.put(TYPE_ACK).put((byte) 0).putInt(expected).putLong(sack).flip();
+      try {
+        channel.write(ackBuffer);
+      } catch (PortUnreachableException e) {
+        // The sender is gone; a lost ACK is recovered by its retransmission anyway
+      }
+    }
+  }
+
+  /**
+   * Sends or receives a file reliably over UDP.
+   *
+   * @param args {@code receive <file> [port]} or {@code send <file> [host] [port]}
+   * @throws IOException if the transfer fails
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 2) {
+      System.out.println("usage: receive <file> [port] | send <file> [host] [port]");
+      return;
+    }
+    Path file = Path.of(args[1]);
+    long start;
+    long bytes;
+
+    if (args[0].equals("receive")) {
+      int port = args.length > 2 ? Integer.parseInt(args[2]) : PORT;
+      try (DatagramChannel channel = DatagramChannel.open();
+           FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        channel.bind(new InetSocketAddress(port));
+        System.out.println("RECEIVING on " + channel.getLocalAddress());
+        Receiver receiver = new Receiver(channel, DEFAULT_WINDOW);
+        start = System.nanoTime();
+        bytes = receiver.receive(out);
+      }
+      report("RECEIVED", bytes, start);
+
+    } else {
+      String host = args.length > 2 ? args[2] : "localhost";
+      int port = args.length > 3 ? Integer.parseInt(args[3]) : PORT;
+      try (DatagramChannel channel = DatagramChannel.open();
+           FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        channel.connect(new InetSocketAddress(host, port));
+        Sender sender = new Sender(channel, DEFAULT_WINDOW);
+        start = System.nanoTime();
+        bytes = sender.send(in);
+        System.out.println("RETRANSMISSIONS: " + sender.retransmissions()
+            + ", SMOOTHED RTT: " + sender.smoothedRttMicros() + " us");
+      }
+      report("SENT", bytes, start);
+    }
+  }
+
+  /**
+   * Prints the byte count, elapsed time and rate of a finished transfer.
+   */
+  private static void report(String what, long bytes, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.printf("%s: %d bytes in %.3f s (%.1f MB/s)%n",
+        what, bytes, seconds, bytes / seconds / 1e6);
+  }
+}
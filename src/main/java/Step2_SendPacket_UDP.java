@@ -29,6 +29,11 @@ import java.net.InetAddress;
  * <p>Run {@link Step2_ReceivePacket_UDP} first to start listening, then run this class to send the packet.</p>
  *
  * @see Step2_ReceivePacket_UDP
+ * @see Step2_Reliable_UDP
+ * @see Step2_Batched_UDP
+ * @see Step2_File_Transfer
+ * @see Step2_Multicast_PubSub
+ * @see Step4_Impairment_Proxy
  * @see java.net.DatagramSocket
  * @see java.net.DatagramPacket
  */
@@ -0,0 +1,305 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Step 3: Concurrent Bulk Name Resolution
+ *
+ * This class resolves large batches of hostnames by running many lookups at the
+ * same time. Each lookup mostly waits for a DNS server to answer, so doing them
+ * one after another (as {@link Step3_ResolveName} does) leaves the machine idle.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Virtual Threads</b> - Cheap threads that make it practical to block in thousands of lookups at once</li>
+ *   <li><b>Concurrency Cap</b> - A {@link Semaphore} limits how many lookups run at the same time</li>
+ *   <li><b>Caching with TTL</b> - Answers are reused until their time-to-live expires</li>
+ *   <li><b>Negative Caching</b> - "Unknown host" answers are cached too, for a shorter time</li>
+ *   <li><b>LRU Eviction</b> - When the cache is full the least recently used name is dropped</li>
+ *   <li><b>Metrics</b> - Cache hits, failures and lookup times are recorded in {@link Step4_Metrics}</li>
+ * </ul>
+ *
+ * <h2>Result Ordering:</h2>
+ * <ul>
+ *   <li>{@link Order#INPUT} - results come out in the same order as the names went in</li>
+ *   <li>{@link Order#COMPLETION} - results come out as soon as each lookup finishes</li>
+ * </ul>
+ * <p>Either way only a bounded number of names is read ahead of the output, so
+ * very large inputs are streamed rather than held in memory.</p>
+ *
+ * <h2>Time-to-Live:</h2>
+ * <p>{@link InetAddress#getAllByName(String)} does not report the TTL of the DNS
+ * records it used, so the default {@link Lookup} applies fixed TTLs (by default
+ * the JDK's own 30 second positive and 10 second negative cache times). A
+ * {@link Lookup} that knows the real record TTL can be plugged in instead.</p>
+ *
+ * @see Step3_ResolveName
+ */
+class Step3_Bulk_Resolver implements AutoCloseable {
+
+  /** Default time answers stay cached, in seconds (same as the JDK's networkaddress.cache.ttl) */
+  static final int DEFAULT_POSITIVE_TTL = 30;
+
+  /** Default time failed lookups stay cached, in seconds (same as networkaddress.cache.negative.ttl) */
+  static final int DEFAULT_NEGATIVE_TTL = 10;
+
+  private static final Step4_Metrics.Counter CACHE_HITS = Step4_Metrics.counter("dns_cache_hits");
+  private static final Step4_Metrics.Counter LOOKUP_FAILURES = Step4_Metrics.counter("dns_lookup_failures");
+
+  /** Time taken by lookups that missed the cache, including waiting for a concurrency permit */
+  private static final Step4_Metrics.Histogram LOOKUP_TIME = Step4_Metrics.histogram("dns_lookup_micros");
+
+  /** Order in which {@link #resolveAll} delivers results */
+  enum Order { INPUT, COMPLETION }
+
+  /**
+   * The answer to one lookup.
+   *
+   * @param addresses the resolved addresses; empty if the name does not exist
+   * @param ttlSeconds how long this answer may be cached
+   */
+  record Answer(List<InetAddress> addresses, int ttlSeconds) { }
+
+  /**
+   * Resolution result handed to callers.
+   *
+   * @param host the name that was looked up
+   * @param addresses the resolved addresses; empty if the host is unknown
+   * @param cached true if the answer came from the cache
+   */
+  record Result(String host, List<InetAddress> addresses, boolean cached) {
+
+    /** @return true if the name could not be resolved */
+    boolean unknown() {
+      return addresses.isEmpty();
+    }
+  }
+
+  /** Strategy that performs one (blocking) lookup */
+  @FunctionalInterface
+  interface Lookup {
+
+    /**
+     * Resolves one name.
+     *
+     * @param host the name to resolve
+     * @return the answer, with an empty address list if the name does not exist
+     * @throws Exception if the lookup failed for another reason; the failure is not cached
+     */
+    Answer lookup(String host) throws Exception;
+  }
+
+  /** A cached answer and the time it stops being valid */
+  private record Entry(List<InetAddress> addresses, long expiresAtNanos) { }
+
+  /** Performs the actual lookups */
+  private final Lookup lookup;
+
+  /** Runs each lookup on its own virtual thread */
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  /** One permit per lookup that may run at the same time */
+  private final Semaphore concurrency;
+
+  /** Maximum number of names read ahead of the output in {@link #resolveAll} */
+  private final int readAhead;
+
+  /** Maximum number of names kept in the cache */
+  private final int cacheSize;
+
+  /** Answers by host name, in least-recently-used order */
+  private final LinkedHashMap<String, Entry> cache;
+
+  /** Lookups already running, so duplicate names share one query */
+  private final ConcurrentHashMap<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a resolver that uses the system resolver with the default TTLs.
+   *
+   * @param maxConcurrent maximum number of lookups running at once
+   * @param cacheSize maximum number of names to keep in the cache
+   */
+  Step3_Bulk_Resolver(int maxConcurrent, int cacheSize) {
+    this(maxConcurrent, cacheSize, systemLookup(DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL));
+  }
+
+  /**
+   * Creates a resolver with a custom lookup strategy.
+   *
+   * @param maxConcurrent maximum number of lookups running at once
+   * @param cacheSize maximum number of names to keep in the cache
+   * @param lookup performs each individual lookup
+   */
+  Step3_Bulk_Resolver(int maxConcurrent, int cacheSize, Lookup lookup) {
+    this.lookup = lookup;
+    this.concurrency = new Semaphore(maxConcurrent);
+    this.readAhead = maxConcurrent * 4;
+    this.cacheSize = cacheSize;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > Step3_Bulk_Resolver.this.cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Returns a lookup backed by {@link InetAddress#getAllByName(String)} with fixed TTLs.
+   *
+   * @param positiveTtl seconds to cache successful answers
+   * @param negativeTtl seconds to cache "unknown host" answers
+   */
+  static Lookup systemLookup(int positiveTtl, int negativeTtl) {
+    return host -> {
+      try {
+        return new Answer(List.of(InetAddress.getAllByName(host)), positiveTtl);
+      } catch (UnknownHostException e) {
+        return new Answer(List.of(), negativeTtl);
+      }
+    };
+  }
+
+  /**
+   * Resolves one name, from the cache if possible.
+   *
+   * @param host the name to resolve
+   * @return a future completed with the result; it fails only if the lookup itself failed
+   */
+  CompletableFuture<Result> resolve(String host) {
+    Entry entry = cached(host);
+    if (entry != null) {
+      CACHE_HITS.increment();
+      return CompletableFuture.completedFuture(new Result(host, entry.addresses(), true));
+    }
+    return inFlight.computeIfAbsent(host, h -> {
+      CompletableFuture<Result> future = new CompletableFuture<>();
+      executor.execute(() -> runLookup(h, future));
+      return future;
+    });
+  }
+
+  /**
+   * Resolves every name from {@code hosts}, passing each result to {@code sink}.
+   *
+   * <p>Names are pulled from the iterator only as fast as results are delivered
+   * (at most a few times the concurrency cap ahead), and {@code sink} is always
+   * called from the calling thread.</p>
+   *
+   * @param hosts the names to resolve
+   * @param order whether results follow input order or completion order
+   * @param sink receives every result
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  void resolveAll(Iterator<String> hosts, Order order, Consumer<Result> sink)
+      throws InterruptedException {
+
+    if (order == Order.INPUT) {
+      // Futures in input order; the head is delivered as soon as it is done
+      ArrayDeque<CompletableFuture<Result>> window = new ArrayDeque<>();
+      while (hosts.hasNext()) {
+        if (window.size() >= readAhead) {
+          sink.accept(window.poll().join());
+        }
+        window.add(resolveOrUnknown(hosts.next()));
+      }
+      while (!window.isEmpty()) {
+        sink.accept(window.poll().join());
+      }
+      return;
+    }
+
+    // Completion order: finished results are queued and delivered as they arrive
+    LinkedBlockingQueue<Result> done = new LinkedBlockingQueue<>();
+    int pending = 0;
+    while (hosts.hasNext()) {
+      if (pending >= readAhead) {
+        sink.accept(done.take());
+        pending--;
+      }
+      resolveOrUnknown(hosts.next()).thenAccept(done::add);
+      pending++;
+    }
+    for (; pending > 0; pending--) {
+      sink.accept(done.take());
+    }
+  }
+
+  /**
+   * Like {@link #resolve(String)}, but a failed lookup is reported as an unknown host.
+   */
+  private CompletableFuture<Result> resolveOrUnknown(String host) {
+    return resolve(host).exceptionally(error -> new Result(host, List.of(), false));
+  }
+
+  /**
+   * Stops the lookup threads. Lookups that are still running are abandoned.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Runs on a virtual thread: waits for a concurrency permit, then performs the lookup.
+   */
+  private void runLookup(String host, CompletableFuture<Result> future) {
+    long start = System.nanoTime();
+    try {
+      concurrency.acquire();
+      try {
+        Answer answer = lookup.lookup(host);
+        store(host, answer);
+        LOOKUP_TIME.recordSince(start);
+        future.complete(new Result(host, answer.addresses(), false));
+      } finally {
+        concurrency.release();
+      }
+    } catch (Exception e) {
+      LOOKUP_FAILURES.increment();
+      future.completeExceptionally(e);
+    } finally {
+      inFlight.remove(host, future);
+    }
+  }
+
+  /**
+   * Returns the cached entry for {@code host}, or null if there is none or it has expired.
+   */
+  private Entry cached(String host) {
+    synchronized (cache) {
+      Entry entry = cache.get(host);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expiresAtNanos() - System.nanoTime() <= 0) {
+        cache.remove(host);
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Caches an answer for its TTL; answers with a TTL of zero are not cached.
+   */
+  private void store(String host, Answer answer) {
+    if (answer.ttlSeconds() <= 0) {
+      return;
+    }
+    long expires = System.nanoTime() + answer.ttlSeconds() * 1_000_000_000L;
+    synchronized (cache) {
+      cache.put(host, new Entry(answer.addresses(), expires));
+    }
+  }
+}
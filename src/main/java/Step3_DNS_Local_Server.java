@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Step 3: Stand-In DNS Server for Local Experiments
+ *
+ * This class is a tiny authoritative DNS server that answers from an in-memory
+ * table. It lets {@link Step3_DNS_Stub_Resolver} be tried out on loopback with
+ * known answers, known TTLs and no dependency on the real Internet.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Server Side of DNS</b> - Decoding a query and building the matching response</li>
+ *   <li><b>NXDOMAIN</b> - The response code for a name that does not exist at all</li>
+ *   <li><b>NODATA</b> - An empty NOERROR answer: the name exists, but has no records of that type</li>
+ *   <li><b>CNAME Chasing</b> - An alias is returned together with the records of its target</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <ol>
+ *   <li>Run this class; it listens on {@value #DEFAULT_PORT}</li>
+ *   <li>Run {@link Step3_ResolveName} with {@code stub 127.0.0.1 1053}</li>
+ *   <li>Type {@code www.example.test} or {@code alias.example.test}</li>
+ * </ol>
+ *
+ * @see Step3_DNS_Stub_Resolver
+ * @see Step3_DNS_Message
+ */
+class Step3_DNS_Local_Server {
+
+  /** Default port; 53 needs administrator rights, so a high port is used instead */
+  static final int DEFAULT_PORT = 1053;
+
+  /** Records by lower-case owner name */
+  private final Map<String, List<Step3_DNS_Message.Record>> zone = new ConcurrentHashMap<>();
+
+  /**
+   * Adds a record to the table.
+   *
+   * @param record the record to serve
+   * @return this server, for chaining
+   */
+  Step3_DNS_Local_Server add(Step3_DNS_Message.Record record) {
+    zone.computeIfAbsent(record.name().toLowerCase(Locale.ROOT), n -> new ArrayList<>()).add(record);
+    return this;
+  }
+
+  /**
+   * Answers queries until the thread is interrupted or the channel is closed.
+   *
+   * @param channel a bound datagram channel in blocking mode
+   * @throws IOException if receiving or sending fails
+   */
+  void serve(DatagramChannel channel) throws IOException {
+    ByteBuffer in = ByteBuffer.allocate(Step3_DNS_Message.MAX_UDP_SIZE);
+    ByteBuffer out = ByteBuffer.allocate(Step3_DNS_Message.MAX_UDP_SIZE);
+
+    while (!Thread.currentThread().isInterrupted()) {
+      SocketAddress client = channel.receive(in.clear());
+      in.flip();
+
+      Step3_DNS_Message.Message query;
+      try {
+        query = Step3_DNS_Message.decode(in);
+      } catch (ProtocolException e) {
+        continue;
+      }
+      if (query.isResponse() || query.questions().size() != 1) {
+        continue;
+      }
+
+      Step3_DNS_Message.Question question = query.questions().get(0);
+      out.clear();
+      try {
+        answer(out, query.id(), question);
+      } catch (BufferOverflowException e) {
+        // Too many records for one datagram: report a server failure instead
+        out.clear();
+        Step3_DNS_Message.encodeResponse(out, query.id(), Step3_DNS_Message.RCODE_SERVFAIL,
+            question, List.of());
+      }
+      channel.send(out.flip(), client);
+    }
+  }
+
+  /**
+   * Encodes the response to one question.
+   */
+  private void answer(ByteBuffer out, int id, Step3_DNS_Message.Question question)
+      throws ProtocolException {
+
+    String name = question.name().toLowerCase(Locale.ROOT);
+    if (!zone.containsKey(name)) {
+      Step3_DNS_Message.encodeResponse(out, id, Step3_DNS_Message.RCODE_NXDOMAIN, question, List.of());
+      return;
+    }
+
+    // Follow CNAMEs within the table, adding each alias to the answer
+    List<Step3_DNS_Message.Record> answers = new ArrayList<>();
+    for (int hops = 0; hops < 8 && name != null; hops++) {
+      String next = null;
+      for (Step3_DNS_Message.Record record : zone.getOrDefault(name, List.of())) {
+        if (record.type() == Step3_DNS_Message.TYPE_CNAME) {
+          answers.add(record);
+          next = record.target().toLowerCase(Locale.ROOT);
+        } else if (record.type() == question.type()) {
+          answers.add(record);
+        }
+      }
+      name = next;
+    }
+    Step3_DNS_Message.encodeResponse(out, id, Step3_DNS_Message.RCODE_NOERROR, question, answers);
+  }
+
+  /**
+   * Serves a few example names on loopback port {@value #DEFAULT_PORT}.
+   *
+   * @param args optional port number
+   * @throws IOException if the port cannot be bound
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+    Step3_DNS_Local_Server server = new Step3_DNS_Local_Server()
+        .add(Step3_DNS_Message.Record.address("www.example.test", 300,
+            InetAddress.getByName("192.0.2.10")))
+        .add(Step3_DNS_Message.Record.address("www.example.test", 300,
+            InetAddress.getByName("192.0.2.11")))
+        .add(Step3_DNS_Message.Record.address("www.example.test", 120,
+            InetAddress.getByName("2001:db8::10")))
+        .add(Step3_DNS_Message.Record.alias("alias.example.test", 60, "www.example.test"));
+
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      System.out.println("DNS SERVER listening on " + channel.getLocalAddress());
+      server.serve(channel);
+    }
+  }
+}
@@ -0,0 +1,321 @@
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Step 3: DNS Wire Format (RFC 1035)
+ *
+ * This class encodes and decodes DNS messages exactly as they travel inside a
+ * UDP datagram. It is what {@link java.net.InetAddress#getByName(String)} does
+ * behind the scenes, made visible.
+ *
+ * <h2>Message Layout:</h2>
+ * <pre>
+ * +---------------------+
+ * | Header   (12 bytes) |  id, flags, and the number of entries in each section
+ * +---------------------+
+ * | Question            |  the name and record type being asked for
+ * +---------------------+
+ * | Answer              |  resource records answering the question
+ * +---------------------+
+ * | Authority           |  (skipped by this decoder)
+ * +---------------------+
+ * | Additional          |  (skipped by this decoder)
+ * +---------------------+
+ * </pre>
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Transaction ID</b> - A 16-bit number the server copies into its reply so the client can match them</li>
+ *   <li><b>Labels</b> - Names are sent as length-prefixed parts: 3www6google3com0</li>
+ *   <li><b>Name Compression</b> - A name may end in a 2-byte pointer to a name earlier in the message</li>
+ *   <li><b>Record Types</b> - A (IPv4 address), AAAA (IPv6 address) and CNAME (alias for another name)</li>
+ *   <li><b>TTL</b> - Every answer says how many seconds it may be cached</li>
+ * </ul>
+ *
+ * @see Step3_DNS_Stub_Resolver
+ * @see Step3_DNS_Local_Server
+ */
+final class Step3_DNS_Message {
+
+  /** Record type: IPv4 address */
+  static final int TYPE_A = 1;
+
+  /** Record type: canonical name (alias) */
+  static final int TYPE_CNAME = 5;
+
+  /** Record type: IPv6 address */
+  static final int TYPE_AAAA = 28;
+
+  /** Record class: Internet */
+  static final int CLASS_IN = 1;
+
+  /** Response code: no error */
+  static final int RCODE_NOERROR = 0;
+
+  /** Response code: the server failed to process the query */
+  static final int RCODE_SERVFAIL = 2;
+
+  /** Response code: the name does not exist */
+  static final int RCODE_NXDOMAIN = 3;
+
+  /** Response code: the server will not answer this client */
+  static final int RCODE_REFUSED = 5;
+
+  /** Largest DNS message carried over plain UDP (RFC 1035 section 2.3.4) */
+  static final int MAX_UDP_SIZE = 512;
+
+  /** Flag bit: this message is a response */
+  private static final int FLAG_QR = 0x8000;
+
+  /** Flag bit: the message was truncated to fit in a datagram */
+  private static final int FLAG_TC = 0x0200;
+
+  /** Flag bit: recursion desired */
+  private static final int FLAG_RD = 0x0100;
+
+  /** Flag bit: recursion available */
+  private static final int FLAG_RA = 0x0080;
+
+  /**
+   * One question: which name and which record type.
+   */
+  record Question(String name, int type) { }
+
+  /**
+   * One resource record from the answer section.
+   *
+   * @param name the owner name of the record
+   * @param type the record type ({@link #TYPE_A}, {@link #TYPE_AAAA}, {@link #TYPE_CNAME}, ...)
+   * @param ttl seconds the record may be cached
+   * @param address the address for A and AAAA records, otherwise null
+   * @param target the alias target for CNAME records, otherwise null
+   */
+  record Record(String name, int type, int ttl, InetAddress address, String target) {
+
+    /** Creates an A or AAAA record */
+    static Record address(String name, int ttl, InetAddress address) {
+      int type = address.getAddress().length == 4 ? TYPE_A : TYPE_AAAA;
+      return new Record(name, type, ttl, address, null);
+    }
+
+    /** Creates a CNAME record */
+    static Record alias(String name, int ttl, String target) {
+      return new Record(name, TYPE_CNAME, ttl, null, target);
+    }
+  }
+
+  /**
+   * A decoded message.
+   *
+   * @param id the transaction id
+   * @param flags the raw 16-bit flags field
+   * @param questions the question section
+   * @param answers the answer section (records of unknown types are skipped)
+   */
+  record Message(int id, int flags, List<Question> questions, List<Record> answers) {
+
+    /** @return true if this is a response rather than a query */
+    boolean isResponse() {
+      return (flags & FLAG_QR) != 0;
+    }
+
+    /** @return true if the server truncated the response */
+    boolean isTruncated() {
+      return (flags & FLAG_TC) != 0;
+    }
+
+    /** @return the response code ({@link #RCODE_NOERROR}, {@link #RCODE_NXDOMAIN}, ...) */
+    int rcode() {
+      return flags & 0x000F;
+    }
+  }
+
+  private Step3_DNS_Message() {
+  }
+
+  /**
+   * Writes a recursive query for one name and type.
+   *
+   * @param out buffer to write into, starting at its position
+   * @param id the transaction id (0-65535)
+   * @param name the name to look up
+   * @param type the record type wanted
+   * @throws ProtocolException if the name is not a valid DNS name
+   */
+  static void encodeQuery(ByteBuffer out, int id, String name, int type) throws ProtocolException {
+    out.putShort((short) id);
+    out.putShort((short) FLAG_RD);
+    out.putShort((short) 1);   // one question
+    out.putShort((short) 0);   // no answers
+    out.putShort((short) 0);   // no authority records
+    out.putShort((short) 0);   // no additional records
+    putName(out, name);
+    out.putShort((short) type);
+    out.putShort((short) CLASS_IN);
+  }
+
+  /**
+   * Writes a response to a single question.
+   *
+   * @param out buffer to write into, starting at its position
+   * @param id the transaction id copied from the query
+   * @param rcode the response code
+   * @param question the question being answered
+   * @param answers the records for the answer section
+   * @throws ProtocolException if a name is not a valid DNS name
+   */
+  static void encodeResponse(ByteBuffer out, int id, int rcode, Question question,
+                             List<Record> answers) throws ProtocolException {
+    out.putShort((short) id);
+    out.putShort((short) (FLAG_QR | FLAG_RD | FLAG_RA | rcode));
+    out.putShort((short) 1);
+    out.putShort((short) answers.size());
+    out.putShort((short) 0);
+    out.putShort((short) 0);
+    putName(out, question.name());
+    out.putShort((short) question.type());
+    out.putShort((short) CLASS_IN);
+
+    for (Record record : answers) {
+      putName(out, record.name());
+      out.putShort((short) record.type());
+      out.putShort((short) CLASS_IN);
+      out.putInt(record.ttl());
+      if (record.type() == TYPE_CNAME) {
+        // RDLENGTH is only known after the target name is written
+        int lengthAt = out.position();
+        out.putShort((short) 0);
+        putName(out, record.target());
+        out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+      } else {
+        byte[] address = record.address().getAddress();
+        out.putShort((short) address.length);
+        out.put(address);
+      }
+    }
+  }
+
+  /**
+   * Decodes a whole message from the remaining bytes of {@code in}.
+   *
+   * @param in the datagram payload
+   * @return the decoded message
+   * @throws ProtocolException if the message is malformed
+   */
+  static Message decode(ByteBuffer in) throws ProtocolException {
+    try {
+      int start = in.position();
+      int id = in.getShort() & 0xFFFF;
+      int flags = in.getShort() & 0xFFFF;
+      int questionCount = in.getShort() & 0xFFFF;
+      int answerCount = in.getShort() & 0xFFFF;
+      in.getShort();   // authority count - not decoded
+      in.getShort();   // additional count - not decoded
+
+      List<Question> questions = new ArrayList<>(questionCount);
+      for (int i = 0; i < questionCount; i++) {
+        String name = getName(in, start);
+        int type = in.getShort() & 0xFFFF;
+        in.getShort();   // class
+        questions.add(new Question(name, type));
+      }
+
+      List<Record> answers = new ArrayList<>(answerCount);
+      for (int i = 0; i < answerCount; i++) {
+        String name = getName(in, start);
+        int type = in.getShort() & 0xFFFF;
+        in.getShort();   // class
+        int ttl = in.getInt();
+        int length = in.getShort() & 0xFFFF;
+        int next = in.position() + length;
+
+        // RFC 2181: a TTL with the top bit set is treated as zero
+        ttl = Math.max(ttl, 0);
+
+        if ((type == TYPE_A && length == 4) || (type == TYPE_AAAA && length == 16)) {
+          byte[] address = new byte[length];
+          in.get(address);
+          answers.add(new Record(name, type, ttl, InetAddress.getByAddress(name, address), null));
+        } else if (type == TYPE_CNAME) {
+          answers.add(new Record(name, type, ttl, null, getName(in, start)));
+        }
+        in.position(next);
+      }
+      return new Message(id, flags, questions, answers);
+
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+             | UnknownHostException e) {
+      throw new ProtocolException("malformed DNS message: " + e);
+    }
+  }
+
+  /**
+   * Writes a name as a sequence of labels ending with a zero-length label.
+   */
+  private static void putName(ByteBuffer out, String name) throws ProtocolException {
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    if (!name.isEmpty()) {
+      for (String label : name.split("\\.", -1)) {
+        byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length == 0 || bytes.length > 63) {
+          throw new ProtocolException("invalid DNS name: " + name);
+        }
+        out.put((byte) bytes.length);
+        out.put(bytes);
+      }
+    }
+    out.put((byte) 0);
+  }
+
+  /**
+   * Reads a name, following compression pointers.
+   *
+   * @param in buffer positioned at the name; left positioned just after it
+   * @param messageStart position of the message header, which pointers are relative to
+   */
+  private static String getName(ByteBuffer in, int messageStart) throws ProtocolException {
+    StringBuilder name = new StringBuilder();
+    int position = in.position();
+    int resumeAt = -1;
+
+    // Each pointer must go backwards, which rules out loops; the hop limit is a second guard
+    for (int hops = 0; ; ) {
+      int length = in.get(position) & 0xFF;
+      if (length == 0) {
+        position++;
+        break;
+      }
+      if ((length & 0xC0) == 0xC0) {
+        int target = messageStart + (((length & 0x3F) << 8) | (in.get(position + 1) & 0xFF));
+        if (target >= position || ++hops > 64) {
+          throw new ProtocolException("bad compression pointer in DNS name");
+        }
+        if (resumeAt < 0) {
+          resumeAt = position + 2;
+        }
+        position = target;
+        continue;
+      }
+      if (length > 63) {
+        throw new ProtocolException("bad label length in DNS name");
+      }
+      if (name.length() > 0) {
+        name.append('.');
+      }
+      for (int i = 1; i <= length; i++) {
+        name.append((char) (in.get(position + i) & 0xFF));
+      }
+      position += length + 1;
+    }
+    in.position(resumeAt >= 0 ? resumeAt : position);
+    return name.toString();
+  }
+}
@@ -0,0 +1,447 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Step 3: DNS Stub Resolver Speaking the Wire Protocol
+ *
+ * This class resolves names by sending DNS queries itself, over UDP, instead of
+ * asking the operating system through {@link InetAddress#getByName(String)}.
+ * Because it sees the raw answers it can report every address and the real TTL,
+ * and because it never blocks a thread per lookup it can have thousands of
+ * queries outstanding over a single socket.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Stub Resolver</b> - A client that asks a recursive DNS server to do the actual work</li>
+ *   <li><b>Multiplexing</b> - Many queries share one non-blocking socket; replies are matched by transaction ID</li>
+ *   <li><b>Event Loop</b> - One thread waits on a {@link Selector} for replies and for queries to send</li>
+ *   <li><b>Retransmission</b> - A query without an answer is resent, since UDP may lose either direction</li>
+ *   <li><b>CNAME Chains</b> - Aliases in the answer are followed to the final addresses</li>
+ *   <li><b>Metrics</b> - Queries, retransmissions, timeouts and reply times are recorded in {@link Step4_Metrics}</li>
+ * </ul>
+ *
+ * <h2>How It Works:</h2>
+ * <ol>
+ *   <li>{@link #query(String, int)} queues a query and wakes the event loop</li>
+ *   <li>The loop gives it a free 16-bit transaction ID and sends every queued query in one pass</li>
+ *   <li>Replies are decoded with {@link Step3_DNS_Message} and complete the matching future</li>
+ *   <li>Queries still unanswered after the timeout are resent, and fail after the last attempt</li>
+ * </ol>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step3_DNS_Local_Server}, then run {@link Step3_ResolveName} with
+ * {@code stub 127.0.0.1 1053} and type one of the names it serves.</p>
+ *
+ * @see Step3_DNS_Message
+ * @see Step3_DNS_Local_Server
+ * @see Step3_Bulk_Resolver
+ */
+class Step3_DNS_Stub_Resolver implements AutoCloseable {
+
+  /** Standard DNS port */
+  static final int DNS_PORT = 53;
+
+  /** TTL applied to "name does not exist" answers, in seconds */
+  static final int NEGATIVE_TTL = 10;
+
+  private static final Step4_Metrics.Counter QUERIES_OUT = Step4_Metrics.counter("dns_stub_queries_out");
+  private static final Step4_Metrics.Counter RETRANSMITS = Step4_Metrics.counter("dns_stub_retransmits");
+  private static final Step4_Metrics.Counter TIMEOUTS = Step4_Metrics.counter("dns_stub_timeouts");
+
+  /** Replies with the TC flag set, which fail their query */
+  private static final Step4_Metrics.Counter TRUNCATED = Step4_Metrics.counter("dns_stub_truncated");
+
+  /** Time from queueing a query to its matching reply */
+  private static final Step4_Metrics.Histogram QUERY_TIME = Step4_Metrics.histogram("dns_stub_query_micros");
+
+  /** A query that has been requested but not yet answered */
+  private static final class Pending {
+    final String name;
+    final int type;
+    final CompletableFuture<Step3_DNS_Message.Message> result = new CompletableFuture<>();
+    final long queuedNanos = System.nanoTime();
+    int id = -1;
+    int attempts;
+    long deadlineNanos;
+
+    Pending(String name, int type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  /** The DNS server queries are sent to */
+  private final SocketAddress server;
+
+  /** Non-blocking socket shared by all queries */
+  private final DatagramChannel channel;
+
+  /** Wakes the event loop for replies and new queries */
+  private final Selector selector;
+
+  /** Queries waiting to be sent for the first time */
+  private final ConcurrentLinkedQueue<Pending> toSend = new ConcurrentLinkedQueue<>();
+
+  /** Sent queries by transaction ID; only touched by the event loop thread */
+  private final HashMap<Integer, Pending> outstanding = new HashMap<>();
+
+  /**
+   * Every transmission in the order sent, which (with one timeout for all) is
+   * deadline order, so the next query to expire is always at the head.
+   * Answered queries are not searched for; they are skipped when they reach
+   * the head. Only touched by the event loop thread.
+   */
+  private final ArrayDeque<Pending> bySendTime = new ArrayDeque<>();
+
+  /** Reused for encoding every outgoing query; only touched by the event loop thread */
+  private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(Step3_DNS_Message.MAX_UDP_SIZE);
+
+  /** Reused for every incoming reply; only touched by the event loop thread */
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocate(Step3_DNS_Message.MAX_UDP_SIZE);
+
+  /** How long to wait for each attempt */
+  private final long timeoutNanos;
+
+  /** Total number of times a query is sent before it fails */
+  private final int maxAttempts;
+
+  /** The event loop thread */
+  private final Thread loop;
+
+  /**
+   * Opens a resolver that sends its queries to {@code server}.
+   *
+   * @param server address and port of a recursive DNS server
+   * @param timeoutMillis how long to wait for a reply before resending
+   * @param maxAttempts how many times to send each query before failing it
+   * @throws IOException if the socket cannot be opened
+   */
+  Step3_DNS_Stub_Resolver(SocketAddress server, long timeoutMillis, int maxAttempts)
+      throws IOException {
+    this.server = server;
+    this.timeoutNanos = timeoutMillis * 1_000_000L;
+    this.maxAttempts = maxAttempts;
+
+    this.selector = Selector.open();
+    this.channel = DatagramChannel.open();
+    channel.bind(null);
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_READ);
+
+    this.loop = new Thread(this::runLoop, "dns-stub-resolver");
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+  /**
+   * Sends one query and returns a future for the server's reply.
+   *
+   * <p>The future fails with {@link TimeoutException} if no reply arrives after
+   * all attempts, and with {@link ProtocolException} if the reply was truncated:
+   * this resolver only speaks UDP, so it cannot fetch the full answer over TCP.
+   * A reply with an error code (such as NXDOMAIN) still completes the future
+   * normally; see {@link Step3_DNS_Message.Message#rcode()}.</p>
+   *
+   * @param name the name to look up
+   * @param type the record type wanted, e.g. {@link Step3_DNS_Message#TYPE_A}
+   * @return a future completed with the decoded reply
+   */
+  CompletableFuture<Step3_DNS_Message.Message> query(String name, int type) {
+    Pending pending = new Pending(name, type);
+    toSend.add(pending);
+    selector.wakeup();
+    return pending.result;
+  }
+
+  /**
+   * Looks up both the IPv4 and IPv6 addresses of a name, following CNAMEs.
+   *
+   * <p>The answer's TTL is the smallest TTL of the records used. A name that
+   * does not exist (NXDOMAIN), or has no addresses (NODATA), gives an empty
+   * answer with {@value #NEGATIVE_TTL} seconds TTL. Any other error code, such as
+   * SERVFAIL or REFUSED, says nothing about the name, so the future fails with
+   * an {@link IOException} instead of being cached as an empty answer.</p>
+   *
+   * @param name the name to resolve
+   * @return a future completed with every address found
+   */
+  CompletableFuture<Step3_Bulk_Resolver.Answer> resolve(String name) {
+    CompletableFuture<Step3_DNS_Message.Message> v4 = query(name, Step3_DNS_Message.TYPE_A);
+    CompletableFuture<Step3_DNS_Message.Message> v6 = query(name, Step3_DNS_Message.TYPE_AAAA);
+    return v4.thenCombine(v6, (a, aaaa) -> {
+      if (a.rcode() == Step3_DNS_Message.RCODE_NXDOMAIN) {
+        return new Step3_Bulk_Resolver.Answer(List.of(), NEGATIVE_TTL);
+      }
+      checkRcode(name, a);
+      checkRcode(name, aaaa);
+      List<InetAddress> addresses = new ArrayList<>();
+      int ttl = Math.min(collect(name, a, addresses), collect(name, aaaa, addresses));
+      return new Step3_Bulk_Resolver.Answer(addresses,
+          addresses.isEmpty() ? NEGATIVE_TTL : ttl);
+    });
+  }
+
+  /**
+   * Adapts this resolver for {@link Step3_Bulk_Resolver}, whose cache then honours real record TTLs.
+   *
+   * @return a lookup that blocks its (virtual) thread until {@link #resolve(String)} completes
+   */
+  Step3_Bulk_Resolver.Lookup asLookup() {
+    return host -> resolve(host).get();
+  }
+
+  /**
+   * Stops the event loop and fails every query still waiting.
+   */
+  @Override
+  public void close() throws IOException {
+    loop.interrupt();
+    selector.wakeup();
+    try {
+      loop.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+    selector.close();
+  }
+
+  /**
+   * Fails the lookup if the server answered with an error other than NXDOMAIN.
+   *
+   * @throws CompletionException wrapping an {@link IOException} that names the error code
+   */
+  private static void checkRcode(String name, Step3_DNS_Message.Message reply) {
+    int rcode = reply.rcode();
+    if (rcode == Step3_DNS_Message.RCODE_NOERROR || rcode == Step3_DNS_Message.RCODE_NXDOMAIN) {
+      return;
+    }
+    String error = switch (rcode) {
+      case Step3_DNS_Message.RCODE_SERVFAIL -> "SERVFAIL";
+      case Step3_DNS_Message.RCODE_REFUSED -> "REFUSED";
+      default -> "rcode " + rcode;
+    };
+    throw new CompletionException(new IOException("DNS server answered " + error + " for " + name));
+  }
+
+  /**
+   * Adds the addresses reachable from {@code name} through the answer's CNAME chain.
+   *
+   * @return the smallest TTL of the records used, or {@link Integer#MAX_VALUE} if none
+   */
+  private static int collect(String name, Step3_DNS_Message.Message reply, List<InetAddress> into) {
+    int ttl = Integer.MAX_VALUE;
+    String current = name;
+
+    // Follow aliases; a chain longer than the answer section would be a loop
+    for (int hops = 0; hops <= reply.answers().size(); hops++) {
+      String alias = null;
+      for (Step3_DNS_Message.Record record : reply.answers()) {
+        if (!record.name().equalsIgnoreCase(current)) {
+          continue;
+        }
+        if (record.type() == Step3_DNS_Message.TYPE_CNAME) {
+          alias = record.target();
+          ttl = Math.min(ttl, record.ttl());
+        } else {
+          into.add(record.address());
+          ttl = Math.min(ttl, record.ttl());
+        }
+      }
+      if (alias == null) {
+        break;
+      }
+      current = alias;
+    }
+    return ttl;
+  }
+
+  /**
+   * The event loop: sends queued queries, reads replies, resends on timeout.
+   */
+  private void runLoop() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select(nextWaitMillis());
+        selector.selectedKeys().clear();
+
+        sendQueued();
+        readReplies();
+        expireQueries();
+      }
+    } catch (IOException e) {
+      outstanding.values().forEach(p -> p.result.completeExceptionally(e));
+      toSend.forEach(p -> p.result.completeExceptionally(e));
+      return;
+    }
+
+    IOException closed = new IOException("resolver closed");
+    outstanding.values().forEach(p -> p.result.completeExceptionally(closed));
+    toSend.forEach(p -> p.result.completeExceptionally(closed));
+  }
+
+  /**
+   * Gives every newly queued query a transaction ID and sends it.
+   */
+  private void sendQueued() throws IOException {
+    Pending pending;
+    while ((pending = toSend.poll()) != null) {
+      if (outstanding.size() >= 0x10000) {
+        pending.result.completeExceptionally(new IOException("too many outstanding DNS queries"));
+        continue;
+      }
+
+      // Random IDs make replies harder to spoof than a counter would
+      int id;
+      do {
+        id = ThreadLocalRandom.current().nextInt(0x10000);
+      } while (outstanding.containsKey(id));
+
+      pending.id = id;
+      outstanding.put(id, pending);
+      transmit(pending);
+    }
+  }
+
+  /**
+   * Sends (or resends) one query and sets its deadline.
+   */
+  private void transmit(Pending pending) throws IOException {
+    sendBuffer.clear();
+    try {
+      Step3_DNS_Message.encodeQuery(sendBuffer, pending.id, pending.name, pending.type);
+    } catch (ProtocolException e) {
+      outstanding.remove(pending.id);
+      pending.result.completeExceptionally(e);
+      return;
+    }
+    sendBuffer.flip();
+    if (pending.attempts++ > 0) {
+      RETRANSMITS.increment();
+    }
+    QUERIES_OUT.increment();
+    pending.deadlineNanos = System.nanoTime() + timeoutNanos;
+    bySendTime.addLast(pending);
+
+    // If the socket buffer is full the datagram is dropped; the timeout resends it
+    channel.send(sendBuffer, server);
+  }
+
+  /**
+   * Reads every reply already waiting and completes the matching queries.
+   */
+  private void readReplies() throws IOException {
+    SocketAddress from;
+    while ((from = channel.receive(receiveBuffer.clear())) != null) {
+      if (!from.equals(server)) {
+        continue;
+      }
+      receiveBuffer.flip();
+
+      Step3_DNS_Message.Message reply;
+      try {
+        reply = Step3_DNS_Message.decode(receiveBuffer);
+      } catch (ProtocolException e) {
+        continue;
+      }
+
+      // The reply must echo both the ID and the question that was asked
+      Pending pending = outstanding.get(reply.id());
+      if (pending == null || !reply.isResponse() || reply.questions().size() != 1) {
+        continue;
+      }
+      Step3_DNS_Message.Question question = reply.questions().get(0);
+      if (question.type() != pending.type || !question.name().equalsIgnoreCase(pending.name)) {
+        continue;
+      }
+      outstanding.remove(reply.id());
+      QUERY_TIME.recordSince(pending.queuedNanos);
+      // A truncated answer may be missing records; the rest is only available over TCP
+      if (reply.isTruncated()) {
+        TRUNCATED.increment();
+        pending.result.completeExceptionally(new ProtocolException(
+            "truncated DNS reply for " + pending.name + "; the full answer needs TCP"));
+        continue;
+      }
+      pending.result.complete(reply);
+    }
+  }
+
+  /**
+   * Resends queries whose deadline has passed, or fails them after the last attempt.
+   * Only the head of {@link #bySendTime} is looked at, so a wake-up costs nothing
+   * per query still waiting.
+   */
+  private void expireQueries() throws IOException {
+    long now = System.nanoTime();
+    List<Pending> resend = null;
+    Pending pending;
+    while ((pending = oldest()) != null && pending.deadlineNanos - now <= 0) {
+      bySendTime.pollFirst();
+      if (pending.attempts >= maxAttempts) {
+        outstanding.remove(pending.id);
+        TIMEOUTS.increment();
+        pending.result.completeExceptionally(new TimeoutException(
+            "no DNS reply for " + pending.name + " after " + pending.attempts + " attempts"));
+      } else {
+        if (resend == null) {
+          resend = new ArrayList<>();
+        }
+        resend.add(pending);
+      }
+    }
+    // Resent after the loop, so their new deadlines go behind everything already due
+    if (resend != null) {
+      for (Pending due : resend) {
+        transmit(due);
+      }
+    }
+  }
+
+  /**
+   * How long the selector may sleep before the earliest deadline; 0 means "no limit".
+   */
+  private long nextWaitMillis() {
+    Pending pending = oldest();
+    if (pending == null) {
+      return 0;
+    }
+    return Math.max(1, (pending.deadlineNanos - System.nanoTime()) / 1_000_000L + 1);
+  }
+
+  /**
+   * Drops answered (or failed) queries from the head of {@link #bySendTime}.
+   *
+   * @return the unanswered query sent longest ago, or null if none is waiting
+   */
+  private Pending oldest() {
+    Pending pending;
+    while ((pending = bySendTime.peekFirst()) != null && outstanding.get(pending.id) != pending) {
+      bySendTime.pollFirst();
+    }
+    return pending;
+  }
+
+  /**
+   * Convenience factory for a resolver talking to the server at {@code host:port}.
+   */
+  static Step3_DNS_Stub_Resolver to(String host, int port) throws IOException {
+    return new Step3_DNS_Stub_Resolver(new InetSocketAddress(host, port), 1000, 3);
+  }
+}
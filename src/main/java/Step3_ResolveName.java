@@ -1,4 +1,5 @@
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -34,6 +35,19 @@ import java.net.UnknownHostException;
  * Output: Unknown host
  * </pre>
  *
+ * <h2>Bulk Mode:</h2>
+ * <p>Run with {@code bulk [concurrency] [completed]} to resolve the input with
+ * {@link Step3_Bulk_Resolver}: many lookups run at once on virtual threads and
+ * repeated names are answered from a cache. By default results are printed in
+ * input order; with {@code completed} each line is printed as soon as it is
+ * resolved, prefixed with the hostname.</p>
+ *
+ * <h2>Stub Resolver Mode:</h2>
+ * <p>Run with {@code stub <dns-server> [port]} to bypass the operating system and
+ * send the DNS queries directly with {@link Step3_DNS_Stub_Resolver}. Every
+ * address of each name is printed, and answers are cached for their real TTL.
+ * {@link Step3_DNS_Local_Server} provides a server to try this against.</p>
+ *
  * <h2>Learning Objectives:</h2>
  * <ul>
  *   <li>Understand how DNS resolution works in Java</li>
@@ -41,38 +55,126 @@ import java.net.UnknownHostException;
  *   <li>Practice using Java streams for input processing</li>
  * </ul>
  *
+ * @see Step3_Bulk_Resolver
+ * @see Step3_DNS_Stub_Resolver
  * @see java.net.InetAddress
  * @see java.net.UnknownHostException
  */
 public class Step3_ResolveName {
 
+  /** Default number of concurrent lookups in bulk mode */
+  private static final int DEFAULT_CONCURRENCY = 256;
+
+  /** Number of names kept in the bulk mode cache */
+  private static final int CACHE_SIZE = 100_000;
+
   /**
    * Main entry point that reads hostnames from stdin and resolves them to IP addresses.
    *
-   * @param args command line arguments (not used)
+   * @param args {@code bulk [concurrency] [completed]} for bulk mode,
+   *             {@code stub <dns-server> [port]} for stub resolver mode, otherwise not used
+   * @throws InterruptedException if interrupted while waiting for bulk results
+   * @throws IOException if the stub resolver socket cannot be opened
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws InterruptedException, IOException {
 
     // Create a BufferedReader to read from standard input
     BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
 
+    // Start any metrics exporters requested with -Dmetrics.port / -Dmetrics.file
+    Step4_Metrics.exportFromProperties();
+
+    if (args.length > 0 && args[0].equals("bulk")) {
+      int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONCURRENCY;
+      boolean completed = args.length > 2 && args[2].equals("completed");
+      resolveBulk(input, concurrency, completed);
+      return;
+    }
+
+    if (args.length > 1 && args[0].equals("stub")) {
+      int port = args.length > 2 ? Integer.parseInt(args[2]) : Step3_DNS_Stub_Resolver.DNS_PORT;
+      resolveWithStub(input, args[1], port);
+      return;
+    }
+
     // Process each line of input using Java 8 streams
-    input.lines().forEach((line) -> {
+    input.lines().forEach((line) -> System.out.println(resolve(line)));
+  }
+
+  /**
+   * Resolves one hostname with the system resolver.
+   *
+   * @param host the hostname (or address literal) to look up
+   * @return the address in text form, or "Unknown host" if resolution fails
+   */
+  static String resolve(String host) {
+    try {
+      // Perform DNS resolution - converts hostname to InetAddress
+      // This contacts the system's configured DNS server
+      InetAddress address = InetAddress.getByName(host);
 
-      try {
-        // Perform DNS resolution - converts hostname to InetAddress
-        // This contacts the system's configured DNS server
-        InetAddress address = InetAddress.getByName(line);
+      // The IP address in dotted decimal notation (e.g., "192.168.1.1")
+      return address.getHostAddress();
 
-        // Print the resolved IP address in dotted decimal notation (e.g., "192.168.1.1")
-        System.out.println(address.getHostAddress());
+    } catch (UnknownHostException e) {
+      // DNS resolution failed - hostname doesn't exist or DNS server unreachable
+      return "Unknown host";
+    }
+  }
+
+  /**
+   * Resolves every input line concurrently and prints the results.
+   *
+   * @param input the hostnames, one per line
+   * @param concurrency maximum number of lookups running at once
+   * @param completed true to print results as they finish instead of in input order
+   * @throws InterruptedException if interrupted while waiting for results
+   */
+  static void resolveBulk(BufferedReader input, int concurrency, boolean completed)
+      throws InterruptedException {
+
+    try (Step3_Bulk_Resolver resolver = new Step3_Bulk_Resolver(concurrency, CACHE_SIZE)) {
+      Step3_Bulk_Resolver.Order order =
+          completed ? Step3_Bulk_Resolver.Order.COMPLETION : Step3_Bulk_Resolver.Order.INPUT;
+
+      resolver.resolveAll(input.lines().iterator(), order, result -> {
+        String answer = result.unknown()
+            ? "Unknown host"
+            : result.addresses().get(0).getHostAddress();
+        System.out.println(completed ? result.host() + " " + answer : answer);
+      });
+    }
+  }
+
+  /**
+   * Resolves every input line by querying {@code server} directly and prints all
+   * addresses of each name on one line.
+   *
+   * @param input the hostnames, one per line
+   * @param server the DNS server to query
+   * @param port the DNS server's port
+   * @throws IOException if the resolver socket cannot be opened
+   * @throws InterruptedException if interrupted while waiting for results
+   */
+  static void resolveWithStub(BufferedReader input, String server, int port)
+      throws IOException, InterruptedException {
 
-      } catch (UnknownHostException e) {
-        // DNS resolution failed - hostname doesn't exist or DNS server unreachable
-        System.out.println("Unknown host");
-      }
+    try (Step3_DNS_Stub_Resolver stub = Step3_DNS_Stub_Resolver.to(server, port);
+         Step3_Bulk_Resolver resolver =
+             new Step3_Bulk_Resolver(DEFAULT_CONCURRENCY, CACHE_SIZE, stub.asLookup())) {
 
-    });
+      resolver.resolveAll(input.lines().iterator(), Step3_Bulk_Resolver.Order.INPUT, result -> {
+        if (result.unknown()) {
+          System.out.println("Unknown host");
+          return;
+        }
+        StringBuilder line = new StringBuilder();
+        for (InetAddress address : result.addresses()) {
+          line.append(line.length() == 0 ? "" : " ").append(address.getHostAddress());
+        }
+        System.out.println(line);
+      });
+    }
   }
 
-}
\ No newline at end of file
+}
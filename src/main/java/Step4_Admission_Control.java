@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Step 4: Admission Control for a UDP Server
+ *
+ * When a server cannot keep up, the kernel's socket buffer fills and further
+ * datagrams are thrown away without the program ever knowing. This class moves
+ * that decision into the server: a receive thread takes datagrams off the
+ * socket as fast as it can, decides which ones to accept, and hands those to
+ * worker threads through a bounded queue. Everything refused is counted.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Token Buckets</b> - Each source host may send {@code rate} datagrams per second on
+ *       average, with bursts of up to {@code burst}; one noisy client cannot crowd out the rest</li>
+ *   <li><b>Lock-Free Buckets</b> - A bucket is one {@link AtomicLong} (the time its next token
+ *       is due), updated with compare-and-set; the buckets live in a {@link ConcurrentHashMap},
+ *       whose reads never lock</li>
+ *   <li><b>Bounded Queue</b> - At most {@code queueCapacity} datagrams wait for a worker, so the
+ *       time a datagram can wait is bounded too: latency grows to a limit and stays there</li>
+ *   <li><b>Explicit Shedding</b> - Datagrams over a source's rate, and datagrams that find the
+ *       queue full, are dropped on purpose and counted, instead of vanishing in the kernel</li>
+ *   <li><b>Socket Buffer Sizing</b> - {@code -Dudp.rcvbuf} and {@code -Dudp.sndbuf} set
+ *       {@code SO_RCVBUF} and {@code SO_SNDBUF}; see {@link Step4_UDP_Receiver}</li>
+ * </ul>
+ *
+ * <h2>Metrics:</h2>
+ * <ul>
+ *   <li>{@code admission_accepted}, {@code admission_shed_rate}, {@code admission_shed_queue},
+ *       {@code admission_shed_sources} - what happened to each datagram</li>
+ *   <li>{@code admission_queue_wait_micros} - time from receive to a worker picking it up</li>
+ *   <li>{@code admission_queue_depth}, {@code admission_sources} - current values</li>
+ *   <li>{@code udp_rcvbuf_errors} - datagrams the Linux kernel dropped for lack of buffer space,
+ *       for every socket on the machine (-1 elsewhere)</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} with {@code admission [rate] [burst] [workMicros]},
+ * then load it with {@link Step4_UDP_Echo_Client} {@code load ...}.</p>
+ *
+ * @see Step4_UDP_Receiver
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_Metrics
+ */
+class Step4_Admission_Control implements AutoCloseable {
+
+  /** Default number of datagrams that may wait for a worker */
+  static final int DEFAULT_QUEUE = 1024;
+
+  /** Default number of source hosts tracked at once */
+  static final int DEFAULT_MAX_SOURCES = 65_536;
+
+  /** A bucket that has been full this long is forgotten */
+  private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /** Copies of datagrams up to this size come from the pool; larger ones are allocated */
+  private static final int COPY_SIZE = 2048;
+
+  private static final Step4_Metrics.Counter ACCEPTED = Step4_Metrics.counter("admission_accepted");
+  private static final Step4_Metrics.Counter SHED_RATE = Step4_Metrics.counter("admission_shed_rate");
+  private static final Step4_Metrics.Counter SHED_QUEUE = Step4_Metrics.counter("admission_shed_queue");
+  private static final Step4_Metrics.Counter SHED_SOURCES = Step4_Metrics.counter("admission_shed_sources");
+  private static final Step4_Metrics.Histogram QUEUE_WAIT =
+      Step4_Metrics.histogram("admission_queue_wait_micros");
+
+  /**
+   * A token bucket stored as the time its next token becomes available
+   * (the "generic cell rate algorithm"). A full bucket is a time in the past.
+   */
+  static final class TokenBucket {
+
+    private final AtomicLong nextToken;
+
+    TokenBucket(long now) {
+      nextToken = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @param intervalNanos time to earn one token
+     * @param burstNanos time to earn a full bucket, less one token
+     * @return true if the datagram is admitted
+     */
+    boolean tryAcquire(long now, long intervalNanos, long burstNanos) {
+      while (true) {
+        long due = nextToken.get();
+        long start = Math.max(due, now);
+        if (start - now > burstNanos) {
+          return false;
+        }
+        if (nextToken.compareAndSet(due, start + intervalNanos)) {
+          return true;
+        }
+      }
+    }
+
+    /** @return true if the bucket has been full for at least {@code idleNanos} */
+    boolean idleSince(long now, long idleNanos) {
+      return now - nextToken.get() > idleNanos;
+    }
+  }
+
+  /** An accepted datagram waiting for a worker */
+  private record Work(ByteBuffer data, SocketAddress source, long receivedNanos) { }
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final int maxSources;
+  private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final ArrayBlockingQueue<Work> queue;
+  private final Step4_BufferPool pool;
+  private final Step4_UDP_Receiver.Handler processor;
+  private final List<Thread> workers = new ArrayList<>();
+  private long nextSweep;
+
+  /**
+   * Creates the admission layer and starts its workers.
+   *
+   * @param rate datagrams per second allowed from each source host
+   * @param burst datagrams a source may send at once after being quiet
+   * @param queueCapacity most datagrams waiting for a worker
+   * @param workerCount number of worker threads
+   * @param maxSources most source hosts tracked; new hosts beyond that are shed
+   * @param processor handles each accepted datagram on a worker thread; the buffer
+   *                  is only valid during the call
+   */
+  Step4_Admission_Control(double rate, int burst, int queueCapacity, int workerCount, int maxSources,
+                          Step4_UDP_Receiver.Handler processor) {
+    if (rate <= 0 || burst < 1) {
+      throw new IllegalArgumentException("rate must be positive and burst at least 1");
+    }
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    this.burstNanos = (burst - 1) * intervalNanos;
+    this.maxSources = maxSources;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.pool = new Step4_BufferPool(queueCapacity + workerCount, COPY_SIZE, false);
+    this.processor = processor;
+
+    Step4_Metrics.gauge("admission_queue_depth", queue::size);
+    Step4_Metrics.gauge("admission_sources", buckets::size);
+    Step4_Metrics.gauge("udp_rcvbuf_errors", Step4_Admission_Control::kernelReceiveErrors);
+
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(this::work, "admission-worker-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Receives on {@code receiver} until it is closed, admitting or shedding
+   * every datagram. Runs on the calling thread.
+   *
+   * @throws IOException if the receiver fails
+   */
+  void run(Step4_UDP_Receiver receiver) throws IOException {
+    receiver.receiveLoop(this::offer);
+  }
+
+  /**
+   * Decides what happens to one received datagram.
+   *
+   * @param data the datagram; copied if it is accepted
+   * @param source where it came from
+   * @return true if it was queued for a worker
+   */
+  boolean offer(ByteBuffer data, SocketAddress source) {
+    long now = System.nanoTime();
+    if (now - nextSweep > 0) {
+      sweep(now);
+      nextSweep = now + TimeUnit.SECONDS.toNanos(1);
+    }
+
+    InetAddress host = ((InetSocketAddress) source).getAddress();
+    TokenBucket bucket = buckets.get(host);
+    if (bucket == null) {
+      if (buckets.size() >= maxSources) {
+        SHED_SOURCES.increment();
+        return false;
+      }
+      bucket = buckets.computeIfAbsent(host, h -> new TokenBucket(now));
+    }
+    if (!bucket.tryAcquire(now, intervalNanos, burstNanos)) {
+      SHED_RATE.increment();
+      return false;
+    }
+
+    int length = data.remaining();
+    ByteBuffer copy = length <= COPY_SIZE ? pool.acquire() : ByteBuffer.allocate(length);
+    copy.put(data).flip();
+    if (!queue.offer(new Work(copy, source, now))) {
+      pool.release(copy);
+      SHED_QUEUE.increment();
+      return false;
+    }
+    ACCEPTED.increment();
+    return true;
+  }
+
+  /**
+   * Forgets sources whose bucket has been full for a while, so the map only
+   * holds hosts that are actually sending.
+   */
+  private void sweep(long now) {
+    Iterator<TokenBucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().idleSince(now, IDLE_NANOS)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Worker loop: takes accepted datagrams off the queue and processes them.
+   */
+  private void work() {
+    try {
+      while (true) {
+        Work next = queue.take();
+        QUEUE_WAIT.recordSince(next.receivedNanos());
+        try {
+          processor.onDatagram(next.data(), next.source());
+        } catch (IOException e) {
+          System.out.println("ADMISSION worker failed on a datagram: " + e);
+        } finally {
+          pool.release(next.data());
+        }
+      }
+    } catch (InterruptedException e) {
+      // close() was called
+    }
+  }
+
+  /**
+   * Stops the workers; datagrams still queued are discarded.
+   */
+  @Override
+  public void close() {
+    workers.forEach(Thread::interrupt);
+    queue.clear();
+  }
+
+  /**
+   * Reads the kernel's count of UDP datagrams dropped because a socket buffer
+   * was full, from {@code /proc/net/snmp}.
+   *
+   * @return the count for the whole machine, or -1 if it is not available
+   */
+  static long kernelReceiveErrors() {
+    try {
+      List<String> lines = Files.readAllLines(Path.of("/proc/net/snmp"));
+      for (int i = 0; i + 1 < lines.size(); i++) {
+        if (lines.get(i).startsWith("Udp:") && lines.get(i + 1).startsWith("Udp:")) {
+          String[] names = lines.get(i).split("\\s+");
+          String[] values = lines.get(i + 1).split("\\s+");
+          for (int j = 1; j < names.length && j < values.length; j++) {
+            if (names[j].equals("RcvbufErrors")) {
+              return Long.parseLong(values[j]);
+            }
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // not Linux, or an unexpected format
+    }
+    return -1;
+  }
+}
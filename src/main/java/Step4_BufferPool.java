@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Step 4: Bounded Pool of Receive Buffers
+ *
+ * This class keeps a small number of {@link ByteBuffer}s around so that receive
+ * loops can reuse them instead of allocating a new array for every packet.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Object Pooling</b> - Reusing buffers avoids garbage collection pressure on hot paths</li>
+ *   <li><b>Direct Buffers</b> - Memory outside the Java heap that the kernel can copy into directly</li>
+ *   <li><b>Bounded Resources</b> - The pool never holds more than a fixed number of idle buffers</li>
+ * </ul>
+ *
+ * <h2>Design Notes:</h2>
+ * <ul>
+ *   <li>{@link #acquire()} never blocks: if the pool is empty a fresh buffer is allocated</li>
+ *   <li>{@link #poll()} never allocates, for callers that bound the number of buffers themselves</li>
+ *   <li>{@link #release(ByteBuffer)} drops the buffer if the pool is already full</li>
+ *   <li>Safe to share between threads (backed by an {@link ArrayBlockingQueue})</li>
+ * </ul>
+ *
+ * @see Step4_UDP_Receiver
+ */
+class Step4_BufferPool {
+
+  /** Idle buffers ready to be handed out */
+  private final ArrayBlockingQueue<ByteBuffer> free;
+
+  /** Capacity in bytes of every buffer in this pool */
+  private final int bufferSize;
+
+  /** Whether buffers are allocated outside the Java heap */
+  private final boolean direct;
+
+  /**
+   * Creates a pool that retains at most {@code capacity} idle buffers.
+   *
+   * @param capacity maximum number of idle buffers kept for reuse
+   * @param bufferSize size in bytes of each buffer
+   * @param direct true to allocate direct (off-heap) buffers
+   */
+  Step4_BufferPool(int capacity, int bufferSize, boolean direct) {
+    this.free = new ArrayBlockingQueue<>(capacity);
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+  }
+
+  /**
+   * Takes a cleared buffer from the pool, allocating a new one if none is idle.
+   *
+   * @return a buffer with position 0 and limit equal to its capacity
+   */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+    return buffer.clear();
+  }
+
+  /**
+   * Takes a cleared buffer from the pool without allocating.
+   *
+   * @return a buffer with position 0 and limit equal to its capacity, or null if none is idle
+   */
+  ByteBuffer poll() {
+    ByteBuffer buffer = free.poll();
+    return buffer == null ? null : buffer.clear();
+  }
+
+  /**
+   * Returns a buffer to the pool. The caller must not use it afterwards.
+   *
+   * @param buffer a buffer previously obtained from {@link #acquire()}
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+      free.offer(buffer.clear());
+    }
+  }
+
+  /**
+   * @return the size in bytes of the buffers handed out by this pool
+   */
+  int bufferSize() {
+    return bufferSize;
+  }
+}
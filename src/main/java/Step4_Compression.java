@@ -0,0 +1,288 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Step 4: Negotiated Compression and Message Packing
+ *
+ * Many small messages cost one datagram each, and on a slow link every byte
+ * counts. This class packs several small messages into one datagram and, above
+ * a size threshold, compresses the datagram with DEFLATE. Both features are
+ * switched on only if the peer says it understands them.
+ *
+ * <h2>Datagram Layout:</h2>
+ * <pre>
+ * | kind (1 B) | body |
+ *
+ * kind 0x00-0x03: data; bit 0 = body is DEFLATE-compressed, bit 1 = body is packed
+ * packed body:    | length (2 B) | message | length (2 B) | message | ...
+ * kind 0x40:      HELLO, body = capabilities offered (1 B)
+ * kind 0x41:      HELLO_ACK, body = capabilities accepted (1 B)
+ * </pre>
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Negotiation</b> - A client offers its capabilities in a HELLO; the server answers with
+ *       the ones it also supports. A plain echo server sends the HELLO back unchanged instead of
+ *       acknowledging it, so the client falls back to sending plain messages</li>
+ *   <li><b>Size Threshold</b> - Compressing a few bytes costs CPU and usually makes them larger;
+ *       only bodies of at least {@code threshold} bytes are compressed, and only if that helps</li>
+ *   <li><b>Packing</b> - Small messages share a datagram, so the per-datagram cost (system calls,
+ *       28 bytes of IP and UDP headers) is paid once for all of them</li>
+ *   <li><b>Reused Native Contexts</b> - {@link Deflater} and {@link Inflater} wrap zlib state in
+ *       native memory. Creating one per datagram is slow; one of each is kept and
+ *       {@code reset()} between datagrams</li>
+ *   <li><b>Independent Datagrams</b> - The compressor is reset for every datagram, so each can be
+ *       decoded on its own even if others are lost or reordered</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} with {@code compressed}, then run
+ * {@link Step4_UDP_Echo_Client} with {@code compressed [count]}.</p>
+ *
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_UDP_Echo_Client
+ */
+final class Step4_Compression {
+
+  /** Capability and data flag: the body is DEFLATE-compressed */
+  static final int DEFLATE = 1;
+
+  /** Capability and data flag: the body holds several length-prefixed messages */
+  static final int PACKED = 2;
+
+  /** Every capability this class implements */
+  static final int ALL = DEFLATE | PACKED;
+
+  /** Kind of the datagram that offers capabilities */
+  static final byte HELLO = 0x40;
+
+  /** Kind of the datagram that accepts capabilities */
+  static final byte HELLO_ACK = 0x41;
+
+  /** Bodies smaller than this are not worth compressing */
+  static final int DEFAULT_THRESHOLD = 256;
+
+  /** Largest decompressed body accepted */
+  static final int MAX_BODY = Step4_UDP_Echo_Server.MAX_DATAGRAM;
+
+  /** Length prefix of each packed message */
+  private static final int LENGTH_PREFIX = 2;
+
+  private Step4_Compression() {
+  }
+
+  /**
+   * Writes a HELLO or HELLO_ACK datagram into {@code out}.
+   *
+   * @param kind {@link #HELLO} or {@link #HELLO_ACK}
+   * @param capabilities the capability bits offered or accepted
+   * @return {@code out}, flipped
+   */
+  static ByteBuffer control(ByteBuffer out, byte kind, int capabilities) {
+    return out.clear().put(kind).put((byte) capabilities).flip();
+  }
+
+  /**
+   * @return the datagram's kind: a data kind, {@link #HELLO} or {@link #HELLO_ACK}
+   */
+  static byte kind(ByteBuffer datagram) {
+    return datagram.get(0);
+  }
+
+  /**
+   * @return the capability bits carried by a HELLO or HELLO_ACK
+   * @throws ProtocolException if the datagram is not a complete control datagram
+   */
+  static int capabilities(ByteBuffer datagram) throws ProtocolException {
+    if (datagram.limit() != 2 || (kind(datagram) != HELLO && kind(datagram) != HELLO_ACK)) {
+      throw new ProtocolException("not a HELLO or HELLO_ACK");
+    }
+    return datagram.get(1) & ALL;
+  }
+
+  /**
+   * Packs, compresses and unpacks datagrams for one side of a conversation.
+   *
+   * <p>Not thread-safe. {@link #close()} frees the native zlib memory at once
+   * instead of waiting for the garbage collector.</p>
+   */
+  static final class Codec implements AutoCloseable {
+
+    private final int capabilities;
+    private final int threshold;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+
+    /** Messages waiting to be sent, with their length prefixes if packing */
+    private final ByteBuffer pending;
+
+    /** Output of the compressor */
+    private final ByteBuffer compressed;
+
+    /** Output of the decompressor */
+    private final ByteBuffer inflated = ByteBuffer.allocate(MAX_BODY);
+
+    private int pendingMessages;
+    private long rawBytes;
+    private long wireBytes;
+
+    /**
+     * @param capabilities the negotiated capabilities ({@link #DEFLATE}, {@link #PACKED}, both or 0)
+     * @param threshold smallest body that is compressed
+     * @param mtu largest datagram produced
+     * @param level DEFLATE level, from 1 (fastest) to 9 (smallest)
+     */
+    Codec(int capabilities, int threshold, int mtu, int level) {
+      this.capabilities = capabilities;
+      this.threshold = threshold;
+      this.deflater = new Deflater(level, true);
+      this.pending = ByteBuffer.allocate(mtu - 1);
+      this.compressed = ByteBuffer.allocate(mtu - 1);
+    }
+
+    /**
+     * Adds a message to the next datagram.
+     *
+     * @param message the payload, from position to limit; it is not modified
+     * @return false if the datagram is full: call {@link #flush} and add the message again
+     * @throws IllegalArgumentException if the message is too large for any datagram
+     */
+    boolean add(ByteBuffer message) {
+      boolean packed = (capabilities & PACKED) != 0;
+      int needed = message.remaining() + (packed ? LENGTH_PREFIX : 0);
+      if (needed > pending.capacity()) {
+        throw new IllegalArgumentException("message of " + message.remaining()
+            + " bytes does not fit in one datagram; see Step4_Echo_Frame for fragmentation");
+      }
+      if (pendingMessages > 0 && (!packed || needed > pending.remaining())) {
+        return false;
+      }
+      if (packed) {
+        pending.putShort((short) message.remaining());
+      }
+      pending.put(pending.position(), message, message.position(), message.remaining());
+      pending.position(pending.position() + message.remaining());
+      pendingMessages++;
+      rawBytes += message.remaining();
+      return true;
+    }
+
+    /**
+     * Writes the messages added so far as one datagram into {@code out}.
+     *
+     * @param out receives the datagram; at least the MTU in size
+     * @return {@code out}, flipped; empty if no message was waiting
+     */
+    ByteBuffer flush(ByteBuffer out) {
+      out.clear();
+      if (pendingMessages == 0) {
+        return out.flip();
+      }
+      pending.flip();
+      int kind = capabilities & PACKED;
+
+      if ((capabilities & DEFLATE) != 0 && pending.remaining() >= threshold && deflate()) {
+        out.put((byte) (kind | DEFLATE)).put(compressed.flip());
+      } else {
+        out.put((byte) kind).put(pending);
+      }
+
+      pending.clear();
+      pendingMessages = 0;
+      wireBytes += out.position();
+      return out.flip();
+    }
+
+    /**
+     * Compresses {@link #pending} into {@link #compressed}, leaving the position
+     * of {@code pending} where it was.
+     *
+     * @return false if the result would not be smaller than the input
+     */
+    private boolean deflate() {
+      int start = pending.position();
+      deflater.reset();
+      deflater.setInput(pending);
+      deflater.finish();
+      compressed.clear().limit(pending.remaining() - 1);
+      deflater.deflate(compressed);
+      pending.position(start);
+      return deflater.finished();
+    }
+
+    /**
+     * Passes each message in a data datagram to {@code sink}.
+     *
+     * @param datagram the received datagram, from position 0 to its length; its position is moved
+     * @param sink receives each message; the buffer is only valid during the call
+     * @return the number of messages found
+     * @throws ProtocolException if the datagram is not a valid data datagram
+     */
+    int decode(ByteBuffer datagram, Consumer<ByteBuffer> sink) throws ProtocolException {
+      if (!datagram.hasRemaining()) {
+        throw new ProtocolException("empty datagram");
+      }
+      int kind = datagram.get(0);
+      if ((kind & ~ALL) != 0) {
+        throw new ProtocolException("not a data datagram: kind " + kind);
+      }
+      ByteBuffer body = datagram.position(1);
+
+      if ((kind & DEFLATE) != 0) {
+        inflater.reset();
+        inflater.setInput(body);
+        inflated.clear();
+        try {
+          inflater.inflate(inflated);
+        } catch (DataFormatException e) {
+          throw new ProtocolException("corrupt compressed body: " + e.getMessage());
+        }
+        if (!inflater.finished()) {
+          throw new ProtocolException("compressed body larger than " + MAX_BODY + " bytes");
+        }
+        body = inflated.flip();
+      }
+
+      if ((kind & PACKED) == 0) {
+        sink.accept(body);
+        return 1;
+      }
+      int messages = 0;
+      int end = body.limit();
+      while (body.position() < end) {
+        if (end - body.position() < LENGTH_PREFIX) {
+          throw new ProtocolException("truncated length prefix");
+        }
+        int length = Short.toUnsignedInt(body.getShort());
+        int start = body.position();
+        if (length > end - start) {
+          throw new ProtocolException("packed message runs past the datagram");
+        }
+        sink.accept(body.limit(start + length));
+        body.limit(end).position(start + length);
+        messages++;
+      }
+      return messages;
+    }
+
+    /** @return payload bytes of every message added, before packing and compression */
+    long rawBytes() {
+      return rawBytes;
+    }
+
+    /** @return datagram bytes produced by {@link #flush} */
+    long wireBytes() {
+      return wireBytes;
+    }
+
+    @Override
+    public void close() {
+      deflater.end();
+      inflater.end();
+    }
+  }
+}
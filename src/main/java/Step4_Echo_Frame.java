@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Step 4: Binary Frame Format for the Echo Protocol
+ *
+ * The basic echo client sends the raw bytes of a String and the server guesses
+ * their length. This class defines a small binary header instead, so that both
+ * sides agree on exactly what a datagram contains, can detect corruption, and
+ * can carry messages larger than one datagram.
+ *
+ * <h2>Frame Layout:</h2>
+ * <pre>
+ * +---------+------+-------+----------+
+ * | version | type | flags | reserved |   1 byte each
+ * +---------+------+-------+----------+
+ * | sequence                          |   4 bytes: which message this frame belongs to
+ * +-----------------------------------+
+ * | message length                    |   4 bytes: payload bytes in the whole message
+ * +-----------------------------------+
+ * | fragment offset                   |   4 bytes: where this frame's payload starts in the message
+ * +-----------------------------------+
+ * | payload (rest of the datagram)    |
+ * +-----------------------------------+
+ * | CRC32C (4 bytes, if FLAG_CHECKSUM)|   covers header and payload
+ * +-----------------------------------+
+ * </pre>
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Framing</b> - A fixed header says what the bytes mean; all numbers are big-endian
+ *       ("network byte order")</li>
+ *   <li><b>Versioning</b> - The first byte lets a future format be told apart from this one</li>
+ *   <li><b>Checksums</b> - CRC32C catches corrupted frames that the 16-bit UDP checksum misses</li>
+ *   <li><b>Fragmentation</b> - A message larger than the MTU is split into several frames and
+ *       put back together by {@link Reassembler}</li>
+ *   <li><b>Allocation-Free Codec</b> - {@link #encode} and {@link #decode} work in pooled
+ *       buffers and read header fields in place rather than copying them into objects;
+ *       only reassembling a fragmented message allocates</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} with {@code framed}, then run
+ * {@link Step4_UDP_Echo_Client} with {@code framed [size]}.</p>
+ *
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_UDP_Echo_Client
+ * @see Step4_BufferPool
+ */
+final class Step4_Echo_Frame {
+
+  /** Format version written by this class */
+  static final byte VERSION = 1;
+
+  /** Frame type: a request the server should answer */
+  static final byte TYPE_REQUEST = 1;
+
+  /** Frame type: the server's echo of a request */
+  static final byte TYPE_REPLY = 2;
+
+  /** Flag: the frame ends with a CRC32C */
+  static final byte FLAG_CHECKSUM = 1;
+
+  /** Size of the header in bytes */
+  static final int HEADER_LEN = 16;
+
+  /** Size of the optional checksum trailer in bytes */
+  static final int CHECKSUM_LEN = 4;
+
+  /** Largest frame sent by default: fills a 1500-byte Ethernet frame without IP fragmentation */
+  static final int DEFAULT_MTU = Step2_Batched_UDP.MAX_MESSAGE;
+
+  /** Largest message accepted for reassembly */
+  static final int MAX_MESSAGE = 1 << 20;
+
+  /** One checksum engine per thread, reset before each use */
+  private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+
+  private Step4_Echo_Frame() {
+  }
+
+  /**
+   * Receives the frames produced by {@link #encode}.
+   */
+  @FunctionalInterface
+  interface FrameSink {
+
+    /**
+     * Called once per frame, in order.
+     *
+     * @param frame the encoded frame, from position 0 to its length; only valid during the call
+     * @throws IOException if the frame cannot be sent; this stops the encoding
+     */
+    void accept(ByteBuffer frame) throws IOException;
+  }
+
+  /**
+   * Encodes a message as one or more frames of at most {@code mtu} bytes.
+   *
+   * <p>Each frame is written into a buffer taken from {@code pool}, passed to
+   * {@code sink}, and returned to the pool.</p>
+   *
+   * @param type {@link #TYPE_REQUEST} or {@link #TYPE_REPLY}
+   * @param sequence identifies the message; every fragment carries it
+   * @param message the payload, from position to limit; it is not modified
+   * @param mtu the largest frame to produce, including header and checksum
+   * @param checksum whether to append a CRC32C to each frame
+   * @param pool buffers of at least {@code mtu} bytes
+   * @param sink receives each frame
+   * @return the number of frames produced
+   * @throws IOException if the sink fails
+   */
+  static int encode(byte type, int sequence, ByteBuffer message, int mtu, boolean checksum,
+                    Step4_BufferPool pool, FrameSink sink) throws IOException {
+    int room = mtu - HEADER_LEN - (checksum ? CHECKSUM_LEN : 0);
+    if (room <= 0 || pool.bufferSize() < mtu) {
+      throw new IllegalArgumentException("mtu too small or larger than the pooled buffers");
+    }
+    int start = message.position();
+    int length = message.remaining();
+    if (length > MAX_MESSAGE) {
+      throw new IllegalArgumentException("message larger than " + MAX_MESSAGE + " bytes");
+    }
+
+    int frames = 0;
+    int offset = 0;
+    do {
+      int part = Math.min(room, length - offset);
+      ByteBuffer frame = pool.acquire();
+      try {
+        frame.clear();
+        frame.put(VERSION).put(type).put(checksum ? FLAG_CHECKSUM : 0).put((byte) 0)
+            .putInt(sequence).putInt(length).putInt(offset);
+        frame.put(frame.position(), message, start + offset, part);
+        frame.position(frame.position() + part);
+        if (checksum) {
+          frame.putInt(crc(frame, 0, frame.position()));
+        }
+        frame.flip();
+        sink.accept(frame);
+      } finally {
+        pool.release(frame);
+      }
+      offset += part;
+      frames++;
+    } while (offset < length);
+    return frames;
+  }
+
+  /**
+   * Checks a received frame and narrows it to its payload.
+   *
+   * <p>The frame must start at index 0 of the buffer. On success the buffer's
+   * position and limit enclose the payload, and the header can still be read
+   * with {@link #type}, {@link #sequence}, {@link #messageLength} and
+   * {@link #fragmentOffset}.</p>
+   *
+   * @param frame a received datagram, from 0 to its length
+   * @throws ProtocolException if the frame is too short, has an unknown version,
+   *         inconsistent lengths or a wrong checksum
+   */
+  static void decode(ByteBuffer frame) throws ProtocolException {
+    int end = frame.limit();
+    if (frame.position() != 0 || end < HEADER_LEN) {
+      throw new ProtocolException("frame too short: " + end + " bytes");
+    }
+    if (frame.get(0) != VERSION) {
+      throw new ProtocolException("unsupported frame version " + frame.get(0));
+    }
+    if ((frame.get(2) & FLAG_CHECKSUM) != 0) {
+      end -= CHECKSUM_LEN;
+      if (end < HEADER_LEN) {
+        throw new ProtocolException("frame too short for its checksum");
+      }
+      if (crc(frame, 0, end) != frame.getInt(end)) {
+        throw new ProtocolException("checksum mismatch in frame " + sequence(frame));
+      }
+    }
+    long length = messageLength(frame);
+    long offset = fragmentOffset(frame);
+    if (length < 0 || length > MAX_MESSAGE || offset < 0 || offset + (end - HEADER_LEN) > length) {
+      throw new ProtocolException("fragment outside its message");
+    }
+    frame.limit(end).position(HEADER_LEN);
+  }
+
+  /**
+   * Changes the type of an encoded frame in place, updating its checksum.
+   * Used by the echo server to turn a request into a reply without copying it.
+   *
+   * @param frame an encoded frame from 0 to its full length, including any checksum
+   * @param type the new type
+   */
+  static void retype(ByteBuffer frame, byte type) {
+    frame.put(1, type);
+    if ((frame.get(2) & FLAG_CHECKSUM) != 0) {
+      int end = frame.limit() - CHECKSUM_LEN;
+      frame.putInt(end, crc(frame, 0, end));
+    }
+  }
+
+  /** @return the frame type */
+  static byte type(ByteBuffer frame) {
+    return frame.get(1);
+  }
+
+  /** @return the sequence number of the message the frame belongs to */
+  static int sequence(ByteBuffer frame) {
+    return frame.getInt(4);
+  }
+
+  /** @return the payload length of the whole message */
+  static int messageLength(ByteBuffer frame) {
+    return frame.getInt(8);
+  }
+
+  /** @return where this frame's payload belongs in the message */
+  static int fragmentOffset(ByteBuffer frame) {
+    return frame.getInt(12);
+  }
+
+  /**
+   * CRC32C of {@code frame[from, to)}, leaving the buffer's position and limit unchanged.
+   */
+  private static int crc(ByteBuffer frame, int from, int to) {
+    int position = frame.position();
+    int limit = frame.limit();
+    CRC32C crc = CRC.get();
+    crc.reset();
+    crc.update(frame.limit(to).position(from));
+    frame.limit(limit).position(position);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Puts fragmented messages back together.
+   *
+   * <p>A message that fits in one frame is returned as the frame's own payload,
+   * without copying. Larger messages are copied into a buffer of their full
+   * length as fragments arrive, in any order. Fragments may repeat or overlap,
+   * so the byte ranges covered so far are tracked, and a message is only complete
+   * once every byte of it has arrived. Incomplete messages are dropped when more than {@code maxPending} are open
+   * or when they are older than the timeout. Fragments are never resent, so
+   * losing one loses the whole message ({@link Step2_Reliable_UDP} shows how to
+   * recover). Not thread-safe.</p>
+   */
+  static final class Reassembler {
+
+    private record Key(SocketAddress source, int sequence) { }
+
+    private static final class Partial {
+      final ByteBuffer data;
+      /** Disjoint byte ranges received so far: start to end (exclusive), merged when they touch */
+      final TreeMap<Integer, Integer> covered = new TreeMap<>();
+      final long startedNanos = System.nanoTime();
+      int received;
+
+      Partial(int length) {
+        data = ByteBuffer.allocate(length);
+      }
+
+      /**
+       * Marks {@code [from, to)} as received.
+       *
+       * @return how many of those bytes had not been received before
+       */
+      int cover(int from, int to) {
+        int added = to - from;
+        int start = from;
+        int end = to;
+        Map.Entry<Integer, Integer> before = covered.floorEntry(from);
+        if (before != null && before.getValue() >= from) {
+          added -= Math.min(before.getValue(), to) - from;
+          start = before.getKey();
+          end = Math.max(end, before.getValue());
+          covered.remove(start);
+        }
+        Iterator<Map.Entry<Integer, Integer>> after =
+            covered.subMap(from, false, to, true).entrySet().iterator();
+        while (after.hasNext()) {
+          Map.Entry<Integer, Integer> range = after.next();
+          added -= Math.min(range.getValue(), to) - range.getKey();
+          end = Math.max(end, range.getValue());
+          after.remove();
+        }
+        covered.put(start, end);
+        return added;
+      }
+    }
+
+    private final int maxPending;
+    private final long timeoutNanos;
+    private final Map<Key, Partial> pending = new LinkedHashMap<>();
+    private long dropped;
+
+    /**
+     * @param maxPending most incomplete messages kept at once
+     * @param timeoutMillis how long an incomplete message is kept
+     */
+    Reassembler(int maxPending, long timeoutMillis) {
+      this.maxPending = maxPending;
+      this.timeoutNanos = timeoutMillis * 1_000_000L;
+    }
+
+    /**
+     * Adds a decoded frame.
+     *
+     * @param source where the frame came from; sequences are only unique per source
+     * @param frame a frame already checked by {@link Step4_Echo_Frame#decode}
+     * @return the complete message (positioned over its payload) if this frame
+     *         completed it, otherwise null
+     */
+    ByteBuffer accept(SocketAddress source, ByteBuffer frame) {
+      int length = messageLength(frame);
+      int offset = fragmentOffset(frame);
+      if (offset == 0 && frame.remaining() == length) {
+        return frame;   // not fragmented
+      }
+
+      expire();
+      Key key = new Key(source, sequence(frame));
+      Partial partial = pending.get(key);
+      if (partial == null) {
+        if (pending.size() >= maxPending) {
+          evictOldest();
+        }
+        partial = new Partial(length);
+        pending.put(key, partial);
+      }
+      if (partial.data.capacity() != length) {
+        return null;   // inconsistent fragment
+      }
+      int added = partial.cover(offset, offset + frame.remaining());
+      if (added == 0) {
+        return null;   // nothing new, e.g. a duplicate
+      }
+      partial.data.put(offset, frame, frame.position(), frame.remaining());
+      partial.received += added;
+      if (partial.received < length) {
+        return null;
+      }
+      pending.remove(key);
+      return partial.data.clear();
+    }
+
+    /** @return incomplete messages dropped so far */
+    long dropped() {
+      return dropped;
+    }
+
+    private void expire() {
+      long now = System.nanoTime();
+      Iterator<Partial> it = pending.values().iterator();
+      while (it.hasNext() && now - it.next().startedNanos > timeoutNanos) {
+        it.remove();
+        dropped++;
+      }
+    }
+
+    private void evictOldest() {
+      Iterator<Partial> it = pending.values().iterator();
+      it.next();
+      it.remove();
+      dropped++;
+    }
+  }
+}
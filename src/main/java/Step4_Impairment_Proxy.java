@@ -0,0 +1,504 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Step 4: Network Impairment Proxy
+ *
+ * {@link Step2_SendPacket_UDP} explains that UDP datagrams may be lost,
+ * delayed, duplicated or reordered, but on one machine's loopback interface
+ * none of that happens. This proxy sits between a client and a server and
+ * does it on purpose, so retransmission, reordering and flow-control code can
+ * be tried against a bad network without having one.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Loss</b> - Each datagram is dropped with a fixed probability</li>
+ *   <li><b>Delay and Jitter</b> - Each datagram is held for a fixed delay plus a random amount,
+ *       uniformly distributed between minus and plus the jitter; jitter alone reorders
+ *       datagrams that are closer together than it</li>
+ *   <li><b>Reordering</b> - With some probability a datagram skips the delay and overtakes the
+ *       ones still being held</li>
+ *   <li><b>Duplication</b> - With some probability a datagram is sent twice</li>
+ *   <li><b>Bandwidth Cap</b> - Datagrams leave at no more than a given bit rate; the excess waits
+ *       in a queue, and datagrams that would wait longer than the queue limit are dropped,
+ *       as a router's full buffer drops them</li>
+ *   <li><b>Sessions</b> - Each client gets its own socket towards the server, so replies can be
+ *       routed back; sessions idle for a minute are closed</li>
+ *   <li><b>One Event Loop</b> - One thread, one {@link Selector} and a {@link Step4_Timer_Wheel}
+ *       with 1 ms ticks hold every delayed datagram; buffers come from a {@link Step4_BufferPool}</li>
+ * </ul>
+ *
+ * <h2>Settings:</h2>
+ * <p>All are system properties, applied to both directions;
+ * {@code -Dproxy.upstream.NAME} (client to server) or {@code -Dproxy.downstream.NAME}
+ * (server to client) overrides one direction.</p>
+ * <ul>
+ *   <li>{@code proxy.loss} - fraction of datagrams dropped, 0 to 1</li>
+ *   <li>{@code proxy.delay} - delay in milliseconds</li>
+ *   <li>{@code proxy.jitter} - random extra delay in milliseconds, plus or minus</li>
+ *   <li>{@code proxy.reorder} - fraction of datagrams sent without the delay, 0 to 1</li>
+ *   <li>{@code proxy.duplicate} - fraction of datagrams sent twice, 0 to 1</li>
+ *   <li>{@code proxy.rate} - bandwidth in megabits per second; 0 for unlimited</li>
+ *   <li>{@code proxy.queue} - longest wait for bandwidth in milliseconds (default 100)</li>
+ *   <li>{@code proxy.seed} - random seed, so a run can be repeated exactly</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <pre>
+ * java Step4_UDP_Echo_Server loop
+ * java -Dproxy.loss=0.02 -Dproxy.delay=20 -Dproxy.jitter=5 Step4_Impairment_Proxy
+ * java -Decho.port=1026 Step4_UDP_Echo_Client load 2000 64 4 10
+ * </pre>
+ * <p>The proxy prints what it did every few seconds; start it with
+ * {@code -Dmetrics.port} to watch the same numbers in {@link Step4_Metrics}.</p>
+ *
+ * @see Step2_SendPacket_UDP
+ * @see Step4_UDP_Pipelined_Client
+ * @see Step4_Load_Generator
+ * @see Step4_Timer_Wheel
+ * @see Step4_PortsUsed
+ */
+public class Step4_Impairment_Proxy implements AutoCloseable {
+
+  /** Resolution of the delays */
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** Buckets in the timer wheel; with 1 ms ticks one turn is about 4 s */
+  private static final int WHEEL_SLOTS = 4096;
+
+  /** Held datagrams up to this size use pooled buffers; larger ones are allocated */
+  private static final int COPY_SIZE = 2048;
+
+  /** Pooled buffers kept for reuse */
+  private static final int POOL_SIZE = 4096;
+
+  /** A client that sends nothing for this long loses its session */
+  private static final long SESSION_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  /** Most clients served at once */
+  private static final int MAX_SESSIONS = 4096;
+
+  /** How often the proxy prints its counters, in milliseconds */
+  private static final long REPORT_INTERVAL_MS = 5000;
+
+  private static final Step4_Metrics.Counter SESSIONS_REFUSED = Step4_Metrics.counter("proxy_sessions_refused");
+
+  /**
+   * What the proxy does to the datagrams going one way.
+   *
+   * @param loss fraction dropped
+   * @param delayNanos fixed delay
+   * @param jitterNanos largest random change to the delay, either way
+   * @param reorder fraction sent without the delay
+   * @param duplicate fraction sent twice
+   * @param bitsPerSecond bandwidth, or 0 for unlimited
+   * @param queueNanos longest wait for bandwidth before a datagram is dropped
+   */
+  record Impairment(double loss, long delayNanos, long jitterNanos, double reorder, double duplicate,
+                    long bitsPerSecond, long queueNanos) {
+
+    Impairment {
+      for (double fraction : new double[] {loss, reorder, duplicate}) {
+        if (fraction < 0 || fraction > 1) {
+          throw new IllegalArgumentException("loss, reorder and duplicate must be between 0 and 1");
+        }
+      }
+      if (delayNanos < 0 || jitterNanos < 0 || bitsPerSecond < 0 || queueNanos < 0) {
+        throw new IllegalArgumentException("delay, jitter, rate and queue must not be negative");
+      }
+    }
+
+    /**
+     * Reads the settings for one direction from the {@code proxy.*} system properties.
+     *
+     * @param direction {@code upstream} or {@code downstream}
+     */
+    static Impairment fromProperties(String direction) {
+      return new Impairment(
+          setting(direction, "loss", 0),
+          millisToNanos(setting(direction, "delay", 0)),
+          millisToNanos(setting(direction, "jitter", 0)),
+          setting(direction, "reorder", 0),
+          setting(direction, "duplicate", 0),
+          (long) (setting(direction, "rate", 0) * 1_000_000),
+          millisToNanos(setting(direction, "queue", 100)));
+    }
+
+    private static double setting(String direction, String name, double defaultValue) {
+      String value = System.getProperty("proxy." + direction + "." + name, System.getProperty("proxy." + name));
+      return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static long millisToNanos(double millis) {
+      return (long) (millis * 1_000_000);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "loss %.2f%%, delay %.1f ms +/- %.1f ms, reorder %.2f%%, "
+          + "duplicate %.2f%%, rate %s", loss * 100, delayNanos / 1e6, jitterNanos / 1e6, reorder * 100,
+          duplicate * 100, bitsPerSecond == 0 ? "unlimited"
+              : String.format(Locale.ROOT, "%.1f Mbit/s (queue %.0f ms)", bitsPerSecond / 1e6, queueNanos / 1e6));
+    }
+  }
+
+  /** A datagram being held until its delivery time */
+  private static final class Delayed {
+    ByteBuffer data;
+    DatagramChannel out;
+    SocketAddress target;
+    Direction direction;
+  }
+
+  /** One client and the socket that speaks to the server on its behalf */
+  private static final class Session {
+    final SocketAddress client;
+    final DatagramChannel upstream;
+    long lastActive;
+
+    Session(SocketAddress client, DatagramChannel upstream, long now) {
+      this.client = client;
+      this.upstream = upstream;
+      this.lastActive = now;
+    }
+  }
+
+  /** The impairment and counters for one direction of traffic */
+  private final class Direction {
+    final String name;
+    final Impairment impairment;
+    final Step4_Metrics.Counter received;
+    final Step4_Metrics.Counter forwarded;
+    final Step4_Metrics.Counter bytes;
+    final Step4_Metrics.Counter lost;
+    final Step4_Metrics.Counter queueDrops;
+    final Step4_Metrics.Counter duplicated;
+    final Step4_Metrics.Counter reordered;
+    final Step4_Metrics.Counter sendFailures;
+    final Step4_Metrics.Histogram addedDelay;
+
+    /** When the simulated link finishes sending what it already has */
+    long linkFreeAt;
+
+    Direction(String name, Impairment impairment) {
+      this.name = name;
+      this.impairment = impairment;
+      String prefix = "proxy_" + name + "_";
+      received = Step4_Metrics.counter(prefix + "received");
+      forwarded = Step4_Metrics.counter(prefix + "forwarded");
+      bytes = Step4_Metrics.counter(prefix + "bytes");
+      lost = Step4_Metrics.counter(prefix + "lost");
+      queueDrops = Step4_Metrics.counter(prefix + "queue_drops");
+      duplicated = Step4_Metrics.counter(prefix + "duplicated");
+      reordered = Step4_Metrics.counter(prefix + "reordered");
+      sendFailures = Step4_Metrics.counter(prefix + "send_failures");
+      addedDelay = Step4_Metrics.histogram(prefix + "delay_micros");
+    }
+
+    /**
+     * Applies the impairment to one datagram and sends or holds what survives.
+     *
+     * @param data the datagram; consumed
+     * @param out the socket to send it from
+     * @param target where to send it, or null if {@code out} is connected
+     */
+    void forward(ByteBuffer data, DatagramChannel out, SocketAddress target, long now) {
+      received.increment();
+      if (impairment.loss() > 0 && random.nextDouble() < impairment.loss()) {
+        lost.increment();
+        return;
+      }
+      int copies = 1;
+      if (impairment.duplicate() > 0 && random.nextDouble() < impairment.duplicate()) {
+        duplicated.increment();
+        copies = 2;
+      }
+
+      int start = data.position();
+      for (int copy = 0; copy < copies; copy++) {
+        data.position(start);
+        long delay = 0;
+        if (impairment.bitsPerSecond() > 0) {
+          long begin = Math.max(now, linkFreeAt);
+          if (begin - now > impairment.queueNanos()) {
+            queueDrops.increment();
+            continue;
+          }
+          linkFreeAt = begin + data.remaining() * 8L * 1_000_000_000L / impairment.bitsPerSecond();
+          delay = linkFreeAt - now;
+        }
+        if (impairment.reorder() > 0 && random.nextDouble() < impairment.reorder()) {
+          reordered.increment();
+        } else {
+          long jitter = impairment.jitterNanos();
+          delay += impairment.delayNanos() + (jitter > 0 ? random.nextLong(-jitter, jitter + 1) : 0);
+        }
+        addedDelay.record(delay);
+
+        if (delay < TICK_NANOS / 2) {
+          send(this, out, target, data);
+        } else {
+          hold(this, out, target, data, delay);
+        }
+      }
+    }
+
+    String report() {
+      return String.format(Locale.ROOT, "%-10s received %d, forwarded %d (%d bytes), lost %d, queue drops %d, "
+          + "duplicated %d, reordered %d, send failures %d, added delay p50 %.1f ms p99 %.1f ms",
+          name.toUpperCase(Locale.ROOT), received.get(), forwarded.get(), bytes.get(), lost.get(),
+          queueDrops.get(), duplicated.get(), reordered.get(), sendFailures.get(),
+          addedDelay.valueAt(0.5) / 1e6, addedDelay.valueAt(0.99) / 1e6);
+    }
+  }
+
+  private final SocketAddress server;
+  private final Selector selector;
+  private final DatagramChannel listener;
+  private final Direction upstream;
+  private final Direction downstream;
+  private final SplittableRandom random;
+  private final Step4_Timer_Wheel wheel = new Step4_Timer_Wheel(WHEEL_SLOTS, TICK_NANOS, 1024);
+  private final Step4_Timer_Wheel.Expiry onTimer = this::onTimer;
+  private final Step4_BufferPool pool = new Step4_BufferPool(POOL_SIZE, COPY_SIZE, true);
+  private final ArrayDeque<Delayed> spareDelayed = new ArrayDeque<>();
+  private final Map<SocketAddress, Session> sessions = new HashMap<>();
+  private final ByteBuffer scratch = ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+
+  /**
+   * Binds the proxy's port.
+   *
+   * @param listenPort where clients send their datagrams
+   * @param server where the proxy forwards them
+   * @param up applied to datagrams from clients to the server
+   * @param down applied to datagrams from the server to clients
+   * @param seed random seed
+   * @throws IOException if the port cannot be bound
+   */
+  Step4_Impairment_Proxy(int listenPort, SocketAddress server, Impairment up, Impairment down, long seed)
+      throws IOException {
+    this.server = server;
+    this.upstream = new Direction("upstream", up);
+    this.downstream = new Direction("downstream", down);
+    this.random = new SplittableRandom(seed);
+    this.selector = Selector.open();
+    this.listener = DatagramChannel.open();
+    Step4_UDP_Receiver.socketBuffers(listener, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+    listener.bind(new InetSocketAddress(listenPort));
+    listener.configureBlocking(false);
+    listener.register(selector, SelectionKey.OP_READ);
+    Step4_Metrics.gauge("proxy_sessions", sessions::size);
+    Step4_Metrics.gauge("proxy_held", wheel::size);
+  }
+
+  /**
+   * Runs the proxy on the calling thread until it is interrupted or closed.
+   *
+   * @throws IOException if the listening socket fails
+   */
+  void run() throws IOException {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select(wheel.selectTimeoutMillis(System.nanoTime()));
+        for (SelectionKey key : selector.selectedKeys()) {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.channel() == listener) {
+            fromClients();
+          } else {
+            fromServer((Session) key.attachment());
+          }
+        }
+        selector.selectedKeys().clear();
+        wheel.advance(System.nanoTime(), onTimer);
+      }
+    } catch (ClosedSelectorException e) {
+      // close() was called
+    }
+  }
+
+  /**
+   * Forwards every datagram waiting on the listening socket towards the server.
+   */
+  private void fromClients() throws IOException {
+    SocketAddress client;
+    while ((client = listener.receive(scratch.clear())) != null) {
+      long now = System.nanoTime();
+      Session session = sessions.get(client);
+      if (session == null) {
+        session = openSession(client, now);
+        if (session == null) {
+          continue;
+        }
+      }
+      session.lastActive = now;
+      upstream.forward(scratch.flip(), session.upstream, null, now);
+    }
+  }
+
+  /**
+   * Forwards every reply waiting on a session's socket back to its client.
+   */
+  private void fromServer(Session session) {
+    try {
+      while (session.upstream.receive(scratch.clear()) != null) {
+        downstream.forward(scratch.flip(), listener, session.client, System.nanoTime());
+      }
+    } catch (PortUnreachableException e) {
+      // the server is not running; its clients will time out
+    } catch (IOException e) {
+      closeSession(session);
+    }
+  }
+
+  private Session openSession(SocketAddress client, long now) throws IOException {
+    if (sessions.size() >= MAX_SESSIONS) {
+      SESSIONS_REFUSED.increment();
+      return null;
+    }
+    DatagramChannel channel = DatagramChannel.open();
+    Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+    channel.connect(server);
+    channel.configureBlocking(false);
+    Session session = new Session(client, channel, now);
+    channel.register(selector, SelectionKey.OP_READ, session);
+    sessions.put(client, session);
+    wheel.schedule(SESSION_IDLE_NANOS, session);
+    return session;
+  }
+
+  private void closeSession(Session session) {
+    sessions.remove(session.client);
+    try {
+      session.upstream.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+  }
+
+  /**
+   * Copies a datagram and holds it in the timer wheel until it is due.
+   */
+  private void hold(Direction direction, DatagramChannel out, SocketAddress target, ByteBuffer data,
+                    long delayNanos) {
+    Delayed delayed = spareDelayed.poll();
+    if (delayed == null) {
+      delayed = new Delayed();
+    }
+    delayed.data = (data.remaining() <= COPY_SIZE ? pool.acquire() : ByteBuffer.allocate(data.remaining()))
+        .put(data).flip();
+    delayed.out = out;
+    delayed.target = target;
+    delayed.direction = direction;
+    wheel.schedule(delayNanos, delayed);
+  }
+
+  /**
+   * Timer wheel callback: a held datagram is due, or a session's idle timer fired.
+   */
+  private void onTimer(Object attachment) {
+    if (attachment instanceof Delayed delayed) {
+      send(delayed.direction, delayed.out, delayed.target, delayed.data);
+      pool.release(delayed.data);
+      delayed.data = null;
+      delayed.out = null;
+      delayed.target = null;
+      spareDelayed.add(delayed);
+    } else if (attachment instanceof Session session && session.upstream.isOpen()) {
+      long idle = System.nanoTime() - session.lastActive;
+      if (idle >= SESSION_IDLE_NANOS) {
+        closeSession(session);
+      } else {
+        wheel.schedule(SESSION_IDLE_NANOS - idle, session);
+      }
+    }
+  }
+
+  private static void send(Direction direction, DatagramChannel out, SocketAddress target, ByteBuffer data) {
+    int length = data.remaining();
+    try {
+      int sent = target == null ? out.write(data) : out.send(data, target);
+      if (sent == 0 && length > 0) {
+        direction.sendFailures.increment();   // socket buffer full
+        return;
+      }
+      direction.forwarded.increment();
+      direction.bytes.add(length);
+    } catch (IOException e) {
+      direction.sendFailures.increment();    // server not running, or its session just closed
+    }
+  }
+
+  /** @return one line per direction describing what was done to the traffic */
+  String report() {
+    return upstream.report() + "\n" + downstream.report();
+  }
+
+  /**
+   * Stops the proxy and closes every socket; datagrams still held are discarded.
+   */
+  @Override
+  public void close() throws IOException {
+    selector.close();
+    listener.close();
+    for (Session session : sessions.values()) {
+      session.upstream.close();
+    }
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args {@code [listenPort] [serverHost] [serverPort]}; by default listens on
+   *             {@link Step4_PortsUsed#PROXY_PORT} and forwards to the echo server on this machine
+   * @throws IOException if a port cannot be bound
+   */
+  public static void main(String[] args) throws IOException {
+
+    Step4_Metrics.exportFromProperties();
+
+    int listenPort = args.length > 0 ? Integer.parseInt(args[0]) : Step4_PortsUsed.PROXY_PORT;
+    String host = args.length > 1 ? args[1] : "localhost";
+    int serverPort = args.length > 2 ? Integer.parseInt(args[2]) : Step4_PortsUsed.SERVER_PORT;
+    Impairment up = Impairment.fromProperties("upstream");
+    Impairment down = Impairment.fromProperties("downstream");
+    long seed = Long.getLong("proxy.seed", System.nanoTime());
+
+    Step4_Impairment_Proxy proxy =
+        new Step4_Impairment_Proxy(listenPort, new InetSocketAddress(host, serverPort), up, down, seed);
+    System.out.println("IMPAIRMENT PROXY on port " + listenPort + " -> " + host + ":" + serverPort
+        + " (seed " + seed + ")");
+    System.out.println("  upstream:   " + up);
+    System.out.println("  downstream: " + down);
+
+    Thread reporter = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(REPORT_INTERVAL_MS);
+          System.out.println(proxy.report());
+        }
+      } catch (InterruptedException e) {
+        // exiting
+      }
+    }, "proxy-report");
+    reporter.setDaemon(true);
+    reporter.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(proxy.report()), "proxy-final"));
+
+    proxy.run();
+  }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Step 4: Open-Loop Load Generator for the Echo Server
+ *
+ * This class sends datagrams to an echo server at a fixed rate from many
+ * simulated clients and measures how long each echo takes. It is the tool for
+ * finding the rate at which a server mode stops keeping up.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Open-Loop Load</b> - Requests are sent on a fixed schedule, whether or not earlier
+ *       replies have arrived, just as independent users would send them</li>
+ *   <li><b>Coordinated Omission</b> - Latency is measured from when a request <i>should</i> have
+ *       been sent. If the generator itself falls behind, that delay counts too, instead of
+ *       silently hiding the slowest periods</li>
+ *   <li><b>Timestamps in the Payload</b> - The echo carries the scheduled send time back, so no
+ *       table of outstanding requests is needed</li>
+ *   <li><b>Percentiles</b> - p50 shows the typical case; p99, p99.9 and max show the tail, which
+ *       is what grows first when a server saturates</li>
+ * </ul>
+ *
+ * <h2>Payload Format:</h2>
+ * <pre>
+ * | sequence (4 B) | scheduled send time, System.nanoTime() (8 B) | padding |
+ * </pre>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} in any continuous mode, then run
+ * {@link Step4_UDP_Echo_Client} with {@code load [rate] [size] [clients] [seconds]}.</p>
+ *
+ * @see Step4_UDP_Echo_Client
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_Metrics.Histogram
+ */
+class Step4_Load_Generator {
+
+  /** Bytes of the payload used by the sequence number and timestamp */
+  static final int MIN_SIZE = 12;
+
+  /** How long to wait for late replies after the last request is sent */
+  private static final long DRAIN_MILLIS = 1000;
+
+  /** Largest reply read back */
+  private static final int MAX_DATAGRAM = 65507;
+
+  /**
+   * The outcome of one run.
+   *
+   * @param sent requests handed to the network
+   * @param sendFailures requests never sent: the local socket buffer was full, or the
+   *        port was reported unreachable
+   * @param received distinct requests echoed back
+   * @param seconds length of the sending phase
+   * @param latency round-trip times, measured from each request's scheduled send time
+   * @param maxLagNanos how far the generator itself fell behind its schedule
+   */
+  record Report(long sent, long sendFailures, long received, double seconds,
+                Step4_Metrics.Histogram latency, long maxLagNanos) {
+
+    double lossPercent() {
+      return sent == 0 ? 0 : 100.0 * (sent - received) / sent;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+          "sent %d (%.0f/s), send failures %d, received %d (%.0f/s), loss %.2f%%%n"
+              + "latency us: p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n"
+              + "generator lag: max %.1f us%s",
+          sent, sent / seconds, sendFailures, received, received / seconds, lossPercent(),
+          latency.valueAt(0.5) / 1e3, latency.valueAt(0.99) / 1e3,
+          latency.valueAt(0.999) / 1e3, latency.max() / 1e3,
+          maxLagNanos / 1e3,
+          maxLagNanos > TimeUnit.MILLISECONDS.toNanos(1)
+              ? " (the generator could not keep up; results include its own delay)" : "");
+    }
+  }
+
+  /** State of one simulated client */
+  private static final class Client {
+    final DatagramChannel channel;
+    final BitSet answered = new BitSet();
+    int nextSequence;
+    long received;
+
+    Client(DatagramChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private Step4_Load_Generator() {
+  }
+
+  /**
+   * Sends {@code rate} requests per second in total, spread evenly over
+   * {@code clients} sockets, for {@code seconds}, then waits briefly for late
+   * replies. Requests the local socket cannot send are counted apart from
+   * those lost on the way, so the loss reflects only the network and server.
+   *
+   * @param server the echo server
+   * @param rate total requests per second (at least 1)
+   * @param size payload size in bytes (at least {@value #MIN_SIZE})
+   * @param clients number of simulated clients (at least 1), each with its own socket and port
+   * @param seconds how long to send for
+   * @return the measured results
+   * @throws IOException if a socket cannot be opened
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  static Report run(SocketAddress server, int rate, int size, int clients, int seconds)
+      throws IOException, InterruptedException {
+
+    if (size < MIN_SIZE) {
+      throw new IllegalArgumentException("size must be at least " + MIN_SIZE + " bytes");
+    }
+    if (rate < 1 || clients < 1) {
+      throw new IllegalArgumentException("rate and clients must be at least 1");
+    }
+
+    List<Client> all = new ArrayList<>();
+    Selector selector = Selector.open();
+    try {
+      for (int i = 0; i < clients; i++) {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(server);
+        channel.configureBlocking(false);
+        Client client = new Client(channel);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        all.add(client);
+      }
+
+      Step4_Metrics.Histogram latency = new Step4_Metrics.Histogram();
+      Thread receiver = new Thread(() -> receive(selector, latency), "load-receiver");
+      receiver.start();
+
+      long total = (long) rate * seconds;
+      long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+      long maxLag = 0;
+      long sendFailures = 0;
+      ByteBuffer payload = ByteBuffer.allocateDirect(size);
+      long start = System.nanoTime();
+
+      // The schedule is fixed in advance: request i is due at start + i * interval,
+      // and goes to the clients in turn
+      for (long i = 0; i < total; i++) {
+        long due = start + i * intervalNanos;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        } else {
+          maxLag = Math.max(maxLag, -wait);
+        }
+
+        Client client = all.get((int) (i % clients));
+        payload.clear();
+        payload.putInt(0, client.nextSequence++).putLong(4, due);
+        try {
+          // Non-blocking: a full socket buffer sends nothing rather than waiting
+          if (client.channel.write(payload) == 0) {
+            sendFailures++;
+          }
+        } catch (PortUnreachableException e) {
+          sendFailures++;   // the server is not answering on that port
+        }
+      }
+      double sendSeconds = (System.nanoTime() - start) / 1e9;
+
+      Thread.sleep(DRAIN_MILLIS);
+      receiver.interrupt();
+      selector.wakeup();
+      receiver.join();
+
+      long received = 0;
+      for (Client client : all) {
+        received += client.received;
+      }
+      return new Report(total - sendFailures, sendFailures, received, sendSeconds, latency, maxLag);
+
+    } finally {
+      selector.close();
+      for (Client client : all) {
+        client.channel.close();
+      }
+    }
+  }
+
+  /**
+   * Reads echoes from every client socket until interrupted, recording each
+   * request's latency the first time it is answered.
+   */
+  private static void receive(Selector selector, Step4_Metrics.Histogram latency) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select();
+        for (SelectionKey key : selector.selectedKeys()) {
+          Client client = (Client) key.attachment();
+          while (true) {
+            buffer.clear();
+            try {
+              if (client.channel.read(buffer) <= 0) {
+                break;
+              }
+            } catch (PortUnreachableException e) {
+              continue;
+            }
+            if (buffer.position() < MIN_SIZE) {
+              continue;
+            }
+            int sequence = buffer.getInt(0);
+            if (sequence < 0 || client.answered.get(sequence)) {
+              continue;   // duplicate
+            }
+            client.answered.set(sequence);
+            client.received++;
+            latency.recordSince(buffer.getLong(4));
+          }
+        }
+        selector.selectedKeys().clear();
+      }
+    } catch (IOException e) {
+      System.out.println("LOAD RECEIVER failed: " + e);
+    }
+  }
+}
@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Step 4: In-Process Metrics
+ *
+ * Printing every packet with {@code System.out.println} is far too slow once a
+ * server handles thousands of packets per second. This class keeps running
+ * totals and latency distributions in memory instead, and writes a text
+ * snapshot of them on demand: to a file, or to anyone who connects to a local
+ * port.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Counters</b> - {@link LongAdder} spreads concurrent increments over several cells, so
+ *       many threads can count without fighting over one memory location</li>
+ *   <li><b>Histograms</b> - Latencies go into logarithmic buckets (as in HdrHistogram), so
+ *       percentiles such as p99 are accurate to within 1% using a fixed amount of memory</li>
+ *   <li><b>Gauges</b> - Values that are already counted elsewhere are read when a snapshot is taken</li>
+ *   <li><b>No Allocation When Recording</b> - Metrics are looked up once and kept in fields;
+ *       recording a value only updates existing arrays and cells</li>
+ * </ul>
+ *
+ * <h2>Exporting:</h2>
+ * <p>Every program that calls {@link #exportFromProperties()} honours these system properties:</p>
+ * <ul>
+ *   <li>{@code -Dmetrics.port=9100} - serves the snapshot on that local port
+ *       ({@code curl localhost:9100} or {@code nc localhost 9100})</li>
+ *   <li>{@code -Dmetrics.file=metrics.txt} - rewrites the file every {@code metrics.interval}
+ *       milliseconds (default 5000)</li>
+ * </ul>
+ *
+ * <h2>Snapshot Format:</h2>
+ * <pre>
+ * echo_server_packets_in 1042
+ * echo_client_rtt_micros_count 1000
+ * echo_client_rtt_micros{quantile="0.99"} 87.5
+ * echo_client_rtt_micros_max 112.3
+ * </pre>
+ *
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_UDP_Pipelined_Client
+ */
+final class Step4_Metrics {
+
+  /** Default period between file exports, in milliseconds */
+  static final long DEFAULT_INTERVAL_MS = 5000;
+
+  /** Every registered metric, sorted by name so snapshots are easy to read */
+  private static final Map<String, Object> METRICS = new ConcurrentSkipListMap<>();
+
+  /** Quantiles written for each histogram */
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private Step4_Metrics() {
+  }
+
+  /**
+   * A monotonically increasing count.
+   */
+  static final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    void increment() {
+      value.increment();
+    }
+
+    void add(long amount) {
+      value.add(amount);
+    }
+
+    long get() {
+      return value.sum();
+    }
+  }
+
+  /**
+   * A latency distribution in nanoseconds, exported in microseconds.
+   *
+   * <p>Values below 128 get a bucket each. Above that, every power of two is
+   * split into 128 equal buckets, so a bucket is never wider than 1/128 of the
+   * values it holds. The buckets cover every positive {@code long}.</p>
+   */
+  static final class Histogram {
+
+    /** log2 of the number of buckets per power of two */
+    private static final int SUB_BITS = 7;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (64 - SUB_BITS));
+    private final LongAdder count = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value.
+     *
+     * @param nanos the measured latency; negative values count as zero
+     */
+    void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      counts.incrementAndGet(bucket(value));
+      count.increment();
+      max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} (a {@link System#nanoTime()} reading).
+     */
+    void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+
+    long count() {
+      return count.sum();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values fall,
+     * rounded up to the top of its bucket.
+     *
+     * @param quantile between 0 and 1, e.g. 0.99 for p99
+     * @return the value in nanoseconds, or 0 if nothing was recorded
+     */
+    long valueAt(double quantile) {
+      long total = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        total += counts.get(i);
+      }
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(highestValueIn(i), max());
+        }
+      }
+      return 0;
+    }
+
+    private static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BITS;
+      return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+      long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+  }
+
+  /**
+   * Returns the counter with this name, creating it on first use.
+   * Call once and keep the result in a field.
+   */
+  static Counter counter(String name) {
+    return (Counter) METRICS.computeIfAbsent(name, n -> new Counter());
+  }
+
+  /**
+   * Returns the histogram with this name, creating it on first use.
+   * Call once and keep the result in a field.
+   */
+  static Histogram histogram(String name) {
+    return (Histogram) METRICS.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  /**
+   * Registers (or replaces) a value that is read each time a snapshot is taken.
+   */
+  static void gauge(String name, LongSupplier value) {
+    METRICS.put(name, value);
+  }
+
+  /**
+   * @return every metric as text, one value per line
+   */
+  static String snapshot() {
+    StringBuilder text = new StringBuilder("# ").append(Instant.now()).append('\n');
+    for (Map.Entry<String, Object> entry : METRICS.entrySet()) {
+      String name = entry.getKey();
+      Object metric = entry.getValue();
+      if (metric instanceof Counter counter) {
+        text.append(name).append(' ').append(counter.get()).append('\n');
+      } else if (metric instanceof LongSupplier gauge) {
+        text.append(name).append(' ').append(gauge.getAsLong()).append('\n');
+      } else if (metric instanceof Histogram histogram) {
+        text.append(name).append("_count ").append(histogram.count()).append('\n');
+        for (double quantile : QUANTILES) {
+          text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+              .append(micros(histogram.valueAt(quantile))).append('\n');
+        }
+        text.append(name).append("_max ").append(micros(histogram.max())).append('\n');
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes a snapshot to {@code file}, replacing it in one step so readers
+   * never see a half-written file.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  static void writeTo(Path file) throws IOException {
+    Path absolute = file.toAbsolutePath();
+    Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+    Files.writeString(temp, snapshot());
+    Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Rewrites {@code file} every {@code periodMillis} on a background thread,
+   * and once more when the JVM exits so short runs are captured too.
+   */
+  static void exportEvery(Path file, long periodMillis) {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "metrics-file");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.scheduleAtFixedRate(() -> {
+      try {
+        writeTo(file);
+      } catch (IOException e) {
+        System.out.println("METRICS export to " + file + " failed: " + e);
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        writeTo(file);
+      } catch (IOException e) {
+        // exiting anyway
+      }
+    }, "metrics-file-final"));
+  }
+
+  /**
+   * Serves a snapshot to every connection on a loopback port, on a background thread.
+   *
+   * <p>The reply starts with a minimal HTTP header so that browsers and
+   * {@code curl} accept it; {@code nc} shows it as plain text.</p>
+   *
+   * @param port the port to listen on; 0 picks a free port
+   * @return the port actually bound
+   * @throws IOException if the port cannot be bound
+   */
+  static int serve(int port) throws IOException {
+    ServerSocket server = new ServerSocket();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try (Socket client = server.accept()) {
+          client.setSoTimeout(1000);
+          OutputStream out = client.getOutputStream();
+          out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\n" + snapshot())
+              .getBytes(StandardCharsets.UTF_8));
+          client.shutdownOutput();
+
+          // Read whatever request was sent, so closing does not reset the connection
+          InputStream in = client.getInputStream();
+          byte[] discard = new byte[1024];
+          while (in.read(discard) >= 0) {
+            // until the client closes or the timeout expires
+          }
+        } catch (IOException e) {
+          // one failed client does not stop the exporter
+        }
+      }
+    }, "metrics-server");
+    thread.setDaemon(true);
+    thread.start();
+    return server.getLocalPort();
+  }
+
+  /**
+   * Starts the exporters requested with {@code -Dmetrics.port} and {@code -Dmetrics.file}.
+   *
+   * @throws IOException if the metrics port cannot be bound
+   */
+  static void exportFromProperties() throws IOException {
+    String port = System.getProperty("metrics.port");
+    if (port != null) {
+      System.out.println("METRICS on port " + serve(Integer.parseInt(port)));
+    }
+    String file = System.getProperty("metrics.file");
+    if (file != null) {
+      exportEvery(Path.of(file), Long.getLong("metrics.interval", DEFAULT_INTERVAL_MS));
+    }
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+  }
+}
@@ -0,0 +1,543 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Step 4: Packet Capture and Replay
+ *
+ * A server that misbehaves under real traffic is hard to fix if the traffic
+ * cannot be reproduced. This class records every datagram a process sends
+ * and receives to a file, and later sends the received ones to a server
+ * again, with the same timing or faster.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Memory-Mapped I/O</b> - The log is written through a {@link MappedByteBuffer}: appending
+ *       a record is a memory copy, with no system call. The pages belong to the kernel, so a
+ *       crash of the JVM loses nothing already appended</li>
+ *   <li><b>Append-Only Log</b> - Records are only ever added at the end, which needs no index and
+ *       no locking beyond one writer at a time</li>
+ *   <li><b>Regions</b> - The file is mapped {@value #REGION_SIZE} bytes at a time; a record never
+ *       crosses a region boundary, so both writer and reader handle it in one piece</li>
+ *   <li><b>Relative Timestamps</b> - Each record stores {@link System#nanoTime()} since the capture
+ *       began, which does not jump when the wall clock is adjusted</li>
+ *   <li><b>Paced Replay</b> - The replayer sends each datagram at its recorded offset divided by a
+ *       speed factor, and reports how far behind schedule it fell</li>
+ *   <li><b>Source Preservation</b> - Datagrams from different recorded sources are replayed from
+ *       different sockets, so per-source logic (for example {@link Step4_Admission_Control})
+ *       sees separate clients</li>
+ * </ul>
+ *
+ * <h2>File Layout:</h2>
+ * <pre>
+ * header (32 B):  magic "UDPCAP01" (8) | region size (4) | reserved (4) | start, epoch ms (8) | reserved (8)
+ * record:         kind (1) | address length (1) | port (2) | payload length (4) | offset, ns (8)
+ *                 | address (4 or 16) | payload
+ *
+ * kind 1 = received from the address, 2 = sent to it, 3 = rest of region unused, 0 = end of log
+ * </pre>
+ * <p>All numbers are big-endian.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <pre>
+ * java -Dcapture.file=echo.cap Step4_UDP_Echo_Server loop    # record while serving
+ * java Step4_UDP_Echo_Client load 20000 64 16 10             # some traffic to record
+ * java Step4_Packet_Capture dump echo.cap 20                 # look at the first records
+ * java Step4_Packet_Capture replay echo.cap 1                # original speed
+ * java Step4_Packet_Capture replay echo.cap 10               # 10 times faster
+ * java Step4_Packet_Capture replay echo.cap max              # as fast as possible
+ * </pre>
+ * <p>{@code -Dcapture.file} records in {@link Step4_UDP_Receiver} and in the
+ * {@code loop}, {@code framed} and {@code compressed} modes of
+ * {@link Step4_UDP_Echo_Server}.</p>
+ *
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_UDP_Receiver
+ * @see Step4_Load_Generator
+ */
+public class Step4_Packet_Capture {
+
+  /** "UDPCAP01" */
+  static final long MAGIC = 0x5544504341503031L;
+
+  /** Bytes mapped at a time */
+  static final int REGION_SIZE = 64 << 20;
+
+  /** Size of the file header */
+  static final int FILE_HEADER = 32;
+
+  /** Size of a record before its address and payload */
+  static final int RECORD_HEADER = 16;
+
+  /** Record kinds */
+  static final byte END = 0;
+  static final byte RECEIVED = 1;
+  static final byte SENT = 2;
+  static final byte PAD = 3;
+
+  /** How long replay waits for replies after the last datagram */
+  private static final long REPLY_GRACE_MS = 1000;
+
+  /** Most sockets replay opens; further recorded sources share them */
+  private static final int MAX_REPLAY_SOCKETS = 256;
+
+  /** Waits longer than this are spent in {@code select()}; shorter ones spin */
+  private static final long SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+  private Step4_Packet_Capture() {
+  }
+
+  /**
+   * Appends datagrams to a capture file. Thread-safe.
+   *
+   * <p>If the file cannot grow (a full disk), recording stops with one message
+   * and the program carries on. Mapping a new region cannot detect this: it
+   * only extends the file sparsely. The disk is found full when a write first
+   * touches a page with no block behind it, which the JVM reports as an
+   * {@link InternalError} from the buffer write; {@code append} catches it
+   * there and cuts the partial record off when the file is closed.</p>
+   */
+  static final class Recorder implements AutoCloseable {
+
+    private final Path path;
+    private final FileChannel file;
+    private final long startNanos = System.nanoTime();
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long records;
+    private boolean stopped;
+
+    /**
+     * Creates (or replaces) a capture file.
+     *
+     * @throws IOException if the file cannot be created or mapped
+     */
+    Recorder(Path path) throws IOException {
+      this.path = path;
+      this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      region = file.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+      region.putLong(MAGIC).putInt(REGION_SIZE).putInt(0).putLong(System.currentTimeMillis()).putLong(0);
+    }
+
+    /**
+     * Records a datagram this process received.
+     *
+     * @param datagram the payload, from position to limit; not modified
+     * @param source where it came from
+     */
+    synchronized void received(ByteBuffer datagram, SocketAddress source) {
+      append(RECEIVED, datagram, source);
+    }
+
+    /**
+     * Records a datagram this process sent.
+     *
+     * @param datagram the payload, from position to limit; not modified
+     * @param target where it went
+     */
+    synchronized void sent(ByteBuffer datagram, SocketAddress target) {
+      append(SENT, datagram, target);
+    }
+
+    private void append(byte kind, ByteBuffer datagram, SocketAddress peer) {
+      if (stopped) {
+        return;
+      }
+      InetSocketAddress address = (InetSocketAddress) peer;
+      byte[] ip = address.getAddress().getAddress();
+      int length = datagram.remaining();
+      int size = RECORD_HEADER + ip.length + length;
+
+      // Where the log ends if this record cannot be written
+      int end = region.position();
+      try {
+        if (region.remaining() < size) {
+          if (region.hasRemaining()) {
+            region.put(PAD);
+          }
+          try {
+            region = file.map(FileChannel.MapMode.READ_WRITE, regionStart + REGION_SIZE, REGION_SIZE);
+            regionStart += REGION_SIZE;
+            end = 0;
+          } catch (IOException e) {
+            region.position(end);
+            stop(e);
+            return;
+          }
+        }
+
+        region.put(kind).put((byte) ip.length).putShort((short) address.getPort()).putInt(length)
+            .putLong(System.nanoTime() - startNanos).put(ip);
+        region.put(region.position(), datagram, datagram.position(), length);
+        region.position(region.position() + length);
+        records++;
+      } catch (InternalError e) {
+        // SIGBUS: no disk block for a page of the mapping
+        region.position(end);
+        stop(e);
+      }
+    }
+
+    private void stop(Throwable cause) {
+      System.out.println("CAPTURE stopped after " + records + " records: " + cause);
+      stopped = true;
+    }
+
+    /**
+     * Writes the log to disk and trims the unused end of the last region.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      if (!file.isOpen()) {
+        return;
+      }
+      stopped = true;
+      try {
+        region.force();
+      } catch (UncheckedIOException e) {
+        // the pages that could be written are in the file; the truncate below still trims it
+      }
+      try {
+        file.truncate(regionStart + region.position());
+      } catch (IOException e) {
+        // Some systems refuse to shrink a mapped file; the zero-filled tail reads as END
+      }
+      file.close();
+      System.out.println("CAPTURE wrote " + records + " records to " + path);
+    }
+  }
+
+  /** The recorder named by {@code -Dcapture.file}, opened on first use */
+  private static final class Shared {
+    static final Recorder RECORDER = open();
+
+    private static Recorder open() {
+      String file = System.getProperty("capture.file");
+      if (file == null) {
+        return null;
+      }
+      try {
+        Recorder recorder = new Recorder(Path.of(file));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            recorder.close();
+          } catch (IOException e) {
+            System.out.println("CAPTURE could not be closed: " + e);
+          }
+        }, "capture-close"));
+        System.out.println("CAPTURING to " + file);
+        return recorder;
+      } catch (IOException e) {
+        System.out.println("CAPTURE disabled, cannot open " + file + ": " + e);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return the process-wide recorder set up with {@code -Dcapture.file=PATH}, or
+   *         null if capturing is off; it is closed when the JVM exits
+   */
+  static Recorder recorder() {
+    return Shared.RECORDER;
+  }
+
+  /**
+   * One recorded datagram.
+   *
+   * @param kind {@link #RECEIVED} or {@link #SENT}
+   * @param offsetNanos time since the capture began
+   * @param peer the source of a received datagram, or the target of a sent one
+   * @param payload the datagram; a view of the mapped file, valid while the reader is open
+   */
+  record Entry(byte kind, long offsetNanos, InetSocketAddress peer, ByteBuffer payload) { }
+
+  /**
+   * Reads a capture file from start to end.
+   */
+  static final class Reader implements AutoCloseable {
+
+    private final FileChannel file;
+    private final long size;
+    private final int regionSize;
+    private final long startMillis;
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    /**
+     * @throws IOException if the file cannot be read or is not a capture file
+     */
+    Reader(Path path) throws IOException {
+      file = FileChannel.open(path, StandardOpenOption.READ);
+      size = file.size();
+      if (size < FILE_HEADER) {
+        file.close();
+        throw new IOException(path + " is not a capture file");
+      }
+      region = file.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, REGION_SIZE));
+      if (region.getLong() != MAGIC) {
+        file.close();
+        throw new IOException(path + " is not a capture file");
+      }
+      regionSize = region.getInt();
+      region.getInt();
+      startMillis = region.getLong();
+      region.getLong();
+      if (regionSize != REGION_SIZE) {
+        region = file.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, regionSize)).position(FILE_HEADER);
+      }
+    }
+
+    /** @return the wall-clock time the capture began */
+    Instant start() {
+      return Instant.ofEpochMilli(startMillis);
+    }
+
+    /**
+     * @return the next record, or null at the end of the log
+     * @throws IOException if the file is damaged
+     */
+    Entry next() throws IOException {
+      while (true) {
+        byte kind = region.hasRemaining() ? region.get(region.position()) : PAD;
+        if (kind == END) {
+          return null;
+        }
+        if (kind == PAD) {
+          regionStart += regionSize;
+          if (regionStart >= size) {
+            return null;
+          }
+          region = file.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(size - regionStart, regionSize));
+          continue;
+        }
+        long at = regionStart + region.position();
+        try {
+          region.get();
+          byte[] ip = new byte[region.get()];
+          int port = Short.toUnsignedInt(region.getShort());
+          int length = region.getInt();
+          long offset = region.getLong();
+          region.get(ip);
+          if ((kind != RECEIVED && kind != SENT) || length < 0 || length > region.remaining()) {
+            throw new IOException("corrupt capture record at byte " + at);
+          }
+          ByteBuffer payload = region.slice(region.position(), length);
+          region.position(region.position() + length);
+          return new Entry(kind, offset, new InetSocketAddress(InetAddress.getByAddress(ip), port), payload);
+        } catch (RuntimeException e) {   // a record cut short, or a bad address length
+          throw new IOException("corrupt capture record at byte " + at, e);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+
+  /**
+   * What a replay did.
+   *
+   * @param sent datagrams sent to the server
+   * @param replies datagrams that came back
+   * @param recordedReplies datagrams the capturing process sent
+   * @param maxLagMicros how far behind its recorded time the latest datagram went out
+   * @param seconds time from the first datagram to the last
+   */
+  record Report(long sent, long replies, long recordedReplies, long maxLagMicros, double seconds) {
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "REPLAYED %d datagrams in %.2f s (%.0f/s), max lag %d us; "
+          + "%d replies (%d in the capture)", sent, seconds, sent / Math.max(seconds, 1e-9), maxLagMicros,
+          replies, recordedReplies);
+    }
+  }
+
+  /**
+   * Sends every received datagram in a capture to {@code target}, and counts the replies.
+   *
+   * @param path the capture file
+   * @param target the server to send to
+   * @param speed 1 for the recorded timing, N for N times faster, 0 for as fast as possible
+   * @return what happened
+   * @throws IOException if the file cannot be read or a socket fails
+   */
+  static Report replay(Path path, SocketAddress target, double speed) throws IOException {
+    Map<SocketAddress, DatagramChannel> bySource = new HashMap<>();
+    List<DatagramChannel> sockets = new ArrayList<>();
+    ByteBuffer replyBuffer = ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+    long sent = 0;
+    long recordedReplies = 0;
+    long replies = 0;
+    long maxLag = 0;
+    long firstOffset = -1;
+    long start = 0;
+    long last = 0;
+
+    try (Reader reader = new Reader(path); Selector selector = Selector.open()) {
+      Entry entry;
+      while ((entry = reader.next()) != null) {
+        if (entry.kind() == SENT) {
+          recordedReplies++;
+          continue;
+        }
+
+        DatagramChannel socket = bySource.get(entry.peer());
+        if (socket == null) {
+          if (sockets.size() < MAX_REPLAY_SOCKETS) {
+            socket = DatagramChannel.open();
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_READ);
+            sockets.add(socket);
+          } else {
+            socket = sockets.get(Math.floorMod(entry.peer().hashCode(), sockets.size()));
+          }
+          bySource.put(entry.peer(), socket);
+        }
+
+        if (firstOffset < 0) {
+          firstOffset = entry.offsetNanos();
+          start = System.nanoTime();
+        }
+        long now = System.nanoTime();
+        if (speed > 0) {
+          long due = start + (long) ((entry.offsetNanos() - firstOffset) / speed);
+          while (due - now > 0) {
+            if (due - now > SPIN_NANOS) {
+              selector.select(TimeUnit.NANOSECONDS.toMillis(due - now - SPIN_NANOS) + 1);
+            } else {
+              selector.selectNow();
+              Thread.onSpinWait();
+            }
+            replies += drainReplies(selector, replyBuffer);
+            now = System.nanoTime();
+          }
+          maxLag = Math.max(maxLag, now - due);
+        }
+
+        // A full send buffer takes nothing; collect replies until there is room
+        while (socket.send(entry.payload(), target) == 0 && entry.payload().hasRemaining()) {
+          selector.selectNow();
+          replies += drainReplies(selector, replyBuffer);
+        }
+        sent++;
+        last = System.nanoTime();
+        if (speed == 0 && selector.selectNow() > 0) {
+          replies += drainReplies(selector, replyBuffer);
+        }
+      }
+
+      long graceEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLY_GRACE_MS);
+      long remaining;
+      while (sent > 0 && (remaining = graceEnd - System.nanoTime()) > 0) {
+        selector.select(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+        replies += drainReplies(selector, replyBuffer);
+      }
+    } finally {
+      for (DatagramChannel socket : sockets) {
+        socket.close();
+      }
+    }
+    return new Report(sent, replies, recordedReplies, maxLag / 1000, (last - start) / 1e9);
+  }
+
+  /**
+   * Reads every reply waiting on the sockets the selector reported ready.
+   *
+   * @return the number of replies read
+   */
+  private static long drainReplies(Selector selector, ByteBuffer buffer) throws IOException {
+    long count = 0;
+    for (SelectionKey key : selector.selectedKeys()) {
+      DatagramChannel socket = (DatagramChannel) key.channel();
+      while (socket.receive(buffer.clear()) != null) {
+        count++;
+      }
+    }
+    selector.selectedKeys().clear();
+    return count;
+  }
+
+  /**
+   * Prints the first records of a capture and totals for the whole file.
+   *
+   * @param limit how many records to print
+   * @throws IOException if the file cannot be read
+   */
+  static void dump(Path path, int limit) throws IOException {
+    try (Reader reader = new Reader(path)) {
+      System.out.println("CAPTURE " + path + " started " + reader.start());
+      long received = 0;
+      long sent = 0;
+      long bytes = 0;
+      long lastOffset = 0;
+      Entry entry;
+      while ((entry = reader.next()) != null) {
+        if (received + sent < limit) {
+          System.out.printf(Locale.ROOT, "%12.6f %s %-24s %5d bytes%n", entry.offsetNanos() / 1e9,
+              entry.kind() == RECEIVED ? "<-" : "->", entry.peer().getHostString() + ":" + entry.peer().getPort(),
+              entry.payload().remaining());
+        }
+        if (entry.kind() == RECEIVED) {
+          received++;
+        } else {
+          sent++;
+        }
+        bytes += entry.payload().remaining();
+        lastOffset = entry.offsetNanos();
+      }
+      System.out.printf(Locale.ROOT, "TOTAL %d received, %d sent, %d payload bytes over %.3f s%n",
+          received, sent, bytes, lastOffset / 1e9);
+    }
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args {@code dump FILE [limit]} or {@code replay FILE [speed|max] [host] [port]};
+   *             replay defaults to the recorded speed against the local echo server
+   * @throws IOException if the file cannot be read or a socket fails
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length > 1 && args[0].equals("dump")) {
+      dump(Path.of(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 20);
+      return;
+    }
+
+    if (args.length > 1 && args[0].equals("replay")) {
+      double speed = args.length < 3 ? 1 : args[2].equals("max") ? 0 : Double.parseDouble(args[2]);
+      if (speed < 0) {
+        throw new IllegalArgumentException("speed must be positive, or max");
+      }
+      String host = args.length > 3 ? args[3] : "localhost";
+      int port = args.length > 4 ? Integer.parseInt(args[4]) : Step4_PortsUsed.SERVER_PORT;
+      System.out.println(replay(Path.of(args[1]), new InetSocketAddress(host, port), speed));
+      return;
+    }
+
+    System.out.println("usage: Step4_Packet_Capture dump FILE [limit]");
+    System.out.println("       Step4_Packet_Capture replay FILE [speed|max] [host] [port]");
+  }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Step 4: Parallel Port Prober
+ *
+ * {@link Step4_PortsUsed} fixes the ports the echo programs use, but nothing
+ * tells you which ports on a machine actually answer. This class checks many
+ * hosts and ports at once: a TCP connect for TCP (the first step of
+ * {@link Step1_SocketToGoogle}, without the HTTP request), and an echo request
+ * for UDP (as {@link Step4_UDP_Echo_Client} sends).
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Virtual Threads</b> - One cheap thread per probe; thousands can wait at once</li>
+ *   <li><b>Non-Blocking Connects</b> - On a virtual thread, {@code Socket.connect} starts a
+ *       non-blocking connect and parks the thread until the JDK's poller sees it finish, so
+ *       a waiting probe holds no carrier (platform) thread</li>
+ *   <li><b>Concurrency Cap</b> - A {@link Semaphore} limits how many probes are in flight, which
+ *       bounds open file descriptors and avoids flooding the target</li>
+ *   <li><b>Timeouts</b> - A probe that gets no answer gives up after a fixed time</li>
+ *   <li><b>Streaming Results</b> - Each result is printed the moment its probe finishes</li>
+ * </ul>
+ *
+ * <h2>Reading the Results:</h2>
+ * <ul>
+ *   <li><b>TCP OPEN</b> - the connection was accepted</li>
+ *   <li><b>TCP CLOSED</b> - the host refused it (a RST came back)</li>
+ *   <li><b>UDP OPEN</b> - something echoed the probe back</li>
+ *   <li><b>UDP CLOSED</b> - an ICMP "port unreachable" came back</li>
+ *   <li><b>NO_REPLY</b> - nothing came back in time: filtered, down, or (UDP) a service that
+ *       does not answer this probe. Linux rate-limits ICMP, so a fast UDP scan of a
+ *       remote host reports many closed ports this way</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <pre>
+ * java Step4_Port_Prober tcp localhost 1-65535
+ * java Step4_Port_Prober udp localhost,127.0.0.2 1024-1030 200 500
+ * java Step4_Port_Prober both example.com 22,80,443
+ * </pre>
+ *
+ * @see Step4_PortsUsed
+ * @see Step1_SocketToGoogle
+ * @see Step4_UDP_Echo_Server
+ */
+public class Step4_Port_Prober {
+
+  /** Default number of probes in flight at once */
+  static final int DEFAULT_CONCURRENCY = 1000;
+
+  /** Default time a probe waits for an answer, in milliseconds */
+  static final int DEFAULT_TIMEOUT_MS = 1000;
+
+  /** Sent by UDP probes */
+  private static final byte[] UDP_PROBE = "probe".getBytes(StandardCharsets.US_ASCII);
+
+  /** Which transport a probe used */
+  enum Protocol { TCP, UDP }
+
+  /** What a probe found */
+  enum State { OPEN, CLOSED, NO_REPLY }
+
+  /**
+   * The outcome of one probe.
+   *
+   * @param protocol the transport probed
+   * @param target the host and port probed
+   * @param state what was found
+   * @param micros how long the probe took
+   */
+  record Result(Protocol protocol, InetSocketAddress target, State state, long micros) {
+
+    @Override
+    public String toString() {
+      return protocol + " " + target.getHostString() + ":" + target.getPort() + " " + state
+          + " (" + micros + " us)";
+    }
+  }
+
+  /**
+   * Tries to open a TCP connection.
+   *
+   * @param target the host and port
+   * @param timeoutMillis how long to wait for the connection
+   * @return the result; failures other than refusal or timeout count as {@code NO_REPLY}
+   */
+  static Result probeTcp(InetSocketAddress target, int timeoutMillis) {
+    long start = System.nanoTime();
+    State state;
+    try (Socket socket = new Socket()) {
+      socket.connect(target, timeoutMillis);
+      state = State.OPEN;
+    } catch (ConnectException e) {
+      state = State.CLOSED;
+    } catch (IOException e) {
+      state = State.NO_REPLY;   // timed out, unreachable network, ...
+    }
+    return new Result(Protocol.TCP, target, state, (System.nanoTime() - start) / 1000);
+  }
+
+  /**
+   * Sends a UDP echo probe and waits for any reply.
+   *
+   * <p>The socket is connected to the target, so the operating system reports
+   * an ICMP "port unreachable" to this socket as a {@link PortUnreachableException}.</p>
+   *
+   * @param target the host and port
+   * @param timeoutMillis how long to wait for a reply
+   * @return the result
+   */
+  static Result probeUdp(InetSocketAddress target, int timeoutMillis) {
+    long start = System.nanoTime();
+    State state;
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.connect(target);
+      socket.setSoTimeout(timeoutMillis);
+      socket.send(new DatagramPacket(UDP_PROBE, UDP_PROBE.length));
+      socket.receive(new DatagramPacket(new byte[UDP_PROBE.length], UDP_PROBE.length));
+      state = State.OPEN;
+    } catch (PortUnreachableException e) {
+      state = State.CLOSED;
+    } catch (IOException e) {
+      state = State.NO_REPLY;   // timed out (SocketTimeoutException) or failed to send
+    }
+    return new Result(Protocol.UDP, target, state, (System.nanoTime() - start) / 1000);
+  }
+
+  /**
+   * Probes every port of every host with every protocol, at most
+   * {@code concurrency} probes at a time, passing each result to {@code results}
+   * as soon as it is known.
+   *
+   * @param hosts the hosts to probe
+   * @param ports the ports to probe on each host
+   * @param protocols the probes to run on each port
+   * @param concurrency most probes in flight at once
+   * @param timeoutMillis time each probe waits for an answer
+   * @param results called once per probe, from many threads at once
+   * @throws InterruptedException if interrupted while waiting for a free slot
+   */
+  static void scan(List<InetAddress> hosts, int[] ports, List<Protocol> protocols, int concurrency,
+                   int timeoutMillis, Consumer<Result> results) throws InterruptedException {
+
+    Semaphore slots = new Semaphore(concurrency);
+    try (ExecutorService probes = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (InetAddress host : hosts) {
+        for (int port : ports) {
+          InetSocketAddress target = new InetSocketAddress(host, port);
+          for (Protocol protocol : protocols) {
+            // Waiting here, before the thread exists, keeps the number of threads bounded too
+            slots.acquire();
+            probes.execute(() -> {
+              try {
+                results.accept(protocol == Protocol.TCP
+                    ? probeTcp(target, timeoutMillis)
+                    : probeUdp(target, timeoutMillis));
+              } finally {
+                slots.release();
+              }
+            });
+          }
+        }
+      }
+    }   // close() waits for the last probes
+  }
+
+  /**
+   * Parses a port list such as {@code 22,80,8000-8100}.
+   *
+   * @throws IllegalArgumentException if a port is outside 1-65535
+   */
+  static int[] parsePorts(String spec) {
+    List<Integer> ports = new ArrayList<>();
+    for (String part : spec.split(",")) {
+      int dash = part.indexOf('-');
+      int first = Integer.parseInt(dash < 0 ? part.trim() : part.substring(0, dash).trim());
+      int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1).trim());
+      if (first < 1 || last > 65535 || first > last) {
+        throw new IllegalArgumentException("bad port range: " + part);
+      }
+      for (int port = first; port <= last; port++) {
+        ports.add(port);
+      }
+    }
+    return ports.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Main entry point.
+   *
+   * <p>Open ports are printed as they are found; closed and silent ones are only
+   * counted, unless {@code -Dprober.all=true} is set.</p>
+   *
+   * @param args {@code [tcp|udp|both] [hosts] [ports] [concurrency] [timeoutMs]}, where
+   *             hosts are comma-separated and ports look like {@code 1-1024,8080};
+   *             the defaults probe TCP on localhost ports 1-65535
+   * @throws IOException if a host name cannot be resolved
+   * @throws InterruptedException if interrupted while scanning
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+
+    String mode = args.length > 0 ? args[0] : "tcp";
+    List<Protocol> protocols = switch (mode) {
+      case "tcp" -> List.of(Protocol.TCP);
+      case "udp" -> List.of(Protocol.UDP);
+      case "both" -> List.of(Protocol.TCP, Protocol.UDP);
+      default -> throw new IllegalArgumentException("unknown mode: " + mode);
+    };
+    List<InetAddress> hosts = new ArrayList<>();
+    for (String name : (args.length > 1 ? args[1] : "localhost").split(",")) {
+      hosts.add(InetAddress.getByName(name.trim()));
+    }
+    int[] ports = parsePorts(args.length > 2 ? args[2] : "1-65535");
+    int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CONCURRENCY;
+    int timeout = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_TIMEOUT_MS;
+    boolean all = Boolean.getBoolean("prober.all");
+
+    System.out.println("PROBING " + hosts.size() * ports.length * protocols.size() + " targets, "
+        + concurrency + " at a time, " + timeout + " ms timeout");
+
+    Map<State, LongAdder> counts = new EnumMap<>(State.class);
+    for (State state : State.values()) {
+      counts.put(state, new LongAdder());
+    }
+    long start = System.nanoTime();
+    scan(hosts, ports, protocols, concurrency, timeout, result -> {
+      counts.get(result.state()).increment();
+      if (all || result.state() == State.OPEN) {
+        System.out.println(result);
+      }
+    });
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("DONE in %.2f s: %d open, %d closed, %d no reply%n", seconds,
+        counts.get(State.OPEN).sum(), counts.get(State.CLOSED).sum(), counts.get(State.NO_REPLY).sum());
+  }
+}
@@ -19,6 +19,8 @@
  *
  * @see Step4_UDP_Echo_Server
  * @see Step4_UDP_Echo_Client
+ * @see Step4_Port_Prober
+ * @see Step4_Impairment_Proxy
  */
 public class Step4_PortsUsed {
 
@@ -27,4 +29,7 @@ public class Step4_PortsUsed {
 
     /** Port number where the UDP Echo Client listens for server responses */
     public static final int CLIENT_PORT = 1025;
+
+    /** Port number where {@link Step4_Impairment_Proxy} listens, forwarding to SERVER_PORT */
+    public static final int PROXY_PORT = 1026;
 }
@@ -0,0 +1,389 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Step 4: Off-Heap Session Table
+ *
+ * A server that remembers something about each client (where its sequence
+ * numbers are, when it was last heard from, how fast it may send) needs a
+ * table keyed by the client's address and port. A
+ * {@code HashMap<InetSocketAddress, Session>} with millions of entries is
+ * millions of objects that the garbage collector must trace on every full
+ * collection. This table keeps every session in one block of memory outside
+ * the Java heap, where the collector never looks.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Off-Heap Memory</b> - One direct {@link ByteBuffer} holds all the sessions; the heap
+ *       only holds the buffer's small header object</li>
+ *   <li><b>Fixed-Size Slots</b> - Each session is {@value #SLOT_SIZE} bytes, one CPU cache line,
+ *       so reading or updating a session touches a single line of memory</li>
+ *   <li><b>Open Addressing</b> - A session's slot is found by hashing its key and stepping to the
+ *       next slot on a collision (linear probing): no chains, no pointers, no per-entry objects</li>
+ *   <li><b>Packed Keys</b> - The address is stored as 128 bits (IPv4 as an IPv4-mapped IPv6
+ *       address) plus the port, so both families share one table</li>
+ *   <li><b>Seqlocks</b> - One thread writes; any number of threads read without locking. A reader
+ *       checks a slot's version before and after copying it and retries if a write happened
+ *       in between</li>
+ *   <li><b>{@link VarHandle} Access</b> - Acquire and release reads and writes of the buffer give the
+ *       ordering the seqlock needs</li>
+ *   <li><b>Tombstones and Rebuilds</b> - Expired sessions leave a marker so later probes keep going;
+ *       when markers pile up, the table is rebuilt without them</li>
+ * </ul>
+ *
+ * <h2>Slot Layout (64 bytes):</h2>
+ * <pre>
+ *  0  version        odd while the writer is changing the slot
+ *  8  address, high 64 bits
+ * 16  address, low 64 bits
+ * 24  port (4)  | state (4): 0 empty, 1 live, 2 expired
+ * 32  last seen, System.nanoTime()
+ * 40  datagrams received
+ * 48  rate limit: time the next token is due (as in {@link Step4_Admission_Control})
+ * 56  sequence counter (4) | unused (4)
+ * </pre>
+ *
+ * <p>Only one thread may call the methods that change the table
+ * ({@link #touch}, {@link #admit}, {@link #nextSequence}, {@link #expire});
+ * {@link #get} and {@link #size} may be called from any thread.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} with {@code sessions [maxSessions] [rate] [burst]}.</p>
+ *
+ * @see Step4_UDP_Echo_Server
+ * @see Step4_Admission_Control
+ */
+final class Step4_Session_Table {
+
+  /** Bytes per session */
+  static final int SLOT_SIZE = 64;
+
+  /** Most sessions that fit, with a quarter of the slots free, in 2^24 slots: one 1 GB buffer (a ByteBuffer is indexed by int) */
+  static final int MAX_SESSIONS = (3 << 22) - 1;
+
+  private static final int VERSION = 0;
+  private static final int ADDRESS_HIGH = 8;
+  private static final int ADDRESS_LOW = 16;
+  private static final int PORT = 24;
+  private static final int STATE = 28;
+  private static final int LAST_SEEN = 32;
+  private static final int PACKETS = 40;
+  private static final int NEXT_TOKEN = 48;
+  private static final int SEQUENCE = 56;
+
+  private static final int EMPTY = 0;
+  private static final int LIVE = 1;
+  private static final int EXPIRED = 2;
+
+  /** The IPv4-mapped IPv6 prefix, ::ffff:0:0/96, in the low 64 bits */
+  private static final long IPV4_MAPPED = 0xFFFF_0000_0000L;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  /**
+   * A copy of one session, as returned to readers.
+   *
+   * @param address the client
+   * @param lastSeenNanos {@link System#nanoTime()} of its last datagram
+   * @param packets datagrams received from it
+   * @param sequence the last value handed out by {@link #nextSequence}
+   */
+  record Session(InetSocketAddress address, long lastSeenNanos, long packets, int sequence) { }
+
+  private final int maxSessions;
+  private final int mask;
+  private final long intervalNanos;
+  private final long burstNanos;
+
+  /** The slots; replaced (never modified in place) by a rebuild, so readers see one table or the other */
+  private volatile ByteBuffer slots;
+
+  private volatile int size;
+  private int expired;
+  private int sweepCursor;
+
+  /** The last source {@link #touch} packed, and its packed address; writer only */
+  private InetSocketAddress lastSource;
+  private long lastHigh;
+  private long lastLow;
+
+  /**
+   * Allocates the table. Its memory (see {@link #memoryBytes()}) is taken in
+   * full up front.
+   *
+   * @param maxSessions most sessions held at once
+   * @param rate datagrams per second each session may send, on average
+   * @param burst datagrams a session may send at once after being quiet
+   */
+  Step4_Session_Table(int maxSessions, double rate, int burst) {
+    if (maxSessions < 1 || maxSessions > MAX_SESSIONS) {
+      throw new IllegalArgumentException("maxSessions must be between 1 and " + MAX_SESSIONS);
+    }
+    if (rate <= 0 || burst < 1) {
+      throw new IllegalArgumentException("rate must be positive and burst at least 1");
+    }
+    // At most 75% full, so probe sequences stay short and always reach an empty slot
+    int capacity = Integer.highestOneBit(maxSessions + maxSessions / 3) << 1;
+    this.maxSessions = maxSessions;
+    this.mask = capacity - 1;
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    this.burstNanos = (burst - 1) * intervalNanos;
+    this.slots = allocate(capacity);
+  }
+
+  private static ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocateDirect(capacity * SLOT_SIZE).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Finds or creates the session of {@code source} and records a datagram from it. Writer only.
+   *
+   * @param now the current {@link System#nanoTime()}
+   * @return the session's slot, for {@link #admit} and {@link #nextSequence}; -1 if the table is full
+   */
+  int touch(InetSocketAddress source, long now) {
+    // getAddress() copies the address bytes. A DatagramChannel hands back the same
+    // InetSocketAddress object while the sender stays the same, so the copy is only
+    // made when the sender changes; it is a 4 or 16 byte array that dies at once in
+    // the young generation, not per-session state the collector has to keep tracing.
+    if (source != lastSource) {
+      byte[] ip = source.getAddress().getAddress();
+      lastHigh = addressHigh(ip);
+      lastLow = addressLow(ip);
+      lastSource = source;
+    }
+    long high = lastHigh;
+    long low = lastLow;
+    int port = source.getPort();
+
+    ByteBuffer table = slots;
+    int reuse = -1;
+    for (int slot = hash(high, low, port) & mask; ; slot = (slot + 1) & mask) {
+      int at = slot * SLOT_SIZE;
+      int state = table.getInt(at + STATE);
+      if (state == EMPTY) {
+        break;
+      }
+      if (state == EXPIRED) {
+        if (reuse < 0) {
+          reuse = slot;
+        }
+        continue;
+      }
+      if (table.getLong(at + ADDRESS_HIGH) == high && table.getLong(at + ADDRESS_LOW) == low
+          && table.getInt(at + PORT) == port) {
+        long version = beginWrite(table, at);
+        table.putLong(at + LAST_SEEN, now);
+        table.putLong(at + PACKETS, table.getLong(at + PACKETS) + 1);
+        endWrite(table, at, version);
+        return slot;
+      }
+    }
+
+    if (size >= maxSessions) {
+      return -1;
+    }
+    if (reuse < 0 && size + expired >= maxSessions) {
+      rebuild();   // too many tombstones; clear them, then insert into the new table
+      return touch(source, now);
+    }
+    int slot = reuse >= 0 ? reuse : emptySlot(table, hash(high, low, port));
+    if (reuse >= 0) {
+      expired--;
+    }
+    int at = slot * SLOT_SIZE;
+    long version = beginWrite(table, at);
+    table.putLong(at + ADDRESS_HIGH, high);
+    table.putLong(at + ADDRESS_LOW, low);
+    table.putInt(at + PORT, port);
+    table.putLong(at + LAST_SEEN, now);
+    table.putLong(at + PACKETS, 1);
+    table.putLong(at + NEXT_TOKEN, now);
+    table.putInt(at + SEQUENCE, 0);
+    table.putInt(at + STATE, LIVE);
+    endWrite(table, at, version);
+    size++;
+    return slot;
+  }
+
+  /**
+   * Takes a token from the session's rate limit. Writer only.
+   *
+   * @param slot returned by {@link #touch}
+   * @return true if the datagram is within the session's rate
+   */
+  boolean admit(int slot, long now) {
+    ByteBuffer table = slots;
+    int at = slot * SLOT_SIZE;
+    long due = table.getLong(at + NEXT_TOKEN);
+    long start = Math.max(due, now);
+    if (start - now > burstNanos) {
+      return false;
+    }
+    long version = beginWrite(table, at);
+    table.putLong(at + NEXT_TOKEN, start + intervalNanos);
+    endWrite(table, at, version);
+    return true;
+  }
+
+  /**
+   * Advances the session's sequence counter. Writer only.
+   *
+   * @param slot returned by {@link #touch}
+   * @return the new value, starting at 1
+   */
+  int nextSequence(int slot) {
+    ByteBuffer table = slots;
+    int at = slot * SLOT_SIZE;
+    long version = beginWrite(table, at);
+    int sequence = table.getInt(at + SEQUENCE) + 1;
+    table.putInt(at + SEQUENCE, sequence);
+    endWrite(table, at, version);
+    return sequence;
+  }
+
+  /**
+   * Looks at up to {@code budget} slots, continuing where the last call stopped,
+   * and expires sessions idle for {@code idleNanos}. Calling this a little at a
+   * time from an event loop keeps each pause short. Writer only.
+   *
+   * @return the number of sessions expired
+   */
+  int expire(long now, long idleNanos, int budget) {
+    ByteBuffer table = slots;
+    int removed = 0;
+    for (int i = 0; i < budget && i <= mask; i++) {
+      int at = sweepCursor * SLOT_SIZE;
+      sweepCursor = (sweepCursor + 1) & mask;
+      if (table.getInt(at + STATE) == LIVE && now - table.getLong(at + LAST_SEEN) > idleNanos) {
+        long version = beginWrite(table, at);
+        table.putInt(at + STATE, EXPIRED);
+        endWrite(table, at, version);
+        size--;
+        expired++;
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Reads a session. Safe from any thread, concurrently with the writer.
+   *
+   * @return a copy of the session, or null if {@code source} has none
+   */
+  Session get(InetSocketAddress source) {
+    byte[] ip = source.getAddress().getAddress();
+    long high = addressHigh(ip);
+    long low = addressLow(ip);
+    int port = source.getPort();
+
+    while (true) {
+      ByteBuffer table = slots;
+      boolean torn = false;
+      for (int slot = hash(high, low, port) & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+        int at = slot * SLOT_SIZE;
+        long version = (long) LONGS.getAcquire(table, at + VERSION);
+        int state = table.getInt(at + STATE);
+        boolean match = state == LIVE && table.getLong(at + ADDRESS_HIGH) == high
+            && table.getLong(at + ADDRESS_LOW) == low && table.getInt(at + PORT) == port;
+        long lastSeen = table.getLong(at + LAST_SEEN);
+        long packets = table.getLong(at + PACKETS);
+        int sequence = table.getInt(at + SEQUENCE);
+        VarHandle.loadLoadFence();
+        if ((version & 1) != 0 || (long) LONGS.getAcquire(table, at + VERSION) != version) {
+          torn = true;   // the writer changed this slot while we read it
+          break;
+        }
+        if (state == EMPTY) {
+          break;
+        }
+        if (match) {
+          return new Session(source, lastSeen, packets, sequence);
+        }
+      }
+      if (!torn && table == slots) {
+        return null;
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /** @return live sessions; safe from any thread */
+  int size() {
+    return size;
+  }
+
+  /** @return bytes of memory the slots take: 64 per slot, with at least a quarter of the slots kept empty */
+  long memoryBytes() {
+    return (long) (mask + 1) * SLOT_SIZE;
+  }
+
+  /**
+   * Copies every live session into a fresh table, leaving the expired ones
+   * behind, and publishes it. Readers still walking the old table finish there.
+   */
+  private void rebuild() {
+    ByteBuffer old = slots;
+    ByteBuffer table = allocate(mask + 1);
+    for (int at = 0; at < old.capacity(); at += SLOT_SIZE) {
+      if (old.getInt(at + STATE) != LIVE) {
+        continue;
+      }
+      int slot = emptySlot(table, hash(old.getLong(at + ADDRESS_HIGH), old.getLong(at + ADDRESS_LOW),
+          old.getInt(at + PORT)));
+      table.put(slot * SLOT_SIZE, old, at, SLOT_SIZE);
+      table.putLong(slot * SLOT_SIZE + VERSION, 0);
+    }
+    expired = 0;
+    sweepCursor = 0;
+    slots = table;
+  }
+
+  private int emptySlot(ByteBuffer table, int hash) {
+    int slot = hash & mask;
+    while (table.getInt(slot * SLOT_SIZE + STATE) != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Marks a slot as being written; readers that see an odd version retry */
+  private static long beginWrite(ByteBuffer table, int at) {
+    long version = table.getLong(at + VERSION);
+    LONGS.setOpaque(table, at + VERSION, version + 1);
+    VarHandle.storeStoreFence();
+    return version;
+  }
+
+  /** Publishes a slot's new contents */
+  private static void endWrite(ByteBuffer table, int at, long version) {
+    LONGS.setRelease(table, at + VERSION, version + 2);
+  }
+
+  /** @return the high 64 bits of the address as IPv6: zero for IPv4 */
+  private static long addressHigh(byte[] ip) {
+    return ip.length == 4 ? 0 : ByteBuffer.wrap(ip).getLong(0);
+  }
+
+  /** @return the low 64 bits of the address as IPv6, IPv4 as ::ffff:a.b.c.d */
+  private static long addressLow(byte[] ip) {
+    return ip.length == 4 ? IPV4_MAPPED | (ByteBuffer.wrap(ip).getInt(0) & 0xFFFF_FFFFL)
+        : ByteBuffer.wrap(ip).getLong(8);
+  }
+
+  /** Spreads the key over the table (the finalizer of MurmurHash3) */
+  private static int hash(long high, long low, int port) {
+    long h = high * 0x9E3779B97F4A7C15L ^ low ^ ((long) port << 48);
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+}
@@ -0,0 +1,286 @@
+import java.util.Arrays;
+
+/**
+ * Step 4: Hashed Timer Wheel
+ *
+ * Network code needs many timers: a retransmission timeout per request, an
+ * idle timeout per connection. Almost all of them are cancelled before they
+ * fire, because the reply or the next request arrives first. A
+ * {@link java.util.concurrent.ScheduledExecutorService} keeps its timers in a
+ * heap (O(log n) per operation) and allocates a task object for each one.
+ * A timer wheel does both in constant time and, once warmed up, allocates
+ * nothing.
+ *
+ * <h2>How It Works:</h2>
+ * <p>Time is cut into ticks (for example 10 ms). The wheel is a ring of
+ * {@code slots} buckets; a timer due at tick {@code t} goes into bucket
+ * {@code t % slots}. Each time the event loop advances the wheel by a tick it
+ * looks at one bucket and fires the timers in it that are due; timers that
+ * are one or more full turns away stay where they are. Timers are stored in
+ * parallel arrays linked by index, so scheduling, cancelling and firing only
+ * update array entries.</p>
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>O(1) Schedule and Cancel</b> - Insertion is at a bucket's head; removal unlinks an entry
+ *       from a doubly-linked list</li>
+ *   <li><b>Coarse Time</b> - Timers fire on tick boundaries, so a timer may fire up to one tick
+ *       late. Network timeouts rarely need more precision</li>
+ *   <li><b>Handles</b> - {@link #schedule} returns a number combining the entry's index and a
+ *       generation count, so cancelling a timer that already fired (and whose entry was reused)
+ *       is detected and ignored</li>
+ *   <li><b>Event-Loop Integration</b> - {@link #selectTimeoutMillis} tells a {@code Selector}
+ *       loop how long it may block; the loop calls {@link #advance} after every wake-up</li>
+ * </ul>
+ *
+ * <p>Not thread-safe: the wheel belongs to one event loop. Code on other threads
+ * must synchronize on it.</p>
+ *
+ * @see Step4_UDP_Pipelined_Client
+ * @see Step1_TCP_Server
+ */
+final class Step4_Timer_Wheel {
+
+  /** Called for each timer that fires */
+  @FunctionalInterface
+  interface Expiry {
+
+    /**
+     * @param attachment the object given to {@link #schedule}
+     */
+    void expired(Object attachment);
+  }
+
+  /** {@link #bucketOf} marker: the entry is on the free list */
+  private static final int FREE = -1;
+
+  /** {@link #bucketOf} marker: the entry is due and about to fire */
+  private static final int DUE = -2;
+
+  /** {@link #bucketOf} marker: the entry was cancelled while due */
+  private static final int CANCELLED = -3;
+
+  /** No entry */
+  private static final int NONE = -1;
+
+  private final long tickNanos;
+  private final long startNanos;
+  private final int mask;
+  private final int[] heads;
+
+  // One entry per timer, linked by index
+  private long[] deadlineTick;
+  private Object[] attachment;
+  private int[] next;
+  private int[] prev;
+  private int[] bucketOf;
+  private int[] generation;
+
+  private int freeHead;
+  private int size;
+  private long currentTick;
+
+  /**
+   * @param slots number of buckets, rounded up to a power of two; slots times tick
+   *              should cover the usual timeout, so most timers are placed without wrapping
+   * @param tickNanos length of one tick
+   * @param initialCapacity timers that can be pending before the wheel grows its arrays
+   */
+  Step4_Timer_Wheel(int slots, long tickNanos, int initialCapacity) {
+    int buckets = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.tickNanos = tickNanos;
+    this.startNanos = System.nanoTime();
+    this.mask = buckets - 1;
+    this.heads = new int[buckets];
+    Arrays.fill(heads, NONE);
+    deadlineTick = new long[0];
+    attachment = new Object[0];
+    next = new int[0];
+    prev = new int[0];
+    bucketOf = new int[0];
+    generation = new int[0];
+    freeHead = NONE;
+    grow(Math.max(1, initialCapacity));
+  }
+
+  /**
+   * Schedules a timer.
+   *
+   * @param delayNanos how long from now the timer should fire
+   * @param attachment passed to the {@link Expiry} when it fires
+   * @return a handle for {@link #cancel}
+   */
+  long schedule(long delayNanos, Object attachment) {
+    if (freeHead == NONE) {
+      grow(deadlineTick.length * 2);
+    }
+    int index = freeHead;
+    freeHead = next[index];
+
+    long due = Math.ceilDiv(System.nanoTime() + Math.max(0, delayNanos) - startNanos, tickNanos);
+    deadlineTick[index] = Math.max(due, currentTick + 1);
+    this.attachment[index] = attachment;
+    link(index, (int) (deadlineTick[index] & mask));
+    size++;
+    return ((long) generation[index] << 32) | index;
+  }
+
+  /**
+   * Cancels a timer if it has not fired yet.
+   *
+   * @param handle returned by {@link #schedule}
+   * @return true if the timer was pending and will now not fire
+   */
+  boolean cancel(long handle) {
+    int index = (int) handle;
+    if (index < 0 || index >= generation.length || generation[index] != (int) (handle >>> 32)) {
+      return false;
+    }
+    int bucket = bucketOf[index];
+    if (bucket >= 0) {
+      unlink(index);
+      release(index);
+      return true;
+    }
+    if (bucket == DUE) {
+      bucketOf[index] = CANCELLED;   // advance() frees it without firing
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Fires every timer due up to {@code nowNanos}.
+   *
+   * <p>The expiry callback may schedule and cancel timers. If the wheel is
+   * advanced by more than a full turn at once, the overdue timers all fire in
+   * this call, though not strictly in deadline order.</p>
+   *
+   * @param nowNanos the current {@link System#nanoTime()}
+   * @param expiry called for each timer that fires
+   * @return the number of timers fired
+   */
+  int advance(long nowNanos, Expiry expiry) {
+    long target = (nowNanos - startNanos) / tickNanos;
+    long from = currentTick;
+    if (target <= from) {
+      return 0;
+    }
+    boolean catchUp = target - from > heads.length;
+    int visits = (int) Math.min(target - from, heads.length);
+    if (catchUp) {
+      currentTick = target;
+    }
+
+    int fired = 0;
+    for (int v = 1; v <= visits; v++) {
+      long tick = from + v;
+      long cutoff = catchUp ? target : tick;
+      if (!catchUp) {
+        currentTick = tick;
+      }
+
+      // Unlink every due entry first, so callbacks that schedule or cancel
+      // cannot disturb the walk through the bucket
+      int dueHead = NONE;
+      int i = heads[(int) (tick & mask)];
+      while (i != NONE) {
+        int following = next[i];
+        if (deadlineTick[i] <= cutoff) {
+          unlink(i);
+          bucketOf[i] = DUE;
+          next[i] = dueHead;
+          dueHead = i;
+        }
+        i = following;
+      }
+
+      while (dueHead != NONE) {
+        int index = dueHead;
+        dueHead = next[index];
+        boolean cancelled = bucketOf[index] == CANCELLED;
+        Object attached = attachment[index];
+        release(index);
+        if (!cancelled) {
+          fired++;
+          expiry.expired(attached);
+        }
+      }
+    }
+    return fired;
+  }
+
+  /**
+   * How long a {@code Selector} may block before {@link #advance} has work to do.
+   *
+   * @param nowNanos the current {@link System#nanoTime()}
+   * @return milliseconds to the next tick (at least 1), or 0 - "block until woken" -
+   *         if no timer is pending
+   */
+  long selectTimeoutMillis(long nowNanos) {
+    if (size == 0) {
+      return 0;
+    }
+    long intoTick = (nowNanos - startNanos) % tickNanos;
+    return Math.max(1, Math.ceilDiv(tickNanos - intoTick, 1_000_000L));
+  }
+
+  /** @return the number of pending timers */
+  int size() {
+    return size;
+  }
+
+  private void link(int index, int bucket) {
+    int head = heads[bucket];
+    next[index] = head;
+    prev[index] = NONE;
+    if (head != NONE) {
+      prev[head] = index;
+    }
+    heads[bucket] = index;
+    bucketOf[index] = bucket;
+  }
+
+  private void unlink(int index) {
+    int bucket = bucketOf[index];
+    if (prev[index] != NONE) {
+      next[prev[index]] = next[index];
+    } else {
+      heads[bucket] = next[index];
+    }
+    if (next[index] != NONE) {
+      prev[next[index]] = prev[index];
+    }
+  }
+
+  /**
+   * Returns an entry to the free list; its next handle gets a new generation.
+   */
+  private void release(int index) {
+    attachment[index] = null;
+    bucketOf[index] = FREE;
+    generation[index]++;
+    next[index] = freeHead;
+    freeHead = index;
+    size--;
+  }
+
+  /**
+   * Enlarges the entry arrays; the new entries go on the free list. This is the
+   * only place the wheel allocates, and it stops once the wheel is big enough.
+   */
+  private void grow(int capacity) {
+    int old = deadlineTick.length;
+    deadlineTick = Arrays.copyOf(deadlineTick, capacity);
+    attachment = Arrays.copyOf(attachment, capacity);
+    next = Arrays.copyOf(next, capacity);
+    prev = Arrays.copyOf(prev, capacity);
+    bucketOf = Arrays.copyOf(bucketOf, capacity);
+    generation = Arrays.copyOf(generation, capacity);
+    for (int i = capacity - 1; i >= old; i--) {
+      bucketOf[i] = FREE;
+      next[i] = freeHead;
+      freeHead = i;
+    }
+  }
+}
@@ -2,8 +2,21 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
 
 /**
  * Step 4: UDP Echo Client with Asynchronous Response Handling
@@ -16,7 +29,8 @@ import java.util.concurrent.ExecutionException;
  * <ul>
  *   <li><b>Asynchronous Programming</b> - Uses CompletableFuture to wait for responses</li>
  *   <li><b>Full-Duplex Communication</b> - Sends and receives on different ports</li>
- *   <li><b>Polling for Readiness</b> - Waits until receiver is bound before sending</li>
+ *   <li><b>Readiness Signal</b> - Waits on the receiver's {@code ready()} future before sending</li>
+ *   <li><b>Receive Timeout</b> - Gives up on the echo after a fixed time instead of waiting forever</li>
  *   <li><b>Echo Client Pattern</b> - Sends a message and expects it back unchanged</li>
  * </ul>
  *
@@ -24,7 +38,7 @@ import java.util.concurrent.ExecutionException;
  * <ol>
  *   <li>Prepares a UDP packet with the message to send</li>
  *   <li>Creates a receiver in a separate thread to listen for the response</li>
- *   <li>Waits until the receiver is bound to its port</li>
+ *   <li>Waits until the receiver signals that it is bound to its port</li>
  *   <li>Sends the message to the server</li>
  *   <li>Blocks on the CompletableFuture until the response arrives</li>
  *   <li>Prints both the sent message and received response</li>
@@ -37,14 +51,47 @@ import java.util.concurrent.ExecutionException;
  *   <li>Observe "Hello, World!" being sent and echoed back</li>
  * </ol>
  *
+ * <h2>Pipelined Mode:</h2>
+ * <p>Run with the argument {@code pipelined} (against a server started with
+ * {@code loop}) to send many messages at once through
+ * {@link Step4_UDP_Pipelined_Client}, which keeps several requests in flight
+ * over one socket and matches the echoes by sequence number. A snapshot of
+ * {@link Step4_Metrics} (traffic, retransmissions, round-trip percentiles) is
+ * printed at the end.</p>
+ *
+ * <h2>Framed Mode:</h2>
+ * <p>Run with {@code framed [size]} (against a server started with {@code framed})
+ * to send one non-ASCII message of {@code size} bytes as {@link Step4_Echo_Frame}
+ * frames. Messages above the MTU are split into fragments and reassembled from
+ * the echoed frames, then compared byte for byte.</p>
+ *
+ * <h2>Load Mode:</h2>
+ * <p>Run with {@code load [rate] [size] [clients] [seconds]} to send a fixed rate of
+ * requests with {@link Step4_Load_Generator} and print the achieved throughput,
+ * loss and latency percentiles. Raise the rate until the tail latency or the loss
+ * jumps: that is the server's saturation point.</p>
+ *
+ * <h2>Compressed Mode:</h2>
+ * <p>Run with {@code compressed [count]} (against a server started with
+ * {@code compressed}) to negotiate {@link Step4_Compression} with the server, send
+ * {@code count} small messages packed and compressed, and compare the bytes and
+ * datagrams on the wire with sending each message on its own. Against a server
+ * that does not understand the HELLO, the client falls back to plain datagrams.</p>
+ *
  * <h2>Why Asynchronous?</h2>
  * <p>The client starts listening for responses BEFORE sending the request to avoid
  * a race condition where the response arrives before the client is ready to receive it.
- * The polling loop ensures the receiver is bound before the message is sent.</p>
+ * Waiting on the receiver's readiness future ensures it is bound before the message
+ * is sent, and returns the moment binding completes rather than on the next poll.</p>
  *
  * @see Step4_UDP_Echo_Server
  * @see Step4_UDP_Receiver
+ * @see Step4_UDP_Pipelined_Client
  * @see Step4_PortsUsed
+ * @see Step4_Metrics
+ * @see Step4_Load_Generator
+ * @see Step4_Echo_Frame
+ * @see Step4_Compression
  * @see java.util.concurrent.CompletableFuture
  */
 public class Step4_UDP_Echo_Client {
@@ -52,12 +99,54 @@ public class Step4_UDP_Echo_Client {
   /** The message to send to the echo server */
   private static final String MESSAGE = "Hello, World!";
 
+  /**
+   * Port the pipelined, framed, compressed and load modes send to: the echo server's,
+   * unless {@code -Decho.port} points them at something in between, such as
+   * {@link Step4_Impairment_Proxy} on {@link Step4_PortsUsed#PROXY_PORT}
+   */
+  private static final int TARGET_PORT = Integer.getInteger("echo.port", Step4_PortsUsed.SERVER_PORT);
+
+  /** How long the single message waits for its echo; UDP may lose either datagram */
+  private static final long ECHO_TIMEOUT_MS = 2000;
+
+  /** Number of messages sent in pipelined mode */
+  private static final int PIPELINED_COUNT = 1000;
+
+  /** Maximum number of unanswered messages in pipelined mode */
+  private static final int PIPELINED_WINDOW = 64;
+
+  /** Default message size in framed mode: large enough to need several frames */
+  private static final int FRAMED_SIZE = 5000;
+
+  /** How long framed mode waits for the whole echo */
+  private static final long FRAMED_TIMEOUT_MS = 2000;
+
+  /** Default number of messages sent in compressed mode */
+  private static final int COMPRESSED_COUNT = 10_000;
+
+  /** How long compressed mode waits for each HELLO answer, and for the last echoes */
+  private static final long COMPRESSED_TIMEOUT_MS = 500;
+
+  /** IPv4 and UDP header bytes added to every datagram on the wire */
+  private static final int IP_UDP_HEADERS = 28;
+
+  /** Load mode defaults: requests per second, payload bytes, clients, seconds */
+  private static final int LOAD_RATE = 10_000;
+  private static final int LOAD_SIZE = 64;
+  private static final int LOAD_CLIENTS = 16;
+  private static final int LOAD_SECONDS = 10;
+
   /**
    * Main entry point for the UDP Echo Client.
    *
    * Sends a message to the echo server and displays the response.
+   * With the argument {@code pipelined} it runs {@link #runPipelined()} instead,
+   * and with {@code load [rate] [size] [clients] [seconds]} it runs
+   * {@link Step4_Load_Generator}. With {@code framed [size]} it runs {@link #runFramed(int)},
+   * and with {@code compressed [count]} it runs {@link #runCompressed(int)}.
    *
-   * @param args command line arguments (not used)
+   * @param args {@code pipelined}, {@code framed [size]}, {@code compressed [count]} or {@code load ...},
+   *             otherwise send one message
    * @throws IOException if an I/O error occurs during sending
    * @throws ExecutionException if the async receive operation fails
    * @throws InterruptedException if the thread is interrupted while waiting
@@ -65,8 +154,37 @@ public class Step4_UDP_Echo_Client {
   public static void main(String[] args)
       throws IOException, ExecutionException, InterruptedException {
 
-    // Convert message to bytes for UDP transmission
-    byte[] buffer = MESSAGE.getBytes();
+    Step4_Metrics.exportFromProperties();
+
+    if (args.length > 0 && args[0].equals("pipelined")) {
+      runPipelined();
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("compressed")) {
+      runCompressed(args.length > 1 ? Integer.parseInt(args[1]) : COMPRESSED_COUNT);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("framed")) {
+      runFramed(args.length > 1 ? Integer.parseInt(args[1]) : FRAMED_SIZE);
+      return;
+    }
+
+    if (args.length > 0 && args[0].equals("load")) {
+      int rate = args.length > 1 ? Integer.parseInt(args[1]) : LOAD_RATE;
+      int size = args.length > 2 ? Integer.parseInt(args[2]) : LOAD_SIZE;
+      int clients = args.length > 3 ? Integer.parseInt(args[3]) : LOAD_CLIENTS;
+      int seconds = args.length > 4 ? Integer.parseInt(args[4]) : LOAD_SECONDS;
+      System.out.println("LOAD: " + rate + " requests/s of " + size + " bytes from "
+          + clients + " clients for " + seconds + " s");
+      System.out.println(Step4_Load_Generator.run(
+          new InetSocketAddress("localhost", TARGET_PORT), rate, size, clients, seconds));
+      return;
+    }
+
+    // Convert message to bytes for UDP transmission, in the same charset the receiver decodes
+    byte[] buffer = MESSAGE.getBytes(StandardCharsets.UTF_8);
 
     // Create the outgoing packet addressed to the server
     DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
@@ -84,21 +202,259 @@ public class Step4_UDP_Echo_Client {
         () -> receiver.receive()
     );
 
-    // Poll until the receiver is bound and ready
+    // Wait until the receiver is bound and ready
     // This prevents sending before we can receive the response
-    int i = 1;
-    while (!receiver.isBound()) {
-      System.out.println("" + i + ". not bound yet");
-      i++;
-      Thread.sleep(100);
-    }
+    receiver.ready().get();
 
     // Now safe to send - the receiver is ready
     System.out.println("SENDING: '" + MESSAGE);
     datagramSocket.send(packet);
 
-    // Block until the response arrives (CompletableFuture.get() is blocking)
-    String received = response.get();
+    // Block until the response arrives, but not forever: a lost datagram never will
+    String received;
+    try {
+      received = response.get(ECHO_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      System.out.println("NO ECHO within " + ECHO_TIMEOUT_MS + " ms - is the server running?");
+      receiver.close();
+      return;
+    }
     System.out.println("SENT: '" + MESSAGE + "' RECEIVED: '" + received + "'");
   }
+
+  /**
+   * Sends {@value #PIPELINED_COUNT} numbered messages with up to
+   * {@value #PIPELINED_WINDOW} outstanding, then reports how many came back.
+   *
+   * @throws IOException if the client socket cannot be opened
+   * @throws InterruptedException if the thread is interrupted while sending
+   */
+  static void runPipelined() throws IOException, InterruptedException {
+
+    try (Step4_UDP_Pipelined_Client client =
+             Step4_UDP_Pipelined_Client.toLocalServer(TARGET_PORT, PIPELINED_WINDOW)) {
+
+      long start = System.nanoTime();
+      CompletableFuture<?>[] replies = new CompletableFuture<?>[PIPELINED_COUNT];
+      for (int i = 0; i < PIPELINED_COUNT; i++) {
+        String message = MESSAGE + " #" + i;
+        replies[i] = client.send(message).thenAccept(echo -> {
+          if (!echo.equals(message)) {
+            System.out.println("MISMATCH: sent '" + message + "' received '" + echo + "'");
+          }
+        });
+      }
+
+      // Wait for every request to be answered or to fail after its retransmits
+      long failed = 0;
+      for (CompletableFuture<?> reply : replies) {
+        try {
+          reply.get();
+        } catch (ExecutionException e) {
+          failed++;
+        }
+      }
+      long micros = (System.nanoTime() - start) / 1000;
+      System.out.println("ECHOED: " + (PIPELINED_COUNT - failed) + "/" + PIPELINED_COUNT
+          + " in " + micros + " us");
+      System.out.print(Step4_Metrics.snapshot());
+    }
+  }
+
+  /**
+   * Sends one message of {@code size} bytes as framed, checksummed fragments and
+   * checks that the reassembled echo matches it exactly.
+   *
+   * @param size message size in bytes
+   * @throws IOException if the socket fails
+   */
+  static void runFramed(int size) throws IOException {
+
+    // Multi-byte UTF-8 characters would have been cut short by the old character-count bug
+    byte[] pattern = "Grüße aus Aarhus, 世界! ".getBytes(StandardCharsets.UTF_8);
+    byte[] message = new byte[size];
+    for (int i = 0; i < size; i++) {
+      message[i] = pattern[i % pattern.length];
+    }
+
+    SocketAddress server = new InetSocketAddress("localhost", TARGET_PORT);
+    Step4_BufferPool pool = new Step4_BufferPool(2, Step4_Echo_Frame.DEFAULT_MTU, true);
+    Step4_Echo_Frame.Reassembler reassembler =
+        new Step4_Echo_Frame.Reassembler(16, FRAMED_TIMEOUT_MS);
+
+    try (DatagramChannel channel = DatagramChannel.open();
+         Selector selector = Selector.open()) {
+      channel.connect(server);
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+
+      int frames = Step4_Echo_Frame.encode(Step4_Echo_Frame.TYPE_REQUEST, 1, ByteBuffer.wrap(message),
+          Step4_Echo_Frame.DEFAULT_MTU, true, pool, channel::write);
+      System.out.println("SENT: " + size + " bytes in " + frames + " frames");
+
+      byte[] echoed = null;
+      ByteBuffer frame = pool.acquire();
+      long deadline = System.currentTimeMillis() + FRAMED_TIMEOUT_MS;
+      while (echoed == null) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          break;
+        }
+        selector.select(wait);
+        selector.selectedKeys().clear();
+
+        while (echoed == null && channel.receive(frame.clear()) != null) {
+          frame.flip();
+          try {
+            Step4_Echo_Frame.decode(frame);
+          } catch (ProtocolException e) {
+            System.out.println("BAD FRAME: " + e.getMessage());
+            continue;
+          }
+          if (Step4_Echo_Frame.type(frame) != Step4_Echo_Frame.TYPE_REPLY) {
+            continue;
+          }
+          ByteBuffer complete = reassembler.accept(server, frame);
+          if (complete != null) {
+            echoed = new byte[complete.remaining()];
+            complete.get(echoed);
+          }
+        }
+      }
+      pool.release(frame);
+
+      if (echoed == null) {
+        System.out.println("NO COMPLETE ECHO within " + FRAMED_TIMEOUT_MS + " ms");
+      } else {
+        System.out.println("RECEIVED: " + echoed.length + " bytes, identical: "
+            + Arrays.equals(message, echoed));
+      }
+    }
+  }
+
+  /**
+   * Negotiates compression and packing with the server, sends {@code count}
+   * small quote-like messages using whatever was agreed, and reports what went
+   * on the wire compared with one datagram per message.
+   *
+   * @param count number of messages to send
+   * @throws IOException if the socket fails
+   */
+  static void runCompressed(int count) throws IOException {
+
+    int mtu = Step2_Batched_UDP.MAX_MESSAGE;
+    try (DatagramChannel channel = DatagramChannel.open();
+         Selector selector = Selector.open()) {
+      channel.connect(new InetSocketAddress("localhost", TARGET_PORT));
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ);
+
+      ByteBuffer in = ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+      int capabilities = negotiate(channel, selector, in);
+      System.out.println("NEGOTIATED:"
+          + ((capabilities & Step4_Compression.PACKED) != 0 ? " packing" : "")
+          + ((capabilities & Step4_Compression.DEFLATE) != 0 ? " deflate" : "")
+          + (capabilities == 0 ? " nothing, one plain datagram per message" : ""));
+
+      try (Step4_Compression.Codec codec = new Step4_Compression.Codec(
+          capabilities, Step4_Compression.DEFAULT_THRESHOLD, mtu, Deflater.BEST_SPEED)) {
+        ByteBuffer out = ByteBuffer.allocateDirect(mtu);
+        ByteBuffer message = ByteBuffer.allocate(mtu);
+        long datagrams = 0;
+        long echoed = 0;
+
+        for (int i = 0; i < count; i++) {
+          message.clear()
+              .put(("QUOTE EURUSD seq=" + i + " bid=1.0842 ask=1.0844").getBytes(StandardCharsets.US_ASCII))
+              .flip();
+          if (!codec.add(message)) {
+            send(channel, codec.flush(out));
+            datagrams++;
+            codec.add(message);
+          }
+          echoed += receiveEchoes(channel, codec, in);
+        }
+        if (codec.flush(out).hasRemaining()) {
+          send(channel, out);
+          datagrams++;
+        }
+
+        long deadline = System.currentTimeMillis() + COMPRESSED_TIMEOUT_MS;
+        while (echoed < count) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          selector.select(wait);
+          selector.selectedKeys().clear();
+          echoed += receiveEchoes(channel, codec, in);
+        }
+
+        long raw = codec.rawBytes();
+        System.out.printf("SENT: %d messages, %d payload bytes%n", count, raw);
+        System.out.printf("ON THE WIRE: %d datagrams, %d bytes with IP/UDP headers"
+                + " (one datagram per message: %d datagrams, %d bytes)%n",
+            datagrams, codec.wireBytes() + IP_UDP_HEADERS * datagrams,
+            count, raw + (long) IP_UDP_HEADERS * count);
+        System.out.println("ECHOED: " + echoed + "/" + count + " messages");
+      }
+    }
+  }
+
+  /**
+   * Offers every {@link Step4_Compression} capability and returns the ones the
+   * server accepts: none if it echoes the HELLO back unchanged or never answers.
+   */
+  private static int negotiate(DatagramChannel channel, Selector selector, ByteBuffer in)
+      throws IOException {
+    ByteBuffer hello = Step4_Compression.control(
+        ByteBuffer.allocate(2), Step4_Compression.HELLO, Step4_Compression.ALL);
+    for (int attempt = 0; attempt < 3; attempt++) {
+      send(channel, hello.rewind());
+      if (selector.select(COMPRESSED_TIMEOUT_MS) == 0) {
+        continue;
+      }
+      selector.selectedKeys().clear();
+      while (channel.receive(in.clear()) != null) {
+        in.flip();
+        if (in.hasRemaining() && Step4_Compression.kind(in) == Step4_Compression.HELLO_ACK) {
+          return Step4_Compression.capabilities(in);
+        }
+        if (in.hasRemaining() && Step4_Compression.kind(in) == Step4_Compression.HELLO) {
+          return 0;   // a plain echo server
+        }
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Decodes every echo already waiting on the channel.
+   *
+   * @return the number of messages they held
+   */
+  private static long receiveEchoes(DatagramChannel channel, Step4_Compression.Codec codec,
+                                    ByteBuffer in) throws IOException {
+    long messages = 0;
+    while (channel.receive(in.clear()) != null) {
+      in.flip();
+      try {
+        messages += codec.decode(in, message -> { });
+      } catch (ProtocolException e) {
+        System.out.println("BAD ECHO: " + e.getMessage());
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * Writes one datagram, treating an unreachable server as a lost datagram.
+   */
+  private static void send(DatagramChannel channel, ByteBuffer datagram) throws IOException {
+    try {
+      channel.write(datagram);
+    } catch (PortUnreachableException e) {
+      // nothing listening; the echo will simply not arrive
+    }
+  }
 }
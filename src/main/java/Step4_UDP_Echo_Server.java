@@ -2,6 +2,17 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 /**
  * Step 4: UDP Echo Server
@@ -33,7 +44,74 @@ import java.net.InetAddress;
  *   <li>Observe the message being echoed back to the client</li>
  * </ol>
  *
- * <h2>Limitations:</h2>
+ * <h2>Continuous Mode:</h2>
+ * <p>Started with the argument {@code loop}, the server runs {@link #serve(int)}
+ * instead: a single non-blocking {@link DatagramChannel} registered with a
+ * {@link Selector}. Every datagram is echoed straight back to the address and
+ * port it came from, using one direct {@link ByteBuffer} that is reused for
+ * every packet. No new socket or packet object is created per reply, so one
+ * server process can keep up with many concurrent clients.</p>
+ *
+ * <h2>Multi-Core Mode:</h2>
+ * <p>Started with {@code multicore [workers]}, the server runs one worker per core
+ * on the same port using {@link Step4_UDP_Multicore_Server}, and prints each
+ * worker's counters every few seconds.</p>
+ *
+ * <h2>Metrics:</h2>
+ * <p>The continuous modes record packets, bytes and drops in {@link Step4_Metrics}.
+ * Start the server with {@code -Dmetrics.port=9100} or {@code -Dmetrics.file=...}
+ * to watch them while it runs. {@code -Dudp.rcvbuf} and {@code -Dudp.sndbuf} size
+ * the socket buffers in every single-socket continuous mode.</p>
+ *
+ * <h2>Admission Mode:</h2>
+ * <p>Started with {@code admission [rate] [burst] [workMicros]}, the server receives
+ * through {@link Step4_Admission_Control}: each source host may send {@code rate}
+ * datagrams per second (bursts of {@code burst}), accepted datagrams wait in a
+ * bounded queue for one worker per core, and each worker spends {@code workMicros}
+ * on a datagram before echoing it, to stand in for real processing. Everything
+ * shed is counted, and a summary is printed every few seconds.</p>
+ *
+ * <h2>Sessions Mode:</h2>
+ * <p>Started with {@code sessions [maxSessions] [rate] [burst]}, the server keeps
+ * per-client state (address and port) in a {@link Step4_Session_Table} outside the
+ * Java heap: when each client was last heard from, how many datagrams it sent, and
+ * a rate limit of {@code rate} datagrams per second. Clients silent for 30 s are
+ * forgotten. A report thread reads the table while the server writes it.
+ * Each echo carries four more bytes: the session's reply number (big-endian,
+ * from 1), so a client can count the replies it lost or was refused. Datagrams
+ * longer than {@value #MAX_DATAGRAM} - 4 bytes leave no room for it, so they are
+ * counted in {@code echo_server_oversized} and not echoed.</p>
+ *
+ * <h2>Framed Mode:</h2>
+ * <p>Started with {@code framed}, the server only accepts datagrams in the
+ * {@link Step4_Echo_Frame} binary format, checks their header and checksum, and
+ * echoes each fragment back as a reply frame.</p>
+ *
+ * <h2>Compressed Mode:</h2>
+ * <p>Started with {@code compressed}, the server answers a {@link Step4_Compression}
+ * HELLO with the capabilities it supports, checks that every other datagram
+ * decodes, and echoes it back unchanged, still packed and compressed.</p>
+ *
+ * <h2>Batched Mode:</h2>
+ * <p>Started with {@code batched [batchSize]}, the server takes up to a batch of
+ * ready datagrams per wake-up with {@link Step2_Batched_UDP.Receiver} and sends
+ * the echoes back as one batch with {@link Step2_Batched_UDP.Sender}. Datagrams
+ * longer than {@value Step2_Batched_UDP#MAX_MESSAGE} bytes do not fit a batch
+ * slot; they are counted in {@code echo_server_oversized} and not echoed.</p>
+ *
+ * <h2>Capture:</h2>
+ * <p>Started with {@code -Dcapture.file=PATH}, the {@code loop}, {@code framed},
+ * {@code compressed} and {@code admission} modes record every datagram they receive
+ * and send; {@link Step4_Packet_Capture} replays the recording against a server.</p>
+ *
+ * <h2>Self-Test Mode:</h2>
+ * <p>Started with {@code selftest}, the server runs {@link #serve(int)} on a
+ * background thread, sends it {@link Step4_UDP_Echo_Client}'s pipelined workload,
+ * and exits. This loads and exercises the same classes as a real run, which makes
+ * it the training run for the class-data-sharing archive and AOT cache built by
+ * the {@code cds} and {@code aot} Maven profiles (see the README).</p>
+ *
+ * <h2>Limitations (single-shot mode):</h2>
  * <ul>
  *   <li>Only handles one message then exits (not a continuous server)</li>
  *   <li>Assumes client is on localhost</li>
@@ -42,19 +120,148 @@ import java.net.InetAddress;
  *
  * @see Step4_UDP_Echo_Client
  * @see Step4_UDP_Receiver
+ * @see Step4_UDP_Multicore_Server
+ * @see Step2_Batched_UDP
+ * @see Step4_Echo_Frame
+ * @see Step4_Compression
+ * @see Step4_Admission_Control
+ * @see Step4_Packet_Capture
+ * @see Step4_Session_Table
  * @see Step4_PortsUsed
  */
 public class Step4_UDP_Echo_Server {
 
+    /** Largest possible UDP payload (65535 - 8 byte UDP header - 20 byte IPv4 header) */
+    static final int MAX_DATAGRAM = 65507;
+
+    /** How often multi-core mode prints its counters, in milliseconds */
+    private static final long REPORT_INTERVAL_MS = 5000;
+
+    /** Admission mode defaults: datagrams per second per source host, and burst size */
+    private static final double ADMISSION_RATE = 5000;
+    private static final int ADMISSION_BURST = 500;
+
+    /** Sessions mode defaults: most clients tracked, and how long a silent one is kept */
+    private static final int SESSIONS_MAX = 1_000_000;
+    private static final long SESSION_IDLE_MS = 30_000;
+
+    /** Slots the sessions mode checks for expiry per wake-up */
+    private static final int SESSION_SWEEP_BUDGET = 4096;
+
+    /** Longest the sessions mode blocks, so idle sessions expire even without traffic */
+    private static final long SESSION_SWEEP_MS = 100;
+
+    /** Bytes the sessions mode appends to each echo: the session's reply number */
+    private static final int SESSION_SEQUENCE_BYTES = Integer.BYTES;
+
+    private static final Step4_Metrics.Counter PACKETS_IN = Step4_Metrics.counter("echo_server_packets_in");
+    private static final Step4_Metrics.Counter BYTES_IN = Step4_Metrics.counter("echo_server_bytes_in");
+    private static final Step4_Metrics.Counter PACKETS_OUT = Step4_Metrics.counter("echo_server_packets_out");
+    private static final Step4_Metrics.Counter BYTES_OUT = Step4_Metrics.counter("echo_server_bytes_out");
+
+    /** Replies the socket had no room for */
+    private static final Step4_Metrics.Counter DROPS = Step4_Metrics.counter("echo_server_drops");
+
+    /** Datagrams too long for the mode's buffers, dropped rather than echoed cut short */
+    private static final Step4_Metrics.Counter OVERSIZED = Step4_Metrics.counter("echo_server_oversized");
+
+    /** Datagrams rejected by the decoder in framed and compressed modes */
+    private static final Step4_Metrics.Counter BAD_FRAMES = Step4_Metrics.counter("echo_server_bad_frames");
+
+    /** Sessions mode: datagrams dropped because the table was full, or over the session's rate */
+    private static final Step4_Metrics.Counter SESSIONS_FULL = Step4_Metrics.counter("echo_server_sessions_full");
+    private static final Step4_Metrics.Counter SESSIONS_SHED = Step4_Metrics.counter("echo_server_sessions_shed");
+    private static final Step4_Metrics.Counter SESSIONS_EXPIRED = Step4_Metrics.counter("echo_server_sessions_expired");
+
+    /** Records traffic when started with {@code -Dcapture.file}; null otherwise */
+    private static final Step4_Packet_Capture.Recorder CAPTURE = Step4_Packet_Capture.recorder();
+
     /**
      * Main entry point for the UDP Echo Server.
      *
      * Waits for a message on SERVER_PORT and echoes it back to CLIENT_PORT.
+     * With the argument {@code loop} it runs the continuous event loop instead,
+     * with {@code multicore [workers]} it runs one worker per core, and with
+     * {@code batched [batchSize]} it receives and echoes in batches. With
+     * {@code framed} it echoes {@link Step4_Echo_Frame} frames, with {@code compressed}
+     * it echoes {@link Step4_Compression} datagrams, with {@code admission ...} it sheds
+     * excess load through {@link Step4_Admission_Control}, with {@code sessions ...} it
+     * tracks every client in a {@link Step4_Session_Table}, and with {@code selftest} it
+     * serves one pipelined client run and exits.
      *
-     * @param args command line arguments (not used)
+     * @param args {@code loop}, {@code multicore [workers]}, {@code batched [batchSize]},
+     *             {@code framed}, {@code compressed}, {@code admission [rate] [burst] [workMicros]}
+     *             or {@code sessions [maxSessions] [rate] [burst]}
+     *             to run continuously, {@code selftest} for a
+     *             training run, otherwise handle one message
      * @throws IOException if an I/O error occurs during sending or receiving
+     * @throws InterruptedException if interrupted while running in multi-core mode
      */
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        Step4_Metrics.exportFromProperties();
+
+        if (args.length > 0 && args[0].equals("loop")) {
+            serve(Step4_PortsUsed.SERVER_PORT);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("multicore")) {
+            int workers = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+            serveMulticore(Step4_PortsUsed.SERVER_PORT, workers);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("framed")) {
+            serveFramed(Step4_PortsUsed.SERVER_PORT);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("compressed")) {
+            serveCompressed(Step4_PortsUsed.SERVER_PORT);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("admission")) {
+            double rate = args.length > 1 ? Double.parseDouble(args[1]) : ADMISSION_RATE;
+            int burst = args.length > 2 ? Integer.parseInt(args[2]) : ADMISSION_BURST;
+            long workMicros = args.length > 3 ? Long.parseLong(args[3]) : 0;
+            serveAdmission(Step4_PortsUsed.SERVER_PORT, rate, burst, workMicros);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("sessions")) {
+            int maxSessions = args.length > 1 ? Integer.parseInt(args[1]) : SESSIONS_MAX;
+            double rate = args.length > 2 ? Double.parseDouble(args[2]) : ADMISSION_RATE;
+            int burst = args.length > 3 ? Integer.parseInt(args[3]) : ADMISSION_BURST;
+            serveSessions(Step4_PortsUsed.SERVER_PORT, maxSessions, rate, burst);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("batched")) {
+            int batchSize = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Step2_Batched_UDP.DEFAULT_BATCH;
+            serveBatched(Step4_PortsUsed.SERVER_PORT, batchSize);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("selftest")) {
+            Thread server = new Thread(() -> {
+                try {
+                    serve(Step4_PortsUsed.SERVER_PORT);
+                } catch (IOException e) {
+                    System.out.println("SELFTEST server failed: " + e);
+                }
+            }, "selftest-server");
+            server.setDaemon(true);
+            server.start();
+            // The client retransmits, so requests sent before the server binds are not lost
+            Step4_UDP_Echo_Client.runPipelined();
+            return;
+        }
 
         // Create a receiver to listen on the server port
         Step4_UDP_Receiver receiver = new Step4_UDP_Receiver(Step4_PortsUsed.SERVER_PORT);
@@ -63,10 +270,11 @@ public class Step4_UDP_Echo_Server {
         String sentence = receiver.receive();
 
         // Create a response packet with the same content (echo)
-        // Note: sentence.length() gives character count, which may differ from byte count
-        // for non-ASCII characters, but works for this training example
+        // The length must be the number of bytes, not sentence.length() (the number of
+        // characters), or any non-ASCII message would be cut short
+        byte[] reply = sentence.getBytes(StandardCharsets.UTF_8);
         DatagramPacket packet = new DatagramPacket(
-            sentence.getBytes(), sentence.length(),
+            reply, reply.length,
             InetAddress.getLocalHost(), Step4_PortsUsed.CLIENT_PORT
         );
 
@@ -74,4 +282,449 @@ public class Step4_UDP_Echo_Server {
         DatagramSocket datagramSocket = new DatagramSocket();
         datagramSocket.send(packet);
     }
+
+    /**
+     * Runs the echo server until the thread is interrupted.
+     *
+     * <p>The channel is non-blocking, so once the selector reports it readable the
+     * loop drains every datagram already queued in the socket buffer before going
+     * back to {@code select()}. Each datagram is sent back to the source address
+     * returned by {@code receive()}. If the socket send buffer is full the reply is
+     * dropped, just as the network itself may drop it.</p>
+     *
+     * @param port the UDP port to listen on
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    static void serve(int port) throws IOException {
+
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open()) {
+
+            Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            // One direct buffer for the lifetime of the server: the kernel copies
+            // straight into it, and it is reused for every receive and reply
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+            System.out.println("ECHO SERVER listening on " + channel.getLocalAddress());
+
+            while (!Thread.currentThread().isInterrupted()) {
+                if (selector.select() == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+
+                // Drain everything that is ready, then wait again
+                SocketAddress source;
+                while ((source = channel.receive(buffer.clear())) != null) {
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    PACKETS_IN.increment();
+                    BYTES_IN.add(length);
+                    if (CAPTURE != null) {
+                        CAPTURE.received(buffer, source);
+                    }
+                    if (channel.send(buffer, source) == 0) {
+                        DROPS.increment();
+                    } else {
+                        PACKETS_OUT.increment();
+                        BYTES_OUT.add(length);
+                        if (CAPTURE != null) {
+                            CAPTURE.sent(buffer.rewind(), source);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the framed echo server until the thread is interrupted.
+     *
+     * <p>Every datagram must be a valid {@link Step4_Echo_Frame}. Request frames
+     * are turned into reply frames in place and sent back to their source, one
+     * fragment at a time, so the server never needs to reassemble a message.
+     * Invalid frames are counted and dropped.</p>
+     *
+     * @param port the UDP port to listen on
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    static void serveFramed(int port) throws IOException {
+
+        Step4_BufferPool pool = new Step4_BufferPool(1, MAX_DATAGRAM, true);
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+            channel.bind(new InetSocketAddress(port));
+            System.out.println("FRAMED ECHO SERVER listening on " + channel.getLocalAddress());
+
+            ByteBuffer frame = pool.acquire();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    SocketAddress source = channel.receive(frame.clear());
+                    frame.flip();
+                    int length = frame.limit();
+                    PACKETS_IN.increment();
+                    BYTES_IN.add(length);
+                    if (CAPTURE != null) {
+                        CAPTURE.received(frame, source);
+                    }
+
+                    try {
+                        Step4_Echo_Frame.decode(frame);
+                    } catch (ProtocolException e) {
+                        BAD_FRAMES.increment();
+                        continue;
+                    }
+                    if (Step4_Echo_Frame.type(frame) != Step4_Echo_Frame.TYPE_REQUEST) {
+                        continue;
+                    }
+
+                    // Send the whole frame back, header included, marked as a reply
+                    frame.limit(length).position(0);
+                    Step4_Echo_Frame.retype(frame, Step4_Echo_Frame.TYPE_REPLY);
+                    channel.send(frame, source);
+                    PACKETS_OUT.increment();
+                    BYTES_OUT.add(length);
+                    if (CAPTURE != null) {
+                        CAPTURE.sent(frame.rewind(), source);
+                    }
+                }
+            } finally {
+                pool.release(frame);
+            }
+        }
+    }
+
+    /**
+     * Runs the compressed echo server until the thread is interrupted.
+     *
+     * <p>A HELLO is answered with a HELLO_ACK carrying the capabilities both
+     * sides support. Any other datagram is decoded to check it, then sent back
+     * exactly as it arrived; the server never compresses anything itself.
+     * Datagrams that do not decode are counted and dropped.</p>
+     *
+     * @param port the UDP port to listen on
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    static void serveCompressed(int port) throws IOException {
+
+        try (DatagramChannel channel = DatagramChannel.open();
+             Step4_Compression.Codec codec = new Step4_Compression.Codec(
+                 Step4_Compression.ALL, Step4_Compression.DEFAULT_THRESHOLD,
+                 Step2_Batched_UDP.MAX_MESSAGE, Deflater.DEFAULT_COMPRESSION)) {
+
+            Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+            channel.bind(new InetSocketAddress(port));
+            System.out.println("COMPRESSED ECHO SERVER listening on " + channel.getLocalAddress());
+
+            ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            ByteBuffer reply = ByteBuffer.allocateDirect(2);
+            while (!Thread.currentThread().isInterrupted()) {
+                SocketAddress source = channel.receive(datagram.clear());
+                datagram.flip();
+                int length = datagram.limit();
+                PACKETS_IN.increment();
+                BYTES_IN.add(length);
+                if (CAPTURE != null) {
+                    CAPTURE.received(datagram, source);
+                }
+
+                try {
+                    if (length > 0 && Step4_Compression.kind(datagram) == Step4_Compression.HELLO) {
+                        int accepted = Step4_Compression.capabilities(datagram);
+                        channel.send(Step4_Compression.control(reply, Step4_Compression.HELLO_ACK, accepted),
+                            source);
+                        PACKETS_OUT.increment();
+                        BYTES_OUT.add(reply.limit());
+                        if (CAPTURE != null) {
+                            CAPTURE.sent(reply.rewind(), source);
+                        }
+                        continue;
+                    }
+                    codec.decode(datagram, message -> { });
+                } catch (ProtocolException e) {
+                    BAD_FRAMES.increment();
+                    continue;
+                }
+
+                channel.send(datagram.rewind(), source);
+                PACKETS_OUT.increment();
+                BYTES_OUT.add(length);
+                if (CAPTURE != null) {
+                    CAPTURE.sent(datagram.rewind(), source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the batched echo server until the thread is interrupted.
+     *
+     * <p>Each wake-up receives every ready datagram (up to {@code batchSize}),
+     * queues the echoes, and flushes them together before waiting again, so a
+     * reply is never held back waiting for the flush deadline.</p>
+     *
+     * @param port the UDP port to listen on
+     * @param batchSize the most datagrams received and sent per batch
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    static void serveBatched(int port, int batchSize) throws IOException {
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+            channel.bind(new InetSocketAddress(port));
+
+            try (Step2_Batched_UDP.Receiver receiver = new Step2_Batched_UDP.Receiver(channel, batchSize);
+                 Step2_Batched_UDP.Sender sender = new Step2_Batched_UDP.Sender(
+                     channel, batchSize, Step2_Batched_UDP.DEFAULT_DEADLINE_MICROS)) {
+
+                System.out.println("ECHO SERVER listening on " + channel.getLocalAddress()
+                    + " in batches of " + batchSize);
+
+                // The sender keeps its own totals; the increase is published after every batch
+                long packetsSeen = 0;
+                long bytesSeen = 0;
+                long dropsSeen = 0;
+                long oversizedSeen = 0;
+
+                while (!Thread.currentThread().isInterrupted()) {
+                    receiver.receiveBatch((data, source) -> {
+                        PACKETS_IN.increment();
+                        BYTES_IN.add(data.remaining());
+                        sender.queue(data, source);
+                    });
+                    sender.flush();
+
+                    PACKETS_OUT.add(sender.datagramsSent() - packetsSeen);
+                    BYTES_OUT.add(sender.bytesSent() - bytesSeen);
+                    DROPS.add(sender.datagramsDropped() - dropsSeen);
+                    packetsSeen = sender.datagramsSent();
+                    bytesSeen = sender.bytesSent();
+                    dropsSeen = sender.datagramsDropped();
+                    OVERSIZED.add(receiver.datagramsOversized() - oversizedSeen);
+                    oversizedSeen = receiver.datagramsOversized();
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the multi-core workers' own counters as {@link Step4_Metrics} gauges,
+     * summed over all workers.
+     */
+    private static void publish(Step4_UDP_Multicore_Server.Counters[] counters) {
+        Step4_Metrics.gauge("echo_server_multicore_packets", () -> {
+            long sum = 0;
+            for (Step4_UDP_Multicore_Server.Counters c : counters) {
+                sum += c.packets();
+            }
+            return sum;
+        });
+        Step4_Metrics.gauge("echo_server_multicore_bytes", () -> {
+            long sum = 0;
+            for (Step4_UDP_Multicore_Server.Counters c : counters) {
+                sum += c.bytes();
+            }
+            return sum;
+        });
+        Step4_Metrics.gauge("echo_server_multicore_drops", () -> {
+            long sum = 0;
+            for (Step4_UDP_Multicore_Server.Counters c : counters) {
+                sum += c.dropped() + c.shed();
+            }
+            return sum;
+        });
+    }
+
+    /**
+     * Runs the multi-core server until the thread is interrupted, printing each
+     * worker's counters every {@value #REPORT_INTERVAL_MS} ms.
+     *
+     * @param port the UDP port to listen on
+     * @param workers the number of worker threads
+     * @throws IOException if the port cannot be bound
+     * @throws InterruptedException if the thread is interrupted
+     */
+    static void serveMulticore(int port, int workers) throws IOException, InterruptedException {
+
+        try (Step4_UDP_Multicore_Server server = new Step4_UDP_Multicore_Server(port, workers)) {
+            server.start();
+            publish(server.counters());
+            System.out.println("ECHO SERVER listening on port " + port + " with " + workers
+                + " workers (" + (server.usesReusePort() ? "SO_REUSEPORT" : "hand-off") + ")");
+
+            while (true) {
+                Thread.sleep(REPORT_INTERVAL_MS);
+                Step4_UDP_Multicore_Server.Counters[] counters = server.counters();
+                for (int i = 0; i < counters.length; i++) {
+                    System.out.println("  worker " + i + ": " + counters[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the echo server behind {@link Step4_Admission_Control} until the thread
+     * is interrupted.
+     *
+     * <p>The calling thread only receives and admits; one worker per core does the
+     * (simulated) work and sends the echo from the server's socket.</p>
+     *
+     * @param port the UDP port to listen on
+     * @param rate datagrams per second allowed from each source host
+     * @param burst datagrams a source may send at once
+     * @param workMicros time each worker spends on a datagram before echoing it
+     * @throws IOException if the port cannot be bound
+     */
+    static void serveAdmission(int port, double rate, int burst, long workMicros) throws IOException {
+
+        Step4_UDP_Receiver receiver = new Step4_UDP_Receiver(port,
+            new Step4_BufferPool(1, MAX_DATAGRAM, true));
+        long workNanos = workMicros * 1000;
+        int workers = Runtime.getRuntime().availableProcessors();
+
+        try (Step4_Admission_Control admission = new Step4_Admission_Control(
+                rate, burst, Step4_Admission_Control.DEFAULT_QUEUE, workers,
+                Step4_Admission_Control.DEFAULT_MAX_SOURCES, (data, source) -> {
+                    // Busy-wait to stand in for real work: sleeping would free the core
+                    long until = System.nanoTime() + workNanos;
+                    while (System.nanoTime() - until < 0) {
+                        Thread.onSpinWait();
+                    }
+                    int length = data.remaining();
+                    if (receiver.send(data, source)) {
+                        PACKETS_OUT.increment();
+                        BYTES_OUT.add(length);
+                    } else {
+                        DROPS.increment();
+                    }
+                })) {
+
+            System.out.println("ADMISSION ECHO SERVER on port " + port + ": " + rate
+                + " datagrams/s per host, bursts of " + burst + ", " + workers + " workers, "
+                + receiver.socketBufferSizes());
+
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(REPORT_INTERVAL_MS);
+                        for (String line : Step4_Metrics.snapshot().split("\n")) {
+                            if (line.startsWith("admission_") || line.startsWith("udp_")) {
+                                System.out.println("  " + line);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // server stopping
+                }
+            }, "admission-report");
+            reporter.setDaemon(true);
+            reporter.start();
+
+            admission.run(receiver);
+        } finally {
+            receiver.close();
+        }
+    }
+
+    /**
+     * Runs the echo server with per-client sessions until the thread is interrupted.
+     *
+     * <p>Like {@link #serve(int)}, but each datagram first finds or creates its
+     * sender's session. Datagrams are dropped if the table is full or the session
+     * is over its rate; the others are echoed with the session's next sequence
+     * number appended. After each wake-up a slice of the table is checked for
+     * idle sessions, so expiry never stops the server for long.</p>
+     *
+     * @param port the UDP port to listen on
+     * @param maxSessions most clients tracked at once
+     * @param rate datagrams per second allowed from each client
+     * @param burst datagrams a client may send at once
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    static void serveSessions(int port, int maxSessions, double rate, int burst) throws IOException {
+
+        Step4_Session_Table sessions = new Step4_Session_Table(maxSessions, rate, burst);
+        Step4_Metrics.gauge("echo_server_sessions", sessions::size);
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(SESSION_IDLE_MS);
+
+        // Written by the server once per wake-up, read by the report thread
+        AtomicReference<InetSocketAddress> latest = new AtomicReference<>();
+
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open()) {
+
+            Step4_UDP_Receiver.socketBuffers(channel, Step4_UDP_Receiver.RCVBUF, Step4_UDP_Receiver.SNDBUF);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+            System.out.println("SESSION ECHO SERVER on port " + port + ": up to " + maxSessions
+                + " sessions in " + (sessions.memoryBytes() >> 10) + " KB off-heap, " + rate
+                + " datagrams/s per session, bursts of " + burst);
+
+            Thread reporter = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(REPORT_INTERVAL_MS);
+                        InetSocketAddress client = latest.get();
+                        System.out.println("  sessions " + sessions.size() + ", expired " + SESSIONS_EXPIRED.get()
+                            + ", shed " + SESSIONS_SHED.get() + ", table full " + SESSIONS_FULL.get()
+                            + (client == null ? "" : "; latest " + sessions.get(client)));
+                    }
+                } catch (InterruptedException e) {
+                    // server stopping
+                }
+            }, "sessions-report");
+            reporter.setDaemon(true);
+            reporter.start();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(SESSION_SWEEP_MS);
+                selector.selectedKeys().clear();
+
+                SocketAddress source;
+                SocketAddress last = null;
+                while ((source = channel.receive(buffer.clear())) != null) {
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    PACKETS_IN.increment();
+                    BYTES_IN.add(length);
+                    last = source;
+                    // No room after the payload for the sequence number
+                    if (length > MAX_DATAGRAM - SESSION_SEQUENCE_BYTES) {
+                        OVERSIZED.increment();
+                        continue;
+                    }
+
+                    long now = System.nanoTime();
+                    int slot = sessions.touch((InetSocketAddress) source, now);
+                    if (slot < 0) {
+                        SESSIONS_FULL.increment();
+                        continue;
+                    }
+                    if (!sessions.admit(slot, now)) {
+                        SESSIONS_SHED.increment();
+                        continue;
+                    }
+                    buffer.limit(length + SESSION_SEQUENCE_BYTES).putInt(length, sessions.nextSequence(slot));
+                    if (channel.send(buffer, source) == 0) {
+                        DROPS.increment();
+                    } else {
+                        PACKETS_OUT.increment();
+                        BYTES_OUT.add(length + SESSION_SEQUENCE_BYTES);
+                    }
+                }
+                if (last != null) {
+                    latest.set((InetSocketAddress) last);
+                }
+                SESSIONS_EXPIRED.add(sessions.expire(System.nanoTime(), idleNanos, SESSION_SWEEP_BUDGET));
+            }
+        }
+    }
 }
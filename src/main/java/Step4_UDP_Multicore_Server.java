@@ -0,0 +1,417 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Step 4: Multi-Core UDP Echo Server
+ *
+ * This class runs the echo server on several threads at once, one per CPU core,
+ * all serving the same port. A single receiving thread can only use one core;
+ * spreading the work lets throughput grow with the number of cores.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>SO_REUSEPORT</b> - Lets several sockets bind the same port; the kernel spreads
+ *       incoming datagrams across them by hashing the sender's address and port</li>
+ *   <li><b>Worker Threads</b> - Each worker owns its socket and buffer, so workers never contend</li>
+ *   <li><b>Lock-Free Hand-Off</b> - Without SO_REUSEPORT, one thread receives and passes
+ *       packets to workers through lock-free queues</li>
+ *   <li><b>Per-Worker Counters</b> - Each worker counts only its own traffic, on cache lines no
+ *       other thread writes, so counting does not slow the other cores down (false sharing)</li>
+ *   <li><b>Bounded Hand-Off</b> - Each worker's queue is a fixed ring of buffer and source slots,
+ *       and buffers come from a pool that grows only as far as the rings need, so nothing is
+ *       allocated per packet; when a ring is full the receiver sheds</li>
+ * </ul>
+ *
+ * <h2>Modes:</h2>
+ * <ul>
+ *   <li><b>Reuse-port</b> (Linux) - N sockets on the same port, one blocking worker each</li>
+ *   <li><b>Hand-off</b> (everywhere else) - one socket and receiver thread; each source address
+ *       always goes to the same worker so its replies stay in order. macOS and the BSDs accept
+ *       SO_REUSEPORT, but deliver every unicast datagram to one of the sockets, which would
+ *       leave the other workers idle</li>
+ * </ul>
+ *
+ * <h2>How to Run:</h2>
+ * <p>Start {@link Step4_UDP_Echo_Server} with {@code multicore [workers]}.</p>
+ *
+ * @see Step4_UDP_Echo_Server
+ */
+class Step4_UDP_Multicore_Server implements AutoCloseable {
+
+  /**
+   * Packets a hand-off worker may have queued before new ones are dropped (a power
+   * of two). Each holds a full-size datagram buffer, allocated the first time the
+   * queue gets that deep, so this also bounds memory: at most about 16 MB of direct
+   * buffers per worker, and only under sustained overload.
+   */
+  private static final int MAX_QUEUED = 256;
+
+  /** Longs between the starts of two workers' counters: 256 bytes */
+  private static final int STRIDE = 32;
+
+  /** Offset of the receiver-written shed count in a worker's block, two cache lines past the worker's */
+  private static final int SHED = 16;
+
+  private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  /**
+   * Traffic seen by one worker, stored in the server's shared counter array.
+   *
+   * <p>Counters that sit next to each other in memory share a cache line, and a
+   * write by one core takes the line away from every other core that uses it.
+   * Each worker's counts therefore get a block of {@value #STRIDE} longs to
+   * themselves, and the shed count, which the receiver writes, sits two cache
+   * lines away from the worker's. Every count has a single writer, which
+   * updates it with an opaque store: no fence, but readers on other threads
+   * still see the new value soon after.</p>
+   */
+  static final class Counters {
+    private final long[] cells;
+    private final int base;
+
+    Counters(long[] cells, int base) {
+      this.cells = cells;
+      this.base = base;
+    }
+
+    /** @return datagrams echoed (written by the worker) */
+    long packets() {
+      return (long) CELLS.getOpaque(cells, base);
+    }
+
+    /** @return payload bytes echoed (written by the worker) */
+    long bytes() {
+      return (long) CELLS.getOpaque(cells, base + 1);
+    }
+
+    /** @return replies that could not be sent (written by the worker) */
+    long dropped() {
+      return (long) CELLS.getOpaque(cells, base + 2);
+    }
+
+    /**
+     * @return datagrams discarded because the worker's queue or the buffer pool
+     *         was full (written by the receiver)
+     */
+    long shed() {
+      return (long) CELLS.getOpaque(cells, base + SHED);
+    }
+
+    void countEchoed(int bytes) {
+      add(0, 1);
+      add(1, bytes);
+    }
+
+    void countDropped() {
+      add(2, 1);
+    }
+
+    void countShed() {
+      add(SHED, 1);
+    }
+
+    /** Only the cell's single writer may call this, so the plain read is its own last write */
+    private void add(int offset, long delta) {
+      CELLS.setOpaque(cells, base + offset, cells[base + offset] + delta);
+    }
+
+    @Override
+    public String toString() {
+      return packets() + " packets, " + bytes() + " bytes, " + dropped() + " dropped, " + shed() + " shed";
+    }
+  }
+
+  /**
+   * One hand-off worker's queue: a ring with a single producer (the receiver) and
+   * a single consumer (the worker).
+   *
+   * <p>Datagrams are kept in two parallel arrays, so queueing one creates no
+   * object. The head and tail indexes sit on different cache lines, since each is
+   * written by a different thread.</p>
+   */
+  private static final class Ring {
+    private static final VarHandle INDEX = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** Index of the next slot to send; written by the worker */
+    private static final int HEAD = 8;
+
+    /** Index of the next slot to fill; written by the receiver */
+    private static final int TAIL = 24;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_QUEUED];
+    private final SocketAddress[] sources = new SocketAddress[MAX_QUEUED];
+    private final long[] indexes = new long[32];
+
+    /** Receiver: true if every slot holds a datagram the worker has not sent yet */
+    boolean isFull() {
+      return indexes[TAIL] - (long) INDEX.getAcquire(indexes, HEAD) == MAX_QUEUED;
+    }
+
+    /** Receiver: queues a datagram. Only call when {@link #isFull()} is false */
+    void offer(ByteBuffer data, SocketAddress source) {
+      long tail = indexes[TAIL];
+      int slot = (int) tail & (MAX_QUEUED - 1);
+      buffers[slot] = data;
+      sources[slot] = source;
+      INDEX.setRelease(indexes, TAIL, tail + 1);
+    }
+
+    /** Worker: the slot of the oldest queued datagram, or -1 if none is waiting */
+    int peek() {
+      long head = indexes[HEAD];
+      return head == (long) INDEX.getAcquire(indexes, TAIL) ? -1 : (int) head & (MAX_QUEUED - 1);
+    }
+
+    /** Worker: hands the slot from {@link #peek()} back to the receiver */
+    void remove(int slot) {
+      buffers[slot] = null;
+      sources[slot] = null;
+      INDEX.setRelease(indexes, HEAD, indexes[HEAD] + 1);
+    }
+  }
+
+  /** The port every worker serves */
+  private final int port;
+
+  /** Number of workers */
+  private final int workerCount;
+
+  /** One counter set per worker */
+  private final Counters[] counters;
+
+  /** Every socket opened, closed on shutdown */
+  private final List<DatagramChannel> channels = new ArrayList<>();
+
+  /** Every thread started */
+  private final List<Thread> threads = new ArrayList<>();
+
+  /** True if SO_REUSEPORT is used, false in hand-off mode */
+  private boolean reusePort;
+
+  /**
+   * Creates a server; call {@link #start()} to begin serving.
+   *
+   * @param port the UDP port to serve
+   * @param workers number of worker threads, usually the number of cores
+   */
+  Step4_UDP_Multicore_Server(int port, int workers) {
+    this.port = port;
+    this.workerCount = workers;
+    this.counters = new Counters[workers];
+    // One spare block in front and behind keeps other heap objects off the first and last worker's lines
+    long[] cells = new long[(workers + 2) * STRIDE];
+    for (int i = 0; i < workers; i++) {
+      counters[i] = new Counters(cells, (i + 1) * STRIDE);
+    }
+  }
+
+  /**
+   * Binds the socket(s) and starts the worker threads.
+   *
+   * @throws IOException if the port cannot be bound
+   */
+  synchronized void start() throws IOException {
+    // Only Linux spreads unicast datagrams across sockets sharing a port
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)
+          && System.getProperty("os.name").startsWith("Linux");
+    }
+    if (reusePort) {
+      startReusePort();
+    } else {
+      startHandoff();
+    }
+  }
+
+  /**
+   * @return true if workers have their own sockets, false in hand-off mode
+   */
+  boolean usesReusePort() {
+    return reusePort;
+  }
+
+  /**
+   * @return the live counters of each worker
+   */
+  Counters[] counters() {
+    return counters;
+  }
+
+  /**
+   * Closes every socket and waits for the threads to finish.
+   */
+  @Override
+  public synchronized void close() {
+    for (DatagramChannel channel : channels) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing useful to do if closing fails
+      }
+    }
+    for (Thread thread : threads) {
+      thread.interrupt();
+      LockSupport.unpark(thread);
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Reuse-port mode: every worker binds its own socket to the same port.
+   */
+  private void startReusePort() throws IOException {
+    for (int i = 0; i < workerCount; i++) {
+      DatagramChannel channel = DatagramChannel.open();
+      channels.add(channel);
+      channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      channel.bind(new InetSocketAddress(port));
+
+      Counters mine = counters[i];
+      start("echo-worker-" + i, () -> echoLoop(channel, mine));
+    }
+  }
+
+  /**
+   * Receives and echoes on one socket until it is closed.
+   */
+  private static void echoLoop(DatagramChannel channel, Counters counters) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+    try {
+      while (true) {
+        SocketAddress source = channel.receive(buffer.clear());
+        buffer.flip();
+        counters.countEchoed(buffer.remaining());
+        if (channel.send(buffer, source) == 0) {
+          counters.countDropped();
+        }
+      }
+    } catch (AsynchronousCloseException e) {
+      // close() was called
+    } catch (IOException e) {
+      System.out.println("ECHO WORKER failed: " + e);
+    }
+  }
+
+  /**
+   * Hand-off mode: one receiver thread, N workers fed through lock-free rings.
+   *
+   * <p>Buffers are allocated only when the pool is empty, never more than a
+   * ring's worth per worker. If direct memory runs out first, the pool stops
+   * growing at what it has. When no buffer is free or a worker's ring is full,
+   * the receiver reads the datagram into a scratch buffer and sheds it, so
+   * overload costs packets, never a crash.</p>
+   */
+  private void startHandoff() throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    channels.add(channel);
+    channel.bind(new InetSocketAddress(port));
+
+    Step4_BufferPool pool = new Step4_BufferPool(
+        workerCount * MAX_QUEUED + 1, Step4_UDP_Echo_Server.MAX_DATAGRAM, true);
+    Ring[] rings = new Ring[workerCount];
+    Thread[] workers = new Thread[workerCount];
+
+    for (int i = 0; i < workerCount; i++) {
+      Ring ring = new Ring();
+      Counters mine = counters[i];
+      rings[i] = ring;
+      workers[i] = start("echo-worker-" + i, () -> {
+        while (!Thread.currentThread().isInterrupted()) {
+          int slot = ring.peek();
+          if (slot < 0) {
+            // The receiver unparks us after every offer; a permit granted before
+            // this call makes park() return at once, so no wake-up is lost
+            LockSupport.park(this);
+            continue;
+          }
+          ByteBuffer data = ring.buffers[slot];
+          mine.countEchoed(data.remaining());
+          try {
+            if (channel.send(data, ring.sources[slot]) == 0) {
+              mine.countDropped();
+            }
+          } catch (IOException e) {
+            mine.countDropped();
+          } finally {
+            pool.release(data);
+            ring.remove(slot);
+          }
+        }
+      });
+    }
+
+    start("echo-receiver", () -> {
+      ByteBuffer scratch = ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+      int allocated = 0;
+      int allocationLimit = workerCount * MAX_QUEUED;
+      try {
+        while (true) {
+          ByteBuffer buffer = pool.poll();
+          if (buffer == null && allocated < allocationLimit) {
+            buffer = newBuffer();
+            if (buffer == null) {
+              allocationLimit = allocated;   // direct memory is full; make do with what exists
+            } else {
+              allocated++;
+            }
+          }
+          SocketAddress source = channel.receive(buffer != null ? buffer : scratch.clear());
+
+          // Same source, same worker: keeps each client's replies in order
+          int w = Math.floorMod(source.hashCode(), workerCount);
+          if (buffer == null || rings[w].isFull()) {
+            counters[w].countShed();
+            if (buffer != null) {
+              pool.release(buffer);
+            }
+            continue;
+          }
+          rings[w].offer(buffer.flip(), source);
+          LockSupport.unpark(workers[w]);
+        }
+      } catch (AsynchronousCloseException e) {
+        // close() was called
+      } catch (IOException e) {
+        System.out.println("ECHO RECEIVER failed: " + e);
+      }
+    });
+  }
+
+  /**
+   * @return a new datagram buffer, or null if direct memory is exhausted
+   */
+  private static ByteBuffer newBuffer() {
+    try {
+      return ByteBuffer.allocateDirect(Step4_UDP_Echo_Server.MAX_DATAGRAM);
+    } catch (OutOfMemoryError e) {
+      return null;   // "Direct buffer memory": shed instead of dying
+    }
+  }
+
+  /**
+   * Starts a named daemon thread and remembers it for shutdown.
+   */
+  private Thread start(String name, Runnable body) {
+    Thread thread = new Thread(body, name);
+    thread.setDaemon(true);
+    threads.add(thread);
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Step 4: Pipelined Asynchronous UDP Echo Client
+ *
+ * This class is a UDP echo client that can have many requests "in flight" at the
+ * same time over a single socket. Instead of sending one message and waiting for
+ * its echo, it returns a {@link CompletableFuture} for every request and matches
+ * replies as they arrive, in whatever order that is.
+ *
+ * <h2>Key Concepts Covered:</h2>
+ * <ul>
+ *   <li><b>Pipelining</b> - Sending new requests before earlier replies have arrived</li>
+ *   <li><b>Request IDs</b> - A sequence number in every datagram identifies which request a reply belongs to</li>
+ *   <li><b>Flow Control Window</b> - At most N requests may be outstanding; further sends wait for a free slot</li>
+ *   <li><b>Timeouts and Retransmission</b> - UDP may lose a request or its reply, so unanswered requests are resent</li>
+ *   <li><b>Timer Wheel</b> - Every request has a timeout that is almost always cancelled by its reply;
+ *       a {@link Step4_Timer_Wheel} makes arming and cancelling it O(1) and allocation-free</li>
+ *   <li><b>Event Loop</b> - One thread waits in a {@link Selector} for replies <i>or</i> the next timer
+ *       tick, whichever comes first, then reads replies and fires due timers</li>
+ *   <li><b>Metrics</b> - Traffic, retransmissions, timeouts and round-trip times are recorded in {@link Step4_Metrics}</li>
+ * </ul>
+ *
+ * <h2>Wire Format:</h2>
+ * <pre>
+ * +----------------+------------------------+
+ * | sequence (4 B) | payload (0..n bytes)   |
+ * +----------------+------------------------+
+ * </pre>
+ * <p>The echo server returns the datagram unchanged, so the sequence number comes
+ * back with the payload.</p>
+ *
+ * <h2>How to Run:</h2>
+ * <ol>
+ *   <li>Start {@link Step4_UDP_Echo_Server} with the argument {@code loop}</li>
+ *   <li>Run {@link Step4_UDP_Echo_Client} with the argument {@code pipelined}</li>
+ * </ol>
+ *
+ * @see Step4_UDP_Echo_Client
+ * @see Step4_UDP_Echo_Server#serve(int)
+ */
+class Step4_UDP_Pipelined_Client implements AutoCloseable {
+
+  /** Size of the sequence number header in bytes */
+  static final int HEADER_LEN = 4;
+
+  /** Largest reply this client can receive */
+  private static final int MAX_DATAGRAM = 65507;
+
+  /** Resolution of the retransmission timers */
+  private static final long TICK_MILLIS = 10;
+
+  /** Buckets in the timer wheel; with 10 ms ticks one turn is about 5 s */
+  private static final int WHEEL_SLOTS = 512;
+
+  private static final Step4_Metrics.Counter PACKETS_OUT = Step4_Metrics.counter("echo_client_packets_out");
+  private static final Step4_Metrics.Counter BYTES_OUT = Step4_Metrics.counter("echo_client_bytes_out");
+  private static final Step4_Metrics.Counter PACKETS_IN = Step4_Metrics.counter("echo_client_packets_in");
+  private static final Step4_Metrics.Counter BYTES_IN = Step4_Metrics.counter("echo_client_bytes_in");
+  private static final Step4_Metrics.Counter RETRANSMITS = Step4_Metrics.counter("echo_client_retransmits");
+  private static final Step4_Metrics.Counter TIMEOUTS = Step4_Metrics.counter("echo_client_timeouts");
+
+  /** Time from the first transmission of a request to its reply */
+  private static final Step4_Metrics.Histogram ROUND_TRIP = Step4_Metrics.histogram("echo_client_rtt_micros");
+
+  /** A request that has been sent but not yet answered */
+  private static final class Pending {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    final int sequence;
+    final ByteBuffer datagram;
+    final long firstSentNanos = System.nanoTime();
+    int attempts;
+
+    /** Handle of the retransmission timer in the client's wheel */
+    long timer;
+
+    Pending(int sequence, ByteBuffer datagram) {
+      this.sequence = sequence;
+      this.datagram = datagram;
+    }
+  }
+
+  /** Socket used for both sending requests and receiving replies */
+  private final DatagramChannel channel;
+
+  /** Requests waiting for a reply, keyed by sequence number */
+  private final ConcurrentHashMap<Integer, Pending> outstanding = new ConcurrentHashMap<>();
+
+  /** One permit per request that may be in flight */
+  private final Semaphore window;
+
+  /** Next sequence number to hand out */
+  private final AtomicInteger nextSequence = new AtomicInteger();
+
+  /** Wakes the event loop for replies */
+  private final Selector selector;
+
+  /** The per-request timeouts; guarded by its own monitor, since senders arm timers too */
+  private final Step4_Timer_Wheel wheel;
+
+  /** Called by the wheel for each timer that fires; kept in a field so the loop allocates nothing */
+  private final Step4_Timer_Wheel.Expiry onTimeout = this::onTimeout;
+
+  /** Requests that ran out of retransmissions in the current tick; event loop only */
+  private final ArrayDeque<Pending> expired = new ArrayDeque<>();
+
+  /** How long to wait for a reply before resending */
+  private final long timeoutNanos;
+
+  /** How many times a request is resent before it fails */
+  private final int maxRetransmits;
+
+  /** Event loop thread: reads replies, completes futures and fires timers */
+  private final Thread receiverThread;
+
+  /**
+   * Opens a client that talks to the given echo server.
+   *
+   * @param server address and port of the echo server
+   * @param maxInFlight maximum number of unanswered requests at any time
+   * @param timeoutMillis how long to wait for each reply before resending
+   * @param maxRetransmits how many times to resend before failing the request
+   * @throws IOException if the socket cannot be opened
+   */
+  Step4_UDP_Pipelined_Client(SocketAddress server, int maxInFlight, long timeoutMillis,
+                             int maxRetransmits) throws IOException {
+    this.window = new Semaphore(maxInFlight);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.maxRetransmits = maxRetransmits;
+    this.wheel = new Step4_Timer_Wheel(WHEEL_SLOTS, TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS), maxInFlight);
+
+    // Connecting a datagram channel only fixes the peer address: nothing is sent,
+    // but the kernel now discards datagrams from any other source
+    this.channel = DatagramChannel.open();
+    channel.connect(server);
+    channel.configureBlocking(false);
+    this.selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+
+    this.receiverThread = new Thread(this::eventLoop, "echo-client-receiver");
+    receiverThread.setDaemon(true);
+    receiverThread.start();
+  }
+
+  /**
+   * Sends a message and returns a future for its echo.
+   *
+   * @param message the text to send
+   * @return a future completed with the echoed text
+   * @throws InterruptedException if interrupted while waiting for a free window slot
+   */
+  CompletableFuture<String> send(String message) throws InterruptedException {
+    return send(message.getBytes(StandardCharsets.UTF_8))
+        .thenApply(reply -> new String(reply, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Sends a payload and returns a future for its echo.
+   *
+   * <p>If the window is full this call blocks until an earlier request completes.
+   * The future fails with {@link TimeoutException} if no reply arrives after all
+   * retransmissions.</p>
+   *
+   * @param payload the bytes to send
+   * @return a future completed with the echoed payload
+   * @throws InterruptedException if interrupted while waiting for a free window slot
+   */
+  CompletableFuture<byte[]> send(byte[] payload) throws InterruptedException {
+    window.acquire();
+
+    int sequence = nextSequence.getAndIncrement();
+    ByteBuffer datagram = ByteBuffer.allocate(HEADER_LEN + payload.length);
+    datagram.putInt(sequence).put(payload).flip();
+
+    Pending pending = new Pending(sequence, datagram);
+    outstanding.put(sequence, pending);
+    transmit(pending);
+    return pending.result;
+  }
+
+  /**
+   * @return the number of requests currently waiting for a reply
+   */
+  int inFlight() {
+    return outstanding.size();
+  }
+
+  /**
+   * Sends (or resends) a request and arms its timeout.
+   *
+   * <p>If this is the only timer, the event loop may be blocked in
+   * {@code select()} with no timeout, so it is woken up to start ticking.</p>
+   */
+  private void transmit(Pending pending) {
+    boolean firstTimer;
+    IOException failure = null;
+    synchronized (wheel) {
+      if (pending.result.isDone()) {
+        return;
+      }
+      if (pending.attempts++ > 0) {
+        RETRANSMITS.increment();
+      }
+      try {
+        // A full send buffer writes nothing; that is treated like a loss
+        if (channel.write(pending.datagram.duplicate()) > 0) {
+          PACKETS_OUT.increment();
+          BYTES_OUT.add(pending.datagram.remaining());
+        }
+      } catch (PortUnreachableException e) {
+        // Reported for an earlier datagram; treat like a loss and let the timer resend
+      } catch (IOException e) {
+        failure = e;
+      }
+      firstTimer = failure == null && wheel.size() == 0;
+      if (failure == null) {
+        pending.timer = wheel.schedule(timeoutNanos, pending);
+      }
+    }
+    if (failure != null) {
+      fail(pending.sequence, failure);
+    } else if (firstTimer && Thread.currentThread() != receiverThread) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Called by the wheel, on the event loop with the wheel locked, when a
+   * request's timer fires without a reply.
+   */
+  private void onTimeout(Object attachment) {
+    Pending pending = (Pending) attachment;
+    if (outstanding.get(pending.sequence) != pending) {
+      return;
+    }
+    if (pending.attempts > maxRetransmits) {
+      expired.add(pending);   // failed after the wheel is unlocked, see eventLoop()
+    } else {
+      transmit(pending);
+    }
+  }
+
+  /**
+   * Removes a request and completes its future exceptionally.
+   */
+  private void fail(int sequence, Throwable cause) {
+    Pending pending = outstanding.remove(sequence);
+    if (pending != null) {
+      window.release();
+      pending.result.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * Waits for replies or the next timer tick until the client is closed.
+   */
+  private void eventLoop() {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    try {
+      while (true) {
+        long timeout;
+        synchronized (wheel) {
+          timeout = wheel.selectTimeoutMillis(System.nanoTime());
+        }
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+
+        readReplies(buffer);
+
+        synchronized (wheel) {
+          wheel.advance(System.nanoTime(), onTimeout);
+        }
+        // Completing futures runs the callers' callbacks; do that without holding the wheel
+        Pending pending;
+        while ((pending = expired.poll()) != null) {
+          TIMEOUTS.increment();
+          fail(pending.sequence, new TimeoutException(
+              "no reply to request " + pending.sequence + " after " + pending.attempts + " attempts"));
+        }
+      }
+    } catch (ClosedSelectorException | ClosedChannelException e) {
+      // close() was called
+    } catch (IOException e) {
+      outstanding.keySet().forEach(sequence -> fail(sequence, e));
+    }
+  }
+
+  /**
+   * Reads every reply that has arrived, completing the matching futures.
+   */
+  private void readReplies(ByteBuffer buffer) throws IOException {
+    while (true) {
+      buffer.clear();
+      try {
+        if (channel.receive(buffer) == null) {
+          return;
+        }
+      } catch (PortUnreachableException e) {
+        // ICMP "port unreachable" from an earlier send: the server is not up
+        // (yet); the request timers will resend
+        continue;
+      }
+      buffer.flip();
+      PACKETS_IN.increment();
+      BYTES_IN.add(buffer.remaining());
+      if (buffer.remaining() < HEADER_LEN) {
+        continue;
+      }
+
+      // A duplicate or very late reply finds no pending entry and is ignored
+      Pending pending = outstanding.remove(buffer.getInt());
+      if (pending == null) {
+        continue;
+      }
+      synchronized (wheel) {
+        wheel.cancel(pending.timer);
+      }
+      window.release();
+      ROUND_TRIP.recordSince(pending.firstSentNanos);
+
+      byte[] reply = new byte[buffer.remaining()];
+      buffer.get(reply);
+      pending.result.complete(reply);
+    }
+  }
+
+  /**
+   * Closes the socket and fails every request that is still waiting.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    selector.close();
+    IOException closed = new IOException("client closed");
+    outstanding.keySet().forEach(sequence -> fail(sequence, closed));
+  }
+
+  /**
+   * Convenience factory for a client talking to a UDP port on this machine.
+   *
+   * @param port the echo server's port, or a proxy's in front of it
+   */
+  static Step4_UDP_Pipelined_Client toLocalServer(int port, int maxInFlight) throws IOException {
+    return new Step4_UDP_Pipelined_Client(new InetSocketAddress("localhost", port), maxInFlight, 200, 3);
+  }
+}
@@ -1,6 +1,14 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Step 4: Reusable UDP Receiver Component
@@ -13,41 +21,145 @@ import java.net.DatagramSocket;
  * <ul>
  *   <li><b>Encapsulation</b> - Wraps UDP receiving logic in a reusable class</li>
  *   <li><b>Socket Binding</b> - Binds to a specific port to receive packets</li>
- *   <li><b>Asynchronous Readiness</b> - The isBound() method allows checking if ready to receive</li>
+ *   <li><b>Asynchronous Readiness</b> - The {@link #ready()} future completes the moment the socket is bound</li>
  *   <li><b>Thread Safety Consideration</b> - Designed to be used with CompletableFuture</li>
+ *   <li><b>Buffer Reuse</b> - Receive buffers come from a {@link Step4_BufferPool}</li>
+ *   <li><b>Character Encoding</b> - Only the bytes actually received are decoded, as UTF-8</li>
+ *   <li><b>Metrics</b> - Every datagram is counted in {@link Step4_Metrics}</li>
+ *   <li><b>Capture</b> - With {@code -Dcapture.file=PATH}, every datagram received and sent is
+ *       recorded by {@link Step4_Packet_Capture}</li>
+ * </ul>
+ *
+ * <h2>Receive Styles:</h2>
+ * <ul>
+ *   <li>{@link #receive()} - waits for one packet and returns it as a String</li>
+ *   <li>{@link #receiveLoop(Consumer)} - keeps receiving and hands each message to a callback</li>
+ *   <li>{@link #receiveLoop(Handler)} - keeps receiving and hands the raw buffer to a callback
+ *       without copying it</li>
  * </ul>
  *
  * <h2>Design Notes:</h2>
  * <ul>
- *   <li>The 1-second delay before binding allows the caller to set up response handling</li>
+ *   <li>The socket is bound once and then reused by every later receive</li>
+ *   <li>The socket is bound as soon as it is needed, with no start-up delay; callers that
+ *       receive on another thread wait on {@link #ready()} instead of polling</li>
+ *   <li>{@code -Dudp.rcvbuf=BYTES} and {@code -Dudp.sndbuf=BYTES} set the socket's
+ *       {@code SO_RCVBUF} and {@code SO_SNDBUF}; a larger receive buffer absorbs longer
+ *       bursts before the kernel starts dropping datagrams. The kernel may round or cap the
+ *       request (on Linux, at {@code net.core.rmem_max})</li>
  *   <li>Package-private visibility limits usage to the same package</li>
  *   <li>Error handling returns exception message as string (for simplicity in training)</li>
  * </ul>
  *
  * @see Step4_UDP_Echo_Server
  * @see Step4_UDP_Echo_Client
+ * @see Step4_BufferPool
  */
 class Step4_UDP_Receiver {
 
-  /** Maximum buffer size for receiving data (2000 bytes) */
-  private static final int BUF_LEN = 2000;
+  /**
+   * Receive buffer size: the largest possible UDP payload, so no datagram is
+   * silently cut short (a 2000-byte buffer used to truncate anything larger)
+   */
+  private static final int BUF_LEN = Step4_UDP_Echo_Server.MAX_DATAGRAM;
+
+  /** Pool shared by receivers that are not given their own */
+  private static final Step4_BufferPool SHARED_POOL = new Step4_BufferPool(16, BUF_LEN, true);
+
+  /** Datagrams received by every receiver in this process */
+  private static final Step4_Metrics.Counter PACKETS_IN = Step4_Metrics.counter("receiver_packets_in");
+
+  /** SO_RCVBUF requested with {@code -Dudp.rcvbuf}, or 0 for the operating system default */
+  static final int RCVBUF = Integer.getInteger("udp.rcvbuf", 0);
+
+  /** SO_SNDBUF requested with {@code -Dudp.sndbuf}, or 0 for the operating system default */
+  static final int SNDBUF = Integer.getInteger("udp.sndbuf", 0);
+
+  /** Payload bytes received by every receiver in this process */
+  private static final Step4_Metrics.Counter BYTES_IN = Step4_Metrics.counter("receiver_bytes_in");
+
+  /** Records traffic when started with {@code -Dcapture.file}; null otherwise */
+  private static final Step4_Packet_Capture.Recorder CAPTURE = Step4_Packet_Capture.recorder();
+
+  /**
+   * Callback for the zero-copy receive loop.
+   *
+   * <p>The buffer is only valid for the duration of the call: it goes back to the
+   * pool as soon as the handler returns, so the handler must copy anything it
+   * wants to keep.</p>
+   */
+  interface Handler {
+
+    /**
+     * Called once per received datagram.
+     *
+     * @param data the datagram payload, positioned from 0 to the received length
+     * @param source the address and port the datagram was sent from
+     * @throws IOException if the handler fails; this ends the loop
+     */
+    void onDatagram(ByteBuffer data, SocketAddress source) throws IOException;
+  }
 
   /** The port number this receiver will bind to */
   final private int port;
 
-  /** The most recently received packet (available after receive() returns) */
-  DatagramPacket receivePacket;
+  /** Where receive buffers are taken from and returned to */
+  private final Step4_BufferPool pool;
+
+  /** Scratch array used to decode messages into Strings without allocating per packet */
+  private final byte[] decodeScratch;
 
-  /** The underlying DatagramSocket; null until receive() is called */
+  /** Sender of the most recently received packet (available after receive() returns) */
+  volatile SocketAddress lastSender;
+
+  /** The channel that receives packets; null until first bound */
+  private DatagramChannel channel = null;
+
+  /** The socket view of {@link #channel}; null until first bound */
   private DatagramSocket serverSocket = null;
 
+  /** SO_RCVBUF and SO_SNDBUF applied when the socket is bound; 0 keeps the default */
+  private int receiveBufferSize = RCVBUF;
+  private int sendBufferSize = SNDBUF;
+
+  /** Completed when the socket is bound, or failed if binding fails */
+  private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
   /**
    * Creates a new UDP receiver that will bind to the specified port.
    *
    * @param port the port number to listen on (1024-65535 recommended for user applications)
    */
   Step4_UDP_Receiver(int port) {
+    this(port, SHARED_POOL);
+  }
+
+  /**
+   * Creates a new UDP receiver that takes its receive buffers from the given pool.
+   *
+   * @param port the port number to listen on
+   * @param pool the pool to draw receive buffers from
+   */
+  Step4_UDP_Receiver(int port, Step4_BufferPool pool) {
     this.port = port;
+    this.pool = pool;
+    this.decodeScratch = new byte[pool.bufferSize()];
+  }
+
+  /**
+   * Creates a receiver for a channel that the caller has already bound and
+   * configured, for example one that has joined a multicast group. The channel
+   * must be in blocking mode; {@link #close()} closes it.
+   *
+   * @param channel a bound, blocking channel
+   * @param pool the pool to draw receive buffers from
+   * @throws IOException if the channel's local address cannot be read
+   */
+  Step4_UDP_Receiver(DatagramChannel channel, Step4_BufferPool pool) throws IOException {
+    this(((InetSocketAddress) channel.getLocalAddress()).getPort(), pool);
+    this.channel = channel;
+    this.serverSocket = channel.socket();
+    ready.complete(null);
   }
 
   /**
@@ -57,47 +169,196 @@ class Step4_UDP_Receiver {
    * @return true if the socket is bound and ready to receive packets
    */
   boolean isBound() {
-    return serverSocket != null && serverSocket.isBound();
+    DatagramSocket socket = serverSocket;
+    return socket != null && socket.isBound();
+  }
+
+  /**
+   * Returns a future that completes as soon as the socket is bound, so a caller
+   * can wait for readiness without polling {@link #isBound()}. It fails with the
+   * bind error if the port cannot be bound.
+   *
+   * @return the readiness future
+   */
+  CompletableFuture<Void> ready() {
+    return ready;
+  }
+
+  /**
+   * Sets the socket's kernel buffer sizes, now if it is already bound or
+   * otherwise when it is bound.
+   *
+   * @param receive SO_RCVBUF in bytes, or 0 for the operating system default
+   * @param send SO_SNDBUF in bytes, or 0 for the operating system default
+   * @throws IOException if the options cannot be set
+   */
+  synchronized void socketBuffers(int receive, int send) throws IOException {
+    receiveBufferSize = receive;
+    sendBufferSize = send;
+    if (channel != null) {
+      socketBuffers(channel, receive, send);
+    }
+  }
+
+  /**
+   * Sets SO_RCVBUF and SO_SNDBUF on a channel, skipping any size that is 0.
+   *
+   * @throws IOException if an option cannot be set
+   */
+  static void socketBuffers(DatagramChannel channel, int receive, int send) throws IOException {
+    if (receive > 0) {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, receive);
+    }
+    if (send > 0) {
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, send);
+    }
+  }
+
+  /**
+   * @return a description of the buffer sizes the kernel actually granted
+   * @throws IOException if the socket is not bound yet or the options cannot be read
+   */
+  String socketBufferSizes() throws IOException {
+    DatagramChannel ch = bind();
+    return "SO_RCVBUF " + ch.getOption(StandardSocketOptions.SO_RCVBUF)
+        + ", SO_SNDBUF " + ch.getOption(StandardSocketOptions.SO_SNDBUF);
+  }
+
+  /**
+   * Sends a datagram from this receiver's own socket, so a reply comes from
+   * the port the client sent its request to. Safe to call from any thread.
+   *
+   * @param data the payload, from position to limit
+   * @param target where to send it
+   * @return true if sent, false if the socket's send buffer was full
+   * @throws IOException if the socket fails
+   */
+  boolean send(ByteBuffer data, SocketAddress target) throws IOException {
+    int start = data.position();
+    boolean sent = bind().send(data, target) > 0 || !data.hasRemaining();
+    if (sent && CAPTURE != null) {
+      int end = data.position();
+      CAPTURE.sent(data.position(start), target);
+      data.position(end);
+    }
+    return sent;
   }
 
   /**
    * Binds to the configured port and waits for a UDP packet.
    *
-   * <p>This method blocks until a packet is received. It includes a 1-second
-   * delay before binding to allow callers time to set up their end of the
-   * communication.</p>
+   * <p>This method blocks until a packet is received. The first call binds the
+   * socket (completing {@link #ready()}); later calls reuse it.</p>
    *
    * @return the received message as a String, or the exception message if an error occurs
    */
   String receive() {
 
+    ByteBuffer buffer = pool.acquire();
     try {
-      // Delay to allow the sender to prepare (useful in async scenarios)
-      Thread.sleep(1000);
-
-      // Bind to the specified port
-      serverSocket = new DatagramSocket(port);
-
-      // Prepare buffer for incoming data
-      byte[] receiveData = new byte[BUF_LEN];
-
-      // Create packet to receive data
-      receivePacket = new DatagramPacket(receiveData, receiveData.length);
+      DatagramChannel ch = bind();
 
       // Block until a packet arrives
-      serverSocket.receive(receivePacket);
+      lastSender = ch.receive(buffer);
+      buffer.flip();
+      PACKETS_IN.increment();
+      BYTES_IN.add(buffer.remaining());
+      if (CAPTURE != null) {
+        CAPTURE.received(buffer, lastSender);
+      }
 
-      // Return the received data as a string
-      return new String(receivePacket.getData());
+      // Decode exactly the bytes received - never the unused tail of the buffer
+      return decode(buffer);
 
     } catch (IOException e) {
       // Network or socket error
       return e.toString();
 
-    } catch (InterruptedException e) {
-      // Thread was interrupted during sleep
-      return e.toString();
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Receives packets until the thread is interrupted or the receiver is closed,
+   * passing each one to {@code onMessage} as a UTF-8 String.
+   *
+   * @param onMessage called with every received message
+   * @throws IOException if the socket cannot be bound or fails while receiving
+   */
+  void receiveLoop(Consumer<String> onMessage) throws IOException {
+    receiveLoop((data, source) -> onMessage.accept(decode(data)));
+  }
+
+  /**
+   * Receives packets until the thread is interrupted or the receiver is closed,
+   * passing each payload to {@code handler} directly in its pooled buffer.
+   *
+   * @param handler called with every received datagram
+   * @throws IOException if the socket cannot be bound or fails while receiving
+   */
+  void receiveLoop(Handler handler) throws IOException {
+    DatagramChannel ch = bind();
+    ByteBuffer buffer = pool.acquire();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        SocketAddress source = ch.receive(buffer.clear());
+        lastSender = source;
+        buffer.flip();
+        PACKETS_IN.increment();
+        BYTES_IN.add(buffer.remaining());
+        if (CAPTURE != null) {
+          CAPTURE.received(buffer, source);
+        }
+        handler.onDatagram(buffer, source);
+      }
+    } catch (AsynchronousCloseException e) {
+      // close() or an interrupt ended the loop - a normal way to stop
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Closes the underlying socket, ending any receive loop that is running.
+   */
+  synchronized void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing useful to do if closing fails
+      }
     }
+  }
 
+  /**
+   * Binds the channel the first time it is needed and returns it afterwards.
+   */
+  private synchronized DatagramChannel bind() throws IOException {
+    if (channel == null) {
+      DatagramChannel ch = DatagramChannel.open();
+      try {
+        socketBuffers(ch, receiveBufferSize, sendBufferSize);
+        ch.bind(new InetSocketAddress(port));
+      } catch (IOException e) {
+        ch.close();
+        ready.completeExceptionally(e);
+        throw e;
+      }
+      serverSocket = ch.socket();
+      channel = ch;
+      ready.complete(null);
+    }
+    return channel;
+  }
+
+  /**
+   * Decodes the remaining bytes of {@code data} as UTF-8 without disturbing its position.
+   */
+  private String decode(ByteBuffer data) {
+    int length = data.remaining();
+    data.get(data.position(), decodeScratch, 0, length);
+    return new String(decodeScratch, 0, length, StandardCharsets.UTF_8);
   }
 }